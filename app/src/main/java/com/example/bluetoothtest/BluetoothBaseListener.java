@@ -42,7 +42,7 @@ public interface BluetoothBaseListener {
     /**
         Callback when a device is found during the scan.
         @param device: found remote device
-        @param rssi: RSSI value of the remote device
+        @param rssi: RSSI value of the remote device, DiscoveryTable.NO_RSSI if none was sent
      */
     void onActionDeviceFound(BluetoothDevice device, short rssi);
 
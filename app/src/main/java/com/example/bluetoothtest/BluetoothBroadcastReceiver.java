@@ -8,9 +8,12 @@ import android.content.Intent;
 
 public class BluetoothBroadcastReceiver extends BroadcastReceiver {
     private BluetoothBaseListener mBaseListner;
+    private final DeviceMetadataCache mDeviceCache;
 
-    public BluetoothBroadcastReceiver(BluetoothBaseListener baseListener) {
+    public BluetoothBroadcastReceiver(BluetoothBaseListener baseListener,
+                                      DeviceMetadataCache deviceCache) {
         mBaseListner = baseListener;
+        mDeviceCache = deviceCache;
     }
 
     @Override
@@ -37,7 +40,8 @@ public class BluetoothBroadcastReceiver extends BroadcastReceiver {
 
             case BluetoothDevice.ACTION_FOUND:
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short)0);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DiscoveryTable.NO_RSSI);
+                mDeviceCache.onName(device, intent.getStringExtra(BluetoothDevice.EXTRA_NAME));
                 mBaseListner.onActionDeviceFound(device, rssi);
                 break;
 
@@ -51,9 +55,26 @@ public class BluetoothBroadcastReceiver extends BroadcastReceiver {
                 BluetoothDevice deviceBond = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, 0);
                 int preBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, 0);
+                if (bondState == BluetoothDevice.BOND_NONE) {
+                    // unpaired, its name is looked up again should it come back
+                    mDeviceCache.invalidate(deviceBond);
+                } else {
+                    mDeviceCache.onBondState(deviceBond, bondState);
+                }
                 mBaseListner.onBondStateChanged(deviceBond, bondState, preBondState);
                 break;
 
+            case BluetoothDevice.ACTION_NAME_CHANGED:
+                BluetoothDevice deviceNamed = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                mDeviceCache.onName(deviceNamed, intent.getStringExtra(BluetoothDevice.EXTRA_NAME));
+                break;
+
+            case BluetoothDevice.ACTION_ACL_DISCONNECTED:
+                // the device is looked up again when it connects next time
+                BluetoothDevice deviceGone = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                mDeviceCache.invalidate(deviceGone);
+                break;
+
         }
     }
 }
@@ -1,15 +1,18 @@
 package com.example.bluetoothtest;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 
@@ -51,6 +54,18 @@ public class BluetoothController {
     protected BluetoothBaseListener myBaseListeners;
     protected BluetoothBroadcastReceiver myReceivers;
 
+    // the broadcasts are received on this thread, so scans and bond changes keep off the UI thread
+    private HandlerThread myBroadcastThread;
+
+    // passes the broadcast and connection events on to all subscribers
+    private final BluetoothEventBus myEventBus = new BluetoothEventBus();
+    // name and bond state of the remote devices, kept current by the broadcasts, bounded like
+    // the discovered devices
+    private final DeviceMetadataCache myDeviceCache =
+            new DeviceMetadataCache(DISCOVERY_CAPACITY, DISCOVERY_MAX_AGE_MILLIS);
+    // cameras allowed to connect to the phone, saved in the shared preferences
+    private CameraAllowlist myAllowlist;
+
     // Bluetooth manager
     private BluetoothManager myBluetoothManager;
 
@@ -74,8 +89,15 @@ public class BluetoothController {
     // Handler object used for various functions.
     private Handler myHandler;
 
-    // Array to store the found device during scanning
-    private ArrayList<BluetoothDevice> mBTDevices = new ArrayList<>();
+    // discovery for known cameras, if one is running
+    private TargetedDiscovery myTargetedDiscovery;
+
+    // Devices found during scanning, one entry per device. Added to on the broadcast thread, read
+    // on the UI thread.
+    private static final int DISCOVERY_CAPACITY = 64;
+    private static final long DISCOVERY_MAX_AGE_MILLIS = 5 * 60 * 1000;
+    private final DiscoveryTable myDiscoveredDevices =
+            new DiscoveryTable(DISCOVERY_CAPACITY, DISCOVERY_MAX_AGE_MILLIS);
 
     // Constructor for the class
     public BluetoothController(MainActivity mainActivity) {
@@ -92,6 +114,10 @@ public class BluetoothController {
 
         // get the Bluetooth service instance
         myBluetoothService = new BluetoothService(myBluetoothAdapter);
+        myBluetoothService.setDeviceCache(myDeviceCache);
+        myAllowlist = new CameraAllowlist(myContext.getSharedPreferences(
+                CameraAllowlist.PREFERENCES_NAME, Context.MODE_PRIVATE));
+        myBluetoothService.setAllowlist(myAllowlist);
 
         // get a new Handler
         myHandler = new Handler();
@@ -112,11 +138,29 @@ public class BluetoothController {
         filter.addAction(BluetoothDevice.ACTION_FOUND);
         filter.addAction(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
 
-        myReceivers = new BluetoothBroadcastReceiver(myBaseListeners);
-        myContext.registerReceiver(myReceivers, filter);
+        if (myBroadcastThread == null) {
+            myBroadcastThread = new HandlerThread("BT_BROADCAST_THREAD");
+            myBroadcastThread.start();
+        }
+        myReceivers = new BluetoothBroadcastReceiver(myEventBus, myDeviceCache);
+        myContext.registerReceiver(myReceivers, filter, null,
+                new Handler(myBroadcastThread.getLooper()));
     }
 
+    // ends a scan after its scan period
+    private final Runnable myStopScan = new Runnable() {
+        @Override
+        public void run() {
+            setStatusText("Stopping the scan..");
+            mScanning = false;
+            myBluetoothAdapter.cancelDiscovery();
+            stopScan();
+        }
+    };
+
     /**
         Scan for Bluetooth devices and cancel the discovery after the scan period.
     */
@@ -124,20 +168,11 @@ public class BluetoothController {
         // if not already scanning, start the scan with a runnable which is called automatically
         // after the scan period to cancel discovery
         if (!this.mScanning) {
-            // reset the Bluetooth devices list so that we can populate this with new found devices
-            mBTDevices = new ArrayList<>();
+            // the devices found before stay in the table until they have not been seen for a while
             setStatusText("Starting scan for devices ..");
 
             // we will use the handler to stop the scanning after scan period set by the caller.
-            this.myHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    setStatusText("Stopping the scan..");
-                    mScanning = false;
-                    myBluetoothAdapter.cancelDiscovery();
-                    stopScan();
-                }
-            }, this.scanPeriod);
+            this.myHandler.postDelayed(myStopScan, this.scanPeriod);
 
             // start discovery or scan for Bluetooth devices
             mScanning = true;
@@ -150,20 +185,10 @@ public class BluetoothController {
         @param: deviceMAC: MAC address
     */
     private boolean isBTDevicePaired(final String deviceMAC) {
-        Set<BluetoothDevice> pairedDevices = this.myBluetoothAdapter.getBondedDevices();
-        if (pairedDevices.size() > 0) {
-            // if there are paired devices, then loop over them and check for address match
-            for (BluetoothDevice dv : pairedDevices) {
-                if (dv.getAddress().equals(deviceMAC)) {
-                    return true;
-                }
-            }
-        }
-        else {
-            setStatusText("No paired devices found");
-        }
-
-        return false;
+        // the bond state comes from the cache, kept current by the bond broadcasts, instead of
+        // copying the set of bonded devices on every call
+        BluetoothDevice device = this.myBluetoothAdapter.getRemoteDevice(deviceMAC);
+        return myDeviceCache.bondStateOf(device) == BluetoothDevice.BOND_BONDED;
     }
 
     /**
@@ -182,6 +207,10 @@ public class BluetoothController {
         if (myReceivers != null) {
             myContext.unregisterReceiver(myReceivers);
         }
+        if (myBroadcastThread != null) {
+            myBroadcastThread.quitSafely();
+            myBroadcastThread = null;
+        }
     }
 
     /**
@@ -189,10 +218,50 @@ public class BluetoothController {
         @param listener, a BluetoothBaseListener
      */
     public void setBluetoothBroadcastListeners(BluetoothBaseListener listener) {
+        // the listener gets every event on the thread that raised it, as before the event bus
+        if (myBaseListeners != null) {
+            myEventBus.unsubscribe(myBaseListeners);
+        }
         this.myBaseListeners = listener;
+        myEventBus.subscribe(listener, BluetoothEventBus.EVENT_ALL,
+                BluetoothEventBus.DELIVER_ON_CALLER);
         registerBroadCastReceivers();
         if (myBluetoothService != null) {
-            myBluetoothService.setBluetoothListeners(myBaseListeners);
+            myBluetoothService.setBluetoothListeners(myEventBus);
+        }
+    }
+
+    /**
+     * Bus of the Bluetooth events, for more subscribers than the broadcast listener.
+     * @return BluetoothEventBus
+     */
+    BluetoothEventBus getEventBus() {
+        return myEventBus;
+    }
+
+    /**
+     * Name and bond state of the remote devices, without a call into the Bluetooth service.
+     * @return DeviceMetadataCache
+     */
+    DeviceMetadataCache getDeviceCache() {
+        return myDeviceCache;
+    }
+
+    /**
+     * Cameras allowed to connect to the phone.
+     * @return CameraAllowlist, null if Bluetooth is not available
+     */
+    CameraAllowlist getAllowlist() {
+        return myAllowlist;
+    }
+
+    /**
+     * Set the receive pipeline that the data read from the connected device is written to.
+     * @param pipeline, null to deliver the data through the listeners' onReadData
+     */
+    void setReceivePipeline(ReceivePipeline pipeline) {
+        if (myBluetoothService != null) {
+            myBluetoothService.setReceivePipeline(pipeline);
         }
     }
 
@@ -287,12 +356,71 @@ public class BluetoothController {
     }
 
     /**
-     * Save a Bluetooth device found during a scan in an array.
+     * Save a Bluetooth device found during a scan in the discovery table.
      * @param dv
+     * @param rssi RSSI value of the device
+     */
+    public void addDiscoveredBTDevice(BluetoothDevice dv, short rssi) {
+        DiscoveryTable.Entry entry = myDiscoveredDevices.onFound(dv, rssi);
+        Log.d(TAG, "addDevice: " + dv.getAddress() + ", seen " + entry.sightings
+                + " times, RSSI " + Math.round(entry.rssi));
+    }
+
+    /**
+     * The devices found lately, one entry per device.
+     * @return DiscoveryTable
      */
-    public void addDiscoveredBTDevice(BluetoothDevice dv) {
-        Log.d(TAG, "addDevice: " + dv.getAddress());
-        mBTDevices.add(dv);
+    DiscoveryTable getDiscoveredDevices() {
+        return myDiscoveredDevices;
+    }
+
+    /**
+     * The cameras found lately with the strongest signal, the ones to try connecting to first.
+     * Only the devices on the allowlist count as cameras.
+     * @param n most cameras returned
+     * @return List, strongest first
+     */
+    public List<BluetoothDevice> getStrongestDevices(int n) {
+        List<BluetoothDevice> devices = new ArrayList<>();
+        if (myAllowlist == null) {
+            return devices;
+        }
+        for (DiscoveryTable.Entry entry : myDiscoveredDevices.strongest(Integer.MAX_VALUE)) {
+            if (devices.size() == n) {
+                break;
+            }
+            if (myAllowlist.isAllowed(entry.device.getAddress())) {
+                devices.add(entry.device);
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Discover the given cameras. The discovery is cancelled as soon as all of them are found,
+     * or after the timeout. A discovery for cameras started earlier is cancelled.
+     * @param macs MAC addresses of the cameras
+     * @param timeoutMillis longest time to look for the cameras
+     * @param callback told about every camera found and about the end of the discovery, on the
+     *                 broadcast thread or the UI thread
+     * @return TargetedDiscovery, to cancel the discovery. null if Bluetooth is off.
+     */
+    public TargetedDiscovery discoverCameras(String[] macs, long timeoutMillis,
+                                             TargetedDiscovery.Callback callback) {
+        if (!isBTEnabled()) {
+            Utils.toast(myContext, "Turn on the Bluetooth first.");
+            return null;
+        }
+        if (myTargetedDiscovery != null) {
+            myTargetedDiscovery.cancel();
+        }
+        // a scan started before must not end the discovery for the cameras
+        myHandler.removeCallbacks(myStopScan);
+        mScanning = false;
+        myTargetedDiscovery = new TargetedDiscovery(myBluetoothAdapter, myEventBus, myHandler,
+                macs, callback);
+        myTargetedDiscovery.start(timeoutMillis);
+        return myTargetedDiscovery;
     }
 
     /**
@@ -352,36 +480,32 @@ public class BluetoothController {
     public void pairBluetoothDevice(final String deviceMAC) {
         Log.d(TAG, "pairBluetoothDevice: " + deviceMAC);
 
+        // the camera we pair with is allowed to connect to the phone, after the ones paired
+        // before the app ran
+        if (myAllowlist != null) {
+            seedAllowlist();
+            myAllowlist.add(deviceMAC);
+        }
+
         // first check if the device is already paired or not.
         if(!isBTDevicePaired(deviceMAC)) {
-            // device is not paired. Now scan for nearby Bluetooth devices for 10 seconds
-            stopScan();
-            startScan(10000);
-
-            // post a delayed runnable for pairing after the scan is finished.
-            myHandler.postDelayed(new Runnable() {
+            // device is not paired. Look for it for at most 10 seconds, the discovery stops as
+            // soon as it is found.
+            discoverCameras(new String[] {deviceMAC}, 10000, new TargetedDiscovery.Callback() {
                 @Override
-                public void run() {
-                    // check if there is a discovered device with the matching MAC address
-                    for(BluetoothDevice dv: mBTDevices) {
-                        if (dv.getAddress().equals(deviceMAC)) {
-                            Log.d(TAG, "pairBluetoothDevice: Found the device. ");
-
-                            // yes a device was found with the specified mac. Now bond with the device
-                            Log.d(TAG, "pairBluetoothDevice: Pairing now.. ");
-
-                            // first stop scanning if not stopped yet.
-                            stopScan();
-
-                            // try to pair with the device
-                            dv.createBond();
+                public void onFound(BluetoothDevice device, short rssi) {
+                    // yes a device was found with the specified mac. Now bond with the device
+                    Log.d(TAG, "pairBluetoothDevice: Found the device. Pairing now.. ");
+                    device.createBond();
+                }
 
-                            // no need to loop over other devices.
-                            break;
-                        }
+                @Override
+                public void onFinished(List<String> missing) {
+                    if (!missing.isEmpty()) {
+                        Log.d(TAG, "pairBluetoothDevice: Device " + deviceMAC + " not found");
                     }
                 }
-            }, 10000);
+            });
 
         } else {
             setStatusText("Device with MAC " + deviceMAC + " already paired.");
@@ -393,9 +517,35 @@ public class BluetoothController {
         Start the Bluetooth connection as the server, that a client can connect to
      */
     public void startAsServer(){
+        // only the cameras on the allowlist may connect from now on
+        seedAllowlist();
         myBluetoothService.startServer();
     }
 
+    /**
+     * Set the allowlist up on the first start, with the cameras the user paired in the system
+     * settings before the app ran. Paired devices that are clearly no camera, e.g. headsets or
+     * computers, are left out.
+     */
+    private void seedAllowlist() {
+        if (myAllowlist == null || myAllowlist.isSetUp() || !isBTEnabled()) {
+            return;
+        }
+        List<String> cameras = new ArrayList<>();
+        for (BluetoothDevice device : myBluetoothAdapter.getBondedDevices()) {
+            BluetoothClass deviceClass = device.getBluetoothClass();
+            int major = deviceClass != null ? deviceClass.getMajorDeviceClass()
+                    : BluetoothClass.Device.Major.UNCATEGORIZED;
+            // camera modules rarely set a class of device
+            if (major == BluetoothClass.Device.Major.IMAGING
+                    || major == BluetoothClass.Device.Major.MISC
+                    || major == BluetoothClass.Device.Major.UNCATEGORIZED) {
+                cameras.add(device.getAddress());
+            }
+        }
+        myAllowlist.seed(cameras);
+    }
+
     /**
         Stop the running Bluetooth server if any.
      */
@@ -428,4 +578,17 @@ public class BluetoothController {
             myBluetoothService.writeBytes(data);
         }
     }
+
+    /**
+     * Send a slice of a buffer over any Bluetooth connection that is running. The bytes are
+     * written before this returns, so the caller may reuse the buffer afterwards.
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void sendData(byte [] data, int offset, int length) {
+        if (length > 0) {
+            myBluetoothService.writeBytes(data, offset, length);
+        }
+    }
 }
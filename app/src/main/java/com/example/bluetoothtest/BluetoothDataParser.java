@@ -1,17 +1,15 @@
 package com.example.bluetoothtest;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -24,14 +22,36 @@ import java.util.concurrent.Semaphore;
 
 public class BluetoothDataParser {
     private static final String TAG = "BluetoothDataParser";
-    private static final String HANDLER_THREAD_NAME = "DATA_PARSER_THREAD";
-    private static final boolean D = true;
+    // the debug logs are on the path of every frame and response, only turn them on to debug
+    private static final boolean D = false;
     private static Context myContext;
 
-    private static final int _PREAMBLE_LENGTH = 6;
+    private static final int _PREAMBLE_LENGTH = FrameHeaderDecoder.FIXED_LENGTH;
     private static final int _imageBufferSize = 1024 * 1024;     // 1 mb buffer for image
-    private static byte[] _imageBuffer = new byte[_imageBufferSize];
-    private static int _currentImageBufferPosition = 0;
+
+    // Images are assembled in buffers from a small pool. A completed image's buffer is handed
+    // to the storage stage and the next image gets a free buffer at once, the receiver only
+    // waits when every buffer is still being written.
+    // one being received, one waiting in the storage stage and one per storage thread. Only the
+    // first is allocated up front, the others when storage falls behind.
+    private static final int _ASSEMBLY_BUFFER_COUNT = 4;
+    private final ImageBufferPool _imageBuffers = new ImageBufferPool(1, _ASSEMBLY_BUFFER_COUNT,
+            _imageBufferSize);
+    // The latest images are kept for display, copied at their own size, up to
+    // _IMAGE_CACHE_BYTES of them.
+    private static final int _IMAGE_CACHE_BYTES = 2 * 1024 * 1024;
+    private final ImageCache _imageCache = new ImageCache(_IMAGE_CACHE_BYTES);
+    private ImageBuffer _imageBuffer;
+    private int _currentImageBufferPosition = 0;
+    // checks the image while it arrives, and reads its size and capture time
+    private final JpegScanner _jpegScanner = new JpegScanner();
+    private int _jpegState = JpegScanner.NEED_MORE;
+    // the current image was found malformed, its remaining data is not kept
+    private boolean _imageRejected = false;
+    // a rejected image is asked for again up to _MAX_IMAGE_RETRIES times
+    private static final int _MAX_IMAGE_RETRIES = 2;
+    private String _retryImageName;
+    private int _retryCount;
     private volatile boolean _image_flag = false;
     private static int _currentImagePacketNumber = 0;
 
@@ -42,13 +62,31 @@ public class BluetoothDataParser {
 //    private static int _responseLength = 0;
 
     private static BluetoothController myBtController;
-    private dataParserThread myDataParserThread;
+    private ReceivePipeline myReceivePipeline;
+
+    // Completed images are written by the storage executor, on _STORAGE_PARALLELISM threads
+    // with up to _STORAGE_QUEUE_CAPACITY images waiting. Up to _STORAGE_COMMIT_BATCH images are
+    // forced to disk together.
+    private static final int _STORAGE_PARALLELISM = 2;
+    private static final int _STORAGE_QUEUE_CAPACITY = 2;
+    private static final int _STORAGE_COMMIT_BATCH = 4;
+    // Keep the images in append-only segment files instead of a file per image. Saves the file
+    // system metadata writes of every image, but the images are not visible as files.
+    private static final boolean _USE_SEGMENT_STORE = false;
+    // The stored images may take at most _STORAGE_QUOTA_BYTES, and leave at least
+    // _STORAGE_FREE_SPACE_FLOOR_BYTES free on the device. Older images are evicted to stay within.
+    private static final long _STORAGE_QUOTA_BYTES = 2L * 1024 * 1024 * 1024;
+    private static final long _STORAGE_FREE_SPACE_FLOOR_BYTES = 256L * 1024 * 1024;
+    private ImageStorageExecutor myImageStorage;
+    private ImageCatalog myImageCatalog;
+    private ImageStorageQuota myStorageQuota;
+    private static final String _UNKNOWN_CAMERA = "unknown";
 
 
     enum BLUETOOTH_COMM_TYPE {
-        BT_REQUEST((byte)0x0A),
-        BT_DATA((byte)0x0B),
-        BT_RESPONSE((byte)0x0C);
+        BT_REQUEST(CameraProtocol.CommType.BT_REQUEST),
+        BT_DATA(CameraProtocol.CommType.BT_DATA),
+        BT_RESPONSE(CameraProtocol.CommType.BT_RESPONSE);
 
         private final byte value;
         BLUETOOTH_COMM_TYPE(byte ip) {
@@ -61,10 +99,13 @@ public class BluetoothDataParser {
     }
 
     enum BLUETOOTH_REQUEST_TYPE {
-        TIME_REQUEST((byte)0x00),
-        IMAGE_INCOMING_REQUEST((byte)0x01),
-        ARE_YOU_READY_REQUEST((byte)0x02),
-        IMAGE_SENT_REQUEST((byte)0x03);
+        TIME_REQUEST(CameraProtocol.RequestType.TIME_REQUEST),
+        IMAGE_INCOMING_REQUEST(CameraProtocol.RequestType.IMAGE_INCOMING_REQUEST),
+        ARE_YOU_READY_REQUEST(CameraProtocol.RequestType.ARE_YOU_READY_REQUEST),
+        IMAGE_SENT_REQUEST(CameraProtocol.RequestType.IMAGE_SENT_REQUEST),
+        HELLO_REQUEST(CameraProtocol.RequestType.HELLO_REQUEST),
+        BATCH_START_REQUEST(CameraProtocol.RequestType.BATCH_START_REQUEST),
+        BATCH_END_REQUEST(CameraProtocol.RequestType.BATCH_END_REQUEST);
 
         private final byte value;
         BLUETOOTH_REQUEST_TYPE(byte ip) {
@@ -77,8 +118,9 @@ public class BluetoothDataParser {
     }
 
     enum BLUETOOTH_DATA_TYPE {
-        IMAGE_DATA((byte)0x00),
-        OTHER_DATA((byte)0x01);
+        IMAGE_DATA(CameraProtocol.DataType.IMAGE_DATA),
+        OTHER_DATA(CameraProtocol.DataType.OTHER_DATA),
+        IMAGE_HEADER(CameraProtocol.DataType.IMAGE_HEADER);
 
         private final byte value;
         BLUETOOTH_DATA_TYPE(byte b) {
@@ -91,12 +133,15 @@ public class BluetoothDataParser {
     }
 
     enum BLUETOOTH_RESPONSE_TYPE {
-        RESPONSE_FOR_TIME_REQUEST((byte)0x00),
-        RESPONSE_FOR_IMAGE_INCOMING_REQUEST((byte)0x01),
-        RESPONSE_FOR_ARE_YOU_READY_REQUEST((byte)0x02),
-        RESPONSE_FOR_IMAGE_SENT_REQUEST((byte)0x03),
-        RESPONSE_FOR_IMAGE_DATA((byte)0x04),
-        RESPONSE_FOR_OTHER_DATA((byte)0x05);
+        RESPONSE_FOR_TIME_REQUEST(CameraProtocol.ResponseType.RESPONSE_FOR_TIME_REQUEST),
+        RESPONSE_FOR_IMAGE_INCOMING_REQUEST(CameraProtocol.ResponseType.RESPONSE_FOR_IMAGE_INCOMING_REQUEST),
+        RESPONSE_FOR_ARE_YOU_READY_REQUEST(CameraProtocol.ResponseType.RESPONSE_FOR_ARE_YOU_READY_REQUEST),
+        RESPONSE_FOR_IMAGE_SENT_REQUEST(CameraProtocol.ResponseType.RESPONSE_FOR_IMAGE_SENT_REQUEST),
+        RESPONSE_FOR_IMAGE_DATA(CameraProtocol.ResponseType.RESPONSE_FOR_IMAGE_DATA),
+        RESPONSE_FOR_OTHER_DATA(CameraProtocol.ResponseType.RESPONSE_FOR_OTHER_DATA),
+        RESPONSE_FOR_FLOW_CONTROL(CameraProtocol.ResponseType.RESPONSE_FOR_FLOW_CONTROL),
+        RESPONSE_FOR_HELLO_REQUEST(CameraProtocol.ResponseType.RESPONSE_FOR_HELLO_REQUEST),
+        RESPONSE_FOR_BATCH_END_REQUEST(CameraProtocol.ResponseType.RESPONSE_FOR_BATCH_END_REQUEST);
 
         private byte value;
         BLUETOOTH_RESPONSE_TYPE(byte b) {
@@ -108,18 +153,104 @@ public class BluetoothDataParser {
         }
     }
 
-    private static final String BT_TIME_REQUEST = "time please";
-    private static final String BT_SENDING_IMAGE_REQUEST = "image incoming";
-    private static final String BT_R_U_READY_REQUEST = "are you ready";
-    private static final String BT_IMAGE_TX_COMPLETED_REQUEST = "image sent";
-
-
-    private static final String I_AM_READY_RESPONSE = "i am ready";
-    private static final String OK_RESPONSE = "ok";
-    private static final String WAIT_RESPONSE = "wait";
-    private static final String IMAGE_RECEIVED_RESPONSE = "image received";
-    private static final String TIME_RESPONSE = "time:";
-    private static final String INVALID_PACKET_NUMBER_RESPONSE = "invalid packet number";
+    // The wire format (values above, strings below, frame layout) is defined in
+    // src/main/protocol/camera_protocol.schema. CameraProtocol and the codecs are generated from it.
+    private static final String BT_TIME_REQUEST = CameraProtocol.TIME_REQUEST_TEXT;
+    private static final String BT_SENDING_IMAGE_REQUEST = CameraProtocol.SENDING_IMAGE_REQUEST_TEXT;
+    private static final String BT_R_U_READY_REQUEST = CameraProtocol.ARE_YOU_READY_REQUEST_TEXT;
+    private static final String BT_IMAGE_TX_COMPLETED_REQUEST = CameraProtocol.IMAGE_SENT_REQUEST_TEXT;
+
+
+    private static final String I_AM_READY_RESPONSE = CameraProtocol.I_AM_READY_RESPONSE_TEXT;
+    private static final String OK_RESPONSE = CameraProtocol.OK_RESPONSE_TEXT;
+    private static final String WAIT_RESPONSE = CameraProtocol.WAIT_RESPONSE_TEXT;
+    private static final String IMAGE_RECEIVED_RESPONSE = CameraProtocol.IMAGE_RECEIVED_RESPONSE_TEXT;
+    private static final String INVALID_PACKET_NUMBER_RESPONSE = CameraProtocol.INVALID_PACKET_RESPONSE_TEXT;
+    private static final String IMAGE_INVALID_RESPONSE = CameraProtocol.IMAGE_INVALID_RESPONSE_TEXT;
+
+    // Constant responses are encoded once. Sending them does not allocate anything.
+    private static final BluetoothResponseFrame IMAGE_INCOMING_OK_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_INCOMING_REQUEST.getValue(),
+            OK_RESPONSE);
+    private static final BluetoothResponseFrame I_AM_READY_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_ARE_YOU_READY_REQUEST.getValue(),
+            I_AM_READY_RESPONSE);
+    private static final BluetoothResponseFrame IMAGE_RECEIVED_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_SENT_REQUEST.getValue(),
+            IMAGE_RECEIVED_RESPONSE);
+    // a malformed image is refused as soon as it is detected, and again at its image sent request
+    private static final BluetoothResponseFrame IMAGE_DATA_INVALID_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_DATA.getValue(),
+            IMAGE_INVALID_RESPONSE);
+    private static final BluetoothResponseFrame IMAGE_INVALID_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_SENT_REQUEST.getValue(),
+            IMAGE_INVALID_RESPONSE);
+    private static final BluetoothResponseFrame SLOW_DOWN_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_FLOW_CONTROL.getValue(),
+            WAIT_RESPONSE);
+    private static final BluetoothResponseFrame RESUME_FRAME = BluetoothResponseFrame.encode(
+            BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
+            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_FLOW_CONTROL.getValue(),
+            OK_RESPONSE);
+
+    // Backpressure. The socket reader pauses once this many received frames wait in the
+    // pipeline, and resumes when the backlog is down to the low watermark. With slow down
+    // responses on, the camera is also told explicitly to wait and to resume.
+    private static final int _BACKPRESSURE_HIGH_WATERMARK = 96;
+    private static final int _BACKPRESSURE_LOW_WATERMARK = 32;
+    private volatile boolean _sendSlowDownResponses = false;
+
+    // Dispatch table, one row of 256 categories for each communication type. Indexed by
+    // (comm type - BT_REQUEST) * 256 + category.
+    private static final int _COMM_TYPE_BASE = BLUETOOTH_COMM_TYPE.BT_REQUEST.getValue();
+    private static final int _COMM_TYPE_COUNT = BLUETOOTH_COMM_TYPE.values().length;
+    private final BluetoothFrameHandler[] _dispatchTable =
+            new BluetoothFrameHandler[_COMM_TYPE_COUNT * 256];
+
+    // Hello handshake. At most _MAX_PLANNED_IMAGES pending images are planned per hello, the
+    // camera offers the rest in its next session.
+    private static final int _MAX_PLANNED_IMAGES = 256;
+    private static final int _OUR_CAPABILITIES = CameraProtocol.Capability.CAP_FLOW_CONTROL
+            | CameraProtocol.Capability.CAP_BURST_MODE;
+    private static final int _MAX_CHUNK_SIZE = ReceivePipeline.FRAME_CAPACITY - _PREAMBLE_LENGTH - 1;
+    private final HelloRequestDecoder _helloRequest = new HelloRequestDecoder();
+    private final HelloResponseEncoder _helloResponse = new HelloResponseEncoder();
+    private final byte[] _transferPlan = new byte[_MAX_PLANNED_IMAGES / 8];
+    // images of the transfer plan not received yet, the receiver stays armed between them
+    private int _plannedImagesRemaining = 0;
+    // the store names of the pending images are built in here
+    private char[] _storeNameScratch = new char[64];
+
+    // Burst mode. The camera announces a batch, then streams every image as an IMAGE_HEADER
+    // followed by its IMAGE_DATA chunks. Nothing is acknowledged until the batch end, whose
+    // response says which images arrived complete. Only used from the parser thread.
+    private static final int _MAX_BATCH_IMAGES = 256;
+    private final BatchStartDecoder _batchStart = new BatchStartDecoder();
+    private final ImageHeaderDecoder _imageHeader = new ImageHeaderDecoder();
+    private final BatchEndDecoder _batchEnd = new BatchEndDecoder();
+    private final BatchAckEncoder _batchAck = new BatchAckEncoder();
+    private final byte[] _batchReceived = new byte[_MAX_BATCH_IMAGES / 8];
+    private boolean _burstActive = false;
+    private int _burstImageIndex;           // index of the current image in the batch, -1 before the first
+    private int _burstReceivedCount;
+    private int _burstImageSize;            // expected size of the current image
+    private String _burstImageName;
+
+    // Scratch buffer for the responses whose payload changes (time, image data length, hello).
+    // Only used from the parser thread.
+    private static final int _MAX_VARIABLE_PAYLOAD = 64;
+    private final byte[] _responseScratch =
+            new byte[BluetoothResponseFrame.frameLength(_MAX_VARIABLE_PAYLOAD)];
+    private final ByteBuffer _responseScratchBuffer = ByteBuffer.wrap(_responseScratch);
+    private final FrameHeaderEncoder _responseHeader = new FrameHeaderEncoder();
+    private final TimeRequestDecoder _timeRequest = new TimeRequestDecoder();
+    private final TimeResponseEncoder _timeResponse = new TimeResponseEncoder();
 
     /**
      * Constructor class for the Bluetooth data parser.
@@ -129,56 +260,192 @@ public class BluetoothDataParser {
         myBtController = controller;
         myContext = context;
 
-        // create the handler thread
-        myDataParserThread = new dataParserThread(HANDLER_THREAD_NAME);
-        myDataParserThread.start();
-        myDataParserThread.prepareHandler();
+        // fill the dispatch table
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.TIME_REQUEST.getValue(), new _TimeRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.IMAGE_INCOMING_REQUEST.getValue(), new _ImageIncomingRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.ARE_YOU_READY_REQUEST.getValue(), new _AreYouReadyRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.IMAGE_SENT_REQUEST.getValue(), new _ImageSentRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.HELLO_REQUEST.getValue(), new _HelloRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.BATCH_START_REQUEST.getValue(), new _BatchStartRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_REQUEST,
+                BLUETOOTH_REQUEST_TYPE.BATCH_END_REQUEST.getValue(), new _BatchEndRequestHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_DATA,
+                BLUETOOTH_DATA_TYPE.IMAGE_HEADER.getValue(), new _ImageHeaderHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_DATA,
+                BLUETOOTH_DATA_TYPE.IMAGE_DATA.getValue(), new _ImageDataHandler());
+        _registerHandler(BLUETOOTH_COMM_TYPE.BT_DATA,
+                BLUETOOTH_DATA_TYPE.OTHER_DATA.getValue(), new _TelemetryHandler());
+
+        // where the completed images go
+        File imageDirectory = myContext.getExternalFilesDir("Pictures");
+        ImageStore store = _openImageStore(imageDirectory);
+        myImageCatalog = new ImageCatalog(myContext);
+        myStorageQuota = new ImageStorageQuota(store, imageDirectory, myImageCatalog,
+                _STORAGE_QUOTA_BYTES, _STORAGE_FREE_SPACE_FLOOR_BYTES);
+        myStorageQuota.start();
+        myImageStorage = new ImageStorageExecutor(store, _STORAGE_PARALLELISM,
+                _STORAGE_QUEUE_CAPACITY, _STORAGE_COMMIT_BATCH,
+                new _SaveListener(myImageCatalog, myStorageQuota));
+
+        // where the telemetry history goes
+        try {
+            myTelemetryStore = new TelemetryStore(new File(myContext.getFilesDir(), "telemetry"),
+                    TelemetryStore.DEFAULT_QUEUE_CAPACITY);
+            myTelemetryStore.start();
+        } catch (IOException e) {
+            Log.e(TAG, "telemetry history not available", e);
+        }
+
+        // create the receive pipeline. The dispatch stage runs the handlers of the dispatch
+        // table, the storage stage saves the completed images.
+        myReceivePipeline = new ReceivePipeline(ReceivePipeline.DEFAULT_FRAME_RING_CAPACITY,
+                ReceivePipeline.DEFAULT_SAVE_RING_CAPACITY, WaitStrategy.PARK,
+                new _FrameDispatcher(), new _ImageWriter());
+        myReceivePipeline.setWatermarks(_BACKPRESSURE_HIGH_WATERMARK, _BACKPRESSURE_LOW_WATERMARK);
+        myReceivePipeline.setFlowControlListener(new _FlowControl());
+        myReceivePipeline.start();
+
+        // frames read from the socket go straight into the pipeline
+        myBtController.setReceivePipeline(myReceivePipeline);
     }
 
     /**
-     * Stop the handler thread looper.
+     * Stop the receive pipeline threads.
      * This function must be called from the onDestroy method of the application
      * or somewhere else.
      */
-    void stopHandlerThread() {
-        if (myDataParserThread != null) {
-            myDataParserThread.quit();
+    void stopPipeline() {
+        if (myReceivePipeline != null) {
+            myBtController.setReceivePipeline(null);
+            _imageBuffers.close();
+            myReceivePipeline.stop();
+            myImageStorage.shutdown();
+            myStorageQuota.shutdown();
+            _imageCache.clear();
+            if (myTelemetryStore != null) {
+                myTelemetryStore.close();
+            }
         }
     }
 
     /**
-     * Copy the data in the buffer (received on Bluetooth) and post a new Runnable
-     * to parser the data.
-     * @param buffer byte
+     * Catalog of the saved images.
+     * @return ImageCatalog
      */
-    public void dataParser(byte [] buffer) {
-        if (buffer.length == 0) {
-            Log.d(TAG, "dataParser: rcvd buffer size zero");
-            return;
+    ImageCatalog getImageCatalog() {
+        return myImageCatalog;
+    }
+
+    /**
+     * Telemetry reported by the cameras.
+     * @return Telemetry
+     */
+    Telemetry getTelemetry() {
+        return myTelemetry;
+    }
+
+    /**
+     * On-disk history of the telemetry reported by the cameras.
+     * @return TelemetryStore, or null if it could not be opened
+     */
+    TelemetryStore getTelemetryStore() {
+        return myTelemetryStore;
+    }
+
+    /**
+     * Clock synchronization with the cameras.
+     * @return ClockSync
+     */
+    ClockSync getClockSync() {
+        return myClockSync;
+    }
+
+    /**
+     * Get a recently received image from memory. The latest images of each camera are kept
+     * there, so they can be shown without reading them from storage.
+     * @param camera MAC address of the camera
+     * @param name name of the image
+     * @return ImageBuffer holding a reference for the caller, who must release() it, or null if
+     * the image has to be read from storage
+     */
+    ImageBuffer getRecentImage(String camera, String name) {
+        ImageBuffer image = _imageCache.get(camera, name);
+        if (image != null && myStorageQuota != null) {
+            myStorageQuota.onImageAccessed(camera, name);
         }
+        return image;
+    }
 
-        // post runnable to parse the data
-        myDataParserThread.postTask(new _parseData(buffer));
+    /**
+     * Give memory back when the system runs low, forwarded from onTrimMemory() of the activity.
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     */
+    void onTrimMemory(int level) {
+        _imageCache.onTrimMemory(level);
+        // the assembly buffers beyond the first are allocated again when needed
+        _imageBuffers.trim();
     }
 
     /**
-     * Runnable class that sends response to the Bluetooth device.
+     * Disk quota of the saved images. Tell it when an image is viewed or exported.
+     * @return ImageStorageQuota
      */
-    private class _sendResponse implements Runnable {
-        private byte _responseBuffer[];
-        private BluetoothController btCnt;
+    ImageStorageQuota getStorageQuota() {
+        return myStorageQuota;
+    }
 
-        public _sendResponse(byte[] responseBuffer, BluetoothController btController) {
-            _responseBuffer = new byte[responseBuffer.length];
-            System.arraycopy(responseBuffer, 0, _responseBuffer, 0,
-                    responseBuffer.length);
-            btCnt = btController;
+    /**
+     * Open the store for the received images.
+     * @param directory image directory, null if storage is not available
+     * @return ImageStore
+     */
+    private static ImageStore _openImageStore(File directory) {
+        if (_USE_SEGMENT_STORE && directory != null) {
+            try {
+                return new SegmentImageStore(new File(directory, "segments"),
+                        SegmentImageStore.DEFAULT_SEGMENT_BYTES);
+            } catch (IOException e) {
+                Log.e(TAG, "_openImageStore: segment store not available, using files", e);
+            }
         }
+        return new FileImageStore(directory, true);
+    }
 
-        @Override
-        public void run() {
-            btCnt.sendData(_responseBuffer);
+    /**
+     * Choose whether the camera is sent explicit "wait" / "ok" flow control responses when the
+     * receive pipeline falls behind. The socket reader pauses either way.
+     * @param enabled
+     */
+    void setSlowDownResponses(boolean enabled) {
+        _sendSlowDownResponses = enabled;
+    }
+
+    /**
+     * Copy the data in the buffer (received on Bluetooth) into the receive pipeline. Only used
+     * when the data does not come from the BluetoothService reader, which writes into the
+     * pipeline directly. Must always be called from the same thread.
+     * @param buffer byte
+     */
+    public void dataParser(byte [] buffer) {
+        if (buffer.length == 0) {
+            Log.d(TAG, "dataParser: rcvd buffer size zero");
+            return;
+        }
+
+        ReceiveFrame frame = myReceivePipeline.claimFrame();
+        if (frame == null) {
+            return;
         }
+        int length = Math.min(buffer.length, frame.data.length);
+        System.arraycopy(buffer, 0, frame.data, 0, length);
+        frame.length = length;
+        myReceivePipeline.publishFrame();
     }
 
     /**
@@ -200,291 +467,730 @@ public class BluetoothDataParser {
        return ((long) b) & 0xffL;
     }
 
+    // Telemetry. OTHER_DATA frames carry samples of the camera's battery, temperature, RSSI
+    // and wake count, kept per camera in primitive rings.
+    private static final int _TELEMETRY_SAMPLE_LENGTH = 5;      // u8 metric, u32 value
+    private final TelemetryReportDecoder _telemetryReport = new TelemetryReportDecoder();
+    private final Telemetry myTelemetry = new Telemetry();
+    private TelemetryStore myTelemetryStore;
+
+    // offset and drift of the camera clocks
+    private final ClockSync myClockSync = new ClockSync();
+
     /**
-     * Data parser runnable. This task is posted each time command is
-     * received on Bluetooth.
-     *
+     * Dispatch stage of the receive pipeline. Runs the handler of each decoded frame.
      */
-    private class _parseData implements Runnable {
-        private byte[] cmdBuffer;
-        private int cmdLength;
-
-        public _parseData(byte[] buffer) {
-            // copy the command
-            cmdBuffer = new byte[buffer.length];
-            cmdLength = buffer.length;
-            System.arraycopy(buffer, 0, cmdBuffer, 0, buffer.length);
+    private class _FrameDispatcher implements ReceivePipeline.FrameDispatcher {
+        @Override
+        public void dispatch(ReceiveFrame frame) {
+            if (D)
+                Log.d(TAG, "_parserData run: len: " + frame.length + " packet number "
+                        + frame.packetNumber);
+
+            BluetoothFrameHandler handler = _lookupHandler(frame.commType, frame.category);
+            if (handler != null) {
+                handler.handle(frame);
+            } else if (D) {
+                Log.d(TAG, "_parserData run: no handler for type " + frame.commType
+                        + " category " + frame.category);
+            }
         }
+    }
 
+    /**
+     * Sends the flow control responses when the socket reader pauses and resumes.
+     */
+    private class _FlowControl implements ReceivePipeline.FlowControlListener {
         @Override
-        public void run() {
-            Log.d(TAG, "_parserData run: len: " + cmdLength);
-
-            if (cmdLength < _PREAMBLE_LENGTH) {
-                return;
+        public void onReaderPaused() {
+            if (_sendSlowDownResponses) {
+                SLOW_DOWN_FRAME.send(myBtController);
             }
+        }
 
-            // now we start parsing the data
-            byte header = cmdBuffer[0];
-            byte category = cmdBuffer[1];
-
-            // in JAVA bytes are signed and we are sending unsigned bytes from camera. This can be
-            // a problem. Even after casting bytes into long we can only go up to 250, any values
-            // beyond that does not work and is capped out at 250. The problem is evident when
-            // sending image, where the payload length is > 250 and maybe this will also effect the
-            // image data. But that is yet to be verified.
-//            long payloadLength = getLongFromInt(cmdBuffer[2]) | getLongFromInt(cmdBuffer[3]) >> 8;
-            int packetNumber = getIntFromByte(cmdBuffer[4]) | getIntFromByte(cmdBuffer[5]) >> 8;
-
-            // to fix the problem with the payload length, we will extract that information directly
-            // from the fact that we know how the data packet is organized.
-            int payloadLength = cmdLength - _PREAMBLE_LENGTH;
+        @Override
+        public void onReaderResumed() {
+            if (_sendSlowDownResponses) {
+                RESUME_FRAME.send(myBtController);
+            }
+        }
+    }
 
-            if (header == BLUETOOTH_COMM_TYPE.BT_REQUEST.getValue()) {
-                // we have received request over Bluetooth
-                Log.d(TAG, "_parserData run: bt request");
-                _handleBTRequest(category, new String(cmdBuffer, _PREAMBLE_LENGTH, payloadLength));
+    /**
+     * Register a handler in the dispatch table.
+     * @param commType communication type of the frames handled
+     * @param category category of the frames handled
+     * @param handler
+     */
+    private void _registerHandler(BLUETOOTH_COMM_TYPE commType, byte category,
+                                  BluetoothFrameHandler handler) {
+        _dispatchTable[((commType.getValue() - _COMM_TYPE_BASE) << 8) | getIntFromByte(category)] = handler;
+    }
 
-            } else if (header == BLUETOOTH_COMM_TYPE.BT_DATA.getValue()) {
-                Log.d(TAG, "_parserData run: bt data");
-                _handleBTData(category, cmdBuffer, packetNumber);
+    /**
+     * Find the handler for a frame in the dispatch table.
+     * @param commType communication type byte of the frame
+     * @param category category byte of the frame
+     * @return BluetoothFrameHandler, or null if the frame is not handled
+     */
+    private BluetoothFrameHandler _lookupHandler(byte commType, byte category) {
+        int row = commType - _COMM_TYPE_BASE;
+        if (row < 0 || row >= _COMM_TYPE_COUNT) {
+            return null;
+        }
+        return _dispatchTable[(row << 8) | getIntFromByte(category)];
+    }
 
-            } else if (header == BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue()) {
-                Log.d(TAG, "_parserData run: bt response");
+    /**
+     * Decode the ASCII payload of a frame. Only the handlers that need the payload as a string
+     * call this. Trailing '\0' terminators are dropped.
+     * @param frame
+     * @param length number of valid bytes in the frame
+     * @return String
+     */
+    private static String _decodeAsciiPayload(byte[] frame, int length) {
+        int end = length;
+        while (end > _PREAMBLE_LENGTH && frame[end - 1] == '\0') {
+            end--;
+        }
+        return new String(frame, _PREAMBLE_LENGTH, end - _PREAMBLE_LENGTH,
+                BluetoothResponseFrame.ASCII);
+    }
 
+    /**
+     * Time request: send the millis from Epoch time as response, with the receive and transmit
+     * times of an NTP style exchange. The receive time is when the frame was read from the
+     * socket, not when it got through the pipeline.
+     */
+    private class _TimeRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            if (D)
+                Log.d(TAG, "_handleBTRequest: time request");
+
+            myClockSync.rebase();
+            long receiveMillis = frame.receivedNanos != 0
+                    ? myClockSync.toMillis(frame.receivedNanos) : myClockSync.nowMillis();
+            long originateMillis = 0;
+            long lastArrivalMillis = 0;
+            // older cameras send TIME_REQUEST_TEXT instead of a TimeRequest
+            if (frame.payloadLength >= TimeRequestDecoder.FIXED_LENGTH) {
+                _timeRequest.wrap(frame.buffer, _PREAMBLE_LENGTH);
+                originateMillis = _timeRequest.transmitMillis();
+                lastArrivalMillis = _timeRequest.lastArrivalMillis();
             }
 
-            Log.d(TAG, "_parserData run: payload length " + payloadLength
-                    + " packet number " + packetNumber);
-        }
-    }
-
-    /**
-     * Process the data received over Bluetooth and send response if needed.
-     * @param dataCategory
-     * @param data
-     * @param packetNumber
-     */
-    public void _handleBTData(byte dataCategory, byte [] data, int packetNumber) {
-        if (dataCategory == BLUETOOTH_DATA_TYPE.IMAGE_DATA.getValue()) {
-            Log.d(TAG, "_handleBTData: image date, pkt number "+packetNumber);
-            if(data.length > 0 && _image_flag) {
-                // extract the payload length
-                int len = data.length - _PREAMBLE_LENGTH;
-
-                // check the packet number. We are expecting a packet that is one greater than
-                // current one.
-//                if (_currentImagePacketNumber + 1 == packetNumber) {
-                    // copy the image data into the buffer
-                    System.arraycopy(data, _PREAMBLE_LENGTH, _imageBuffer,
-                            _currentImageBufferPosition,
-                            len);
-
-                    // change the image buffer properties
-                    _currentImageBufferPosition += len;
-                    _currentImagePacketNumber = packetNumber;
-
-                    // send the response
-                    myDataParserThread.postTask(new _sendResponse(
-                            _prepareResponse(BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
-                                    BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_DATA.getValue(),
-                                    String.valueOf(len).getBytes()),
-                            myBtController));
-//                } else {
-//                    // invalid packet number response
-//                    myDataParserThread.postTask(new _sendResponse(
-//                            _prepareResponse(BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
-//                                    BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_DATA.getValue(),
-//                                    INVALID_PACKET_NUMBER_RESPONSE.getBytes()),
-//                            myBtController));
-//                }
+            long transmitMillis = myClockSync.nowMillis();
+            int payloadLength = _writeTimeResponse(originateMillis, receiveMillis, transmitMillis);
+            _sendScratchResponse(BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_TIME_REQUEST.getValue(),
+                    payloadLength);
+            if (originateMillis != 0) {
+                myClockSync.onExchange(_cameraOf(frame), originateMillis, lastArrivalMillis,
+                        receiveMillis, transmitMillis);
             }
         }
     }
 
     /**
-     * Process the Bluetooth request and send response if needed.
-     * @param requestCategory
-     * @param requestPayload
+     * Image incoming request: prepare to receive the image data.
      */
-    public void _handleBTRequest(byte requestCategory, String requestPayload) {
-        Log.d(TAG, "_handleBTRequest: payload:  "+ requestPayload);
-
-        if (requestCategory == BLUETOOTH_REQUEST_TYPE.TIME_REQUEST.getValue()) {
-            Log.d(TAG, "_handleBTRequest: time request");
-
-            // send the millis from Epoch time as response
-            myDataParserThread.postTask(new _sendResponse(
-                    _prepareResponse(BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
-                            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_TIME_REQUEST.getValue(),
-                            _getCurrentTimeResponse()),
-                    myBtController));
-
-        } else if (requestCategory == BLUETOOTH_REQUEST_TYPE.IMAGE_INCOMING_REQUEST.getValue()) {
-            Log.d(TAG, "_handleBTRequest: incoming image request");
+    private class _ImageIncomingRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            if (D)
+                Log.d(TAG, "_handleBTRequest: incoming image request");
 
             // prepare to receive the image data
-            _image_flag = true;
-            _currentImageBufferPosition = 0;
-            _currentImagePacketNumber = 0;
+            _armImageReceiver();
 
             // send the response
-            myDataParserThread.postTask(new _sendResponse(
-                    _prepareResponse(BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
-                            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_INCOMING_REQUEST.getValue(),
-                            OK_RESPONSE.getBytes()),
-                    myBtController));
+            IMAGE_INCOMING_OK_FRAME.send(myBtController);
+        }
+    }
 
-        } else if (requestCategory == BLUETOOTH_REQUEST_TYPE.ARE_YOU_READY_REQUEST.getValue()) {
-            Log.d(TAG, "_handleBTRequest: are you ready request");
+    /**
+     * Are you ready request: always ready.
+     */
+    private class _AreYouReadyRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            if (D)
+                Log.d(TAG, "_handleBTRequest: are you ready request");
 
-            // send the response
-            myDataParserThread.postTask(new _sendResponse(
-                    _prepareResponse(BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
-                            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_ARE_YOU_READY_REQUEST.getValue(),
-                            I_AM_READY_RESPONSE.getBytes()),
-                    myBtController));
+            I_AM_READY_FRAME.send(myBtController);
+        }
+    }
 
-        } else if (requestCategory == BLUETOOTH_REQUEST_TYPE.IMAGE_SENT_REQUEST.getValue()) {
-            Log.d(TAG, "_handleBTRequest: image sent request, file name " + requestPayload);
+    /**
+     * Image sent request: the payload is the file name of the image. Save the received image.
+     */
+    private class _ImageSentRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            String fileName = _decodeAsciiPayload(frame.data, frame.length);
+            if (D)
+                Log.d(TAG, "_handleBTRequest: image sent request, file name " + fileName);
+
+            boolean valid = !_imageRejected && _jpegState == JpegScanner.COMPLETE;
+            if (!valid) {
+                if (!_imageRejected) {
+                    _rejectImage(fileName, "incomplete image, " + _currentImageBufferPosition
+                            + " bytes");
+                }
+                if (_retryImage(fileName)) {
+                    // ask for the image again, it is received into the same buffer
+                    IMAGE_INVALID_FRAME.send(myBtController);
+                    _armImageReceiver();
+                    return;
+                }
+                Log.e(TAG, "_handleBTRequest: giving up on " + fileName);
+            }
+            _retryImageName = null;
 
             // send the response
-            myDataParserThread.postTask(new _sendResponse(
-                    _prepareResponse(BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(),
-                            BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_SENT_REQUEST.getValue(),
-                            IMAGE_RECEIVED_RESPONSE.getBytes()),
-                    myBtController));
+            IMAGE_RECEIVED_FRAME.send(myBtController);
 
             // reset the image flag.
             _image_flag = false;
 
-            // save the image to local storage
-            new SavePhotoTask().execute(_imageBuffer, requestPayload);
+            // hand the image to the storage stage
+            if (valid) {
+                _handOffImage(fileName, frame);
+            }
 
             // reset the image buffer position.
             _currentImageBufferPosition = 0;
             _currentImagePacketNumber = 0;
+
+            // the hello's transfer plan has more images coming, receive the next one
+            if (_plannedImagesRemaining > 0) {
+                _plannedImagesRemaining--;
+                if (_plannedImagesRemaining > 0) {
+                    _armImageReceiver();
+                }
+            }
         }
     }
 
     /**
-     * Prepare the response for Bluetooth requests.
-     * @param Bluetooth communication type: Request, Data, or Response
-     * @param category Category of the communication
-     * @param payload
-     * @return byte []
+     * Hello request: the camera's capabilities, status and pending images in one frame. Answered
+     * with one frame holding the time, our readiness, the negotiated parameters and the transfer
+     * plan, which saves the are you ready, time and image incoming round trips. The receiver is
+     * armed for the planned images, the camera can start sending right away.
      */
-    private byte [] _prepareResponse(byte commType, byte category, byte [] payload) {
-        int temp = payload.length;
-        byte[] returnArr = new byte[temp + _PREAMBLE_LENGTH + 1];
+    private class _HelloRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            int end = frame.length;
+            _helloRequest.wrap(frame.buffer, _PREAMBLE_LENGTH);
+            int pendingCount;
+            int entry;
+            int entriesEnd;
+            try {
+                if (_helloRequest.encodedLength() > end - _PREAMBLE_LENGTH) {
+                    Log.e(TAG, "_HelloRequestHandler: truncated hello, " + frame.length + " bytes");
+                    return;
+                }
+                pendingCount = _helloRequest.pendingImageCount();
+                entry = _helloRequest.pendingImagesDataOffset();
+                entriesEnd = entry + _helloRequest.pendingImagesLength();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "_HelloRequestHandler: malformed hello", e);
+                return;
+            }
 
-        // set the communication type: Request, Data, or Response
-        returnArr[0] = commType;
+            _recordTelemetry(_cameraOf(frame), CameraProtocol.TelemetryMetric.METRIC_BATTERY_PERCENT,
+                    System.currentTimeMillis(), _helloRequest.batteryPercent());
+
+            int capabilities = _helloRequest.capabilities() & _OUR_CAPABILITIES;
+            int chunkSize = Math.min(_helloRequest.maxChunkSize(), _MAX_CHUNK_SIZE);
+            if (D)
+                Log.d(TAG, "_HelloRequestHandler: version " + _helloRequest.protocolVersion()
+                        + ", battery " + _helloRequest.batteryPercent() + "%, status 0x"
+                        + Integer.toHexString(_helloRequest.statusFlags()) + ", "
+                        + pendingCount + " pending images");
+
+            // plan the transfer: every pending image we do not have yet. Whether we have it comes
+            // from the index of the quota, and the free space is read once for the whole plan.
+            boolean ready = myImageStorage.getStore().isWritable();
+            Arrays.fill(_transferPlan, (byte) 0);
+            int planned = 0;
+            long plannedBytes = 0;
+            long room = ready ? myStorageQuota.availableBytes() : 0;
+            String storePrefix = ImageStorageExecutor.storeNameOf(_cameraOf(frame), "");
+            try {
+                for (int i = 0; i < pendingCount && entry < entriesEnd; i++) {
+                    int imageSize = ProtocolBits.getVarint(frame.buffer, entry);
+                    entry += ProtocolBits.varintSize(frame.buffer, entry);
+                    int nameLength = ProtocolBits.getVarint(frame.buffer, entry);
+                    int nameOffset = entry + ProtocolBits.varintSize(frame.buffer, entry);
+                    entry = nameOffset + nameLength;
+                    if (!ready || i >= _MAX_PLANNED_IMAGES || entry > entriesEnd) {
+                        continue;
+                    }
+
+                    if (imageSize <= _imageBufferSize && plannedBytes + imageSize <= room
+                            && myStorageQuota.sizeOf(_storeNameOf(storePrefix, frame.data,
+                                    nameOffset, nameLength)) != imageSize) {
+                        _transferPlan[i >> 3] |= (byte) (1 << (i & 7));
+                        planned++;
+                        plannedBytes += imageSize;
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "_HelloRequestHandler: malformed pending image list", e);
+            }
+
+            // session parameters. Burst mode is the default when all pending images are wanted
+            // and the camera supports it, otherwise the planned images come one by one.
+            _sendSlowDownResponses = (capabilities & CameraProtocol.Capability.CAP_FLOW_CONTROL) != 0;
+            boolean burst = (capabilities & CameraProtocol.Capability.CAP_BURST_MODE) != 0
+                    && planned > 0 && planned == pendingCount;
+            _plannedImagesRemaining = burst ? 0 : planned;
+            if (planned > 0 && !burst) {
+                _armImageReceiver();
+            }
 
-        // set the category of the communication type
-        returnArr[1] = category;
+            int planLength = (Math.min(pendingCount, _MAX_PLANNED_IMAGES) + 7) >> 3;
+            int payloadLength = _helloResponse.wrap(_responseScratchBuffer, _PREAMBLE_LENGTH)
+                    .epochMillis(myClockSync.nowMillis())
+                    .ready(ready ? 1 : 0)
+                    .capabilities(capabilities)
+                    .maxChunkSize(chunkSize)
+                    .transferMode(burst ? CameraProtocol.TransferMode.TRANSFER_BURST
+                            : CameraProtocol.TransferMode.TRANSFER_PER_IMAGE)
+                    .imageCount(planned)
+                    .putTransferPlan(_transferPlan, 0, planLength)
+                    .encodedLength();
+            _sendScratchResponse(BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_HELLO_REQUEST.getValue(),
+                    payloadLength);
+        }
+    }
 
-        // set the length
-        returnArr[3] = (byte) (temp >> 8);
-        returnArr[2] = (byte) (temp);
+    /**
+     * Batch start request: the camera starts a burst. No response, the images follow at once.
+     */
+    private class _BatchStartRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            int imageCount = frame.length > _PREAMBLE_LENGTH
+                    ? _batchStart.wrap(frame.buffer, _PREAMBLE_LENGTH).imageCount() : 0;
+            if (D)
+                Log.d(TAG, "_BatchStartRequestHandler: batch of " + imageCount + " images");
+
+            _burstActive = true;
+            _burstImageIndex = -1;
+            _burstReceivedCount = 0;
+            _burstImageName = null;
+            _image_flag = false;
+            Arrays.fill(_batchReceived, (byte) 0);
+        }
+    }
+
+    /**
+     * Image header: the next image of the batch starts. The previous one, if not complete, is
+     * missing from the batch.
+     */
+    private class _ImageHeaderHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            if (!_burstActive) {
+                Log.e(TAG, "_ImageHeaderHandler: image header outside of a batch");
+                return;
+            }
+            if (_image_flag) {
+                Log.e(TAG, "_ImageHeaderHandler: image " + _burstImageName + " is incomplete, "
+                        + _currentImageBufferPosition + " of " + _burstImageSize + " bytes");
+            }
 
-        // set the packet number
-        returnArr[5] = (byte) (1 >> 8);
-        returnArr[4] = (byte) (1);
+            _burstImageIndex++;
+            _burstImageName = null;
+            _image_flag = false;
+            try {
+                _imageHeader.wrap(frame.buffer, _PREAMBLE_LENGTH);
+                if (_imageHeader.encodedLength() > frame.length - _PREAMBLE_LENGTH) {
+                    Log.e(TAG, "_ImageHeaderHandler: truncated image header");
+                    return;
+                }
+                long size = _imageHeader.imageSize();
+                if (size <= 0 || size > _imageBufferSize) {
+                    Log.e(TAG, "_ImageHeaderHandler: image of " + size + " bytes does not fit");
+                    return;
+                }
+                _burstImageSize = (int) size;
+                _burstImageName = new String(frame.data, _imageHeader.nameDataOffset(),
+                        _imageHeader.nameLength(), BluetoothResponseFrame.ASCII);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "_ImageHeaderHandler: malformed image header", e);
+                return;
+            }
 
-        // now copy the payload.
-        System.arraycopy(payload, 0, returnArr, _PREAMBLE_LENGTH, payload.length);
-        returnArr[payload.length + _PREAMBLE_LENGTH] = '\0';    // this is added for string
-        return returnArr;
+            if (D)
+                Log.d(TAG, "_ImageHeaderHandler: image " + _burstImageIndex + " "
+                        + _burstImageName + ", " + _burstImageSize + " bytes");
+            _armImageReceiver();
+        }
     }
 
     /**
-     * Data parser handler thread. Post the data task to the handler thread queue.
+     * Batch end request: acknowledge the whole batch with the images received complete.
      */
-    private class dataParserThread extends HandlerThread{
-        // handler for this thread, used to post task to message queue
-        private Handler dataParserHandler;
+    private class _BatchEndRequestHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            int sent = frame.length > _PREAMBLE_LENGTH
+                    ? _batchEnd.wrap(frame.buffer, _PREAMBLE_LENGTH).imageCount() : 0;
+            if (D)
+                Log.d(TAG, "_BatchEndRequestHandler: camera sent " + sent + " images, received "
+                        + _burstReceivedCount);
+
+            int ackedImages = Math.min(Math.max(sent, _burstImageIndex + 1), _MAX_BATCH_IMAGES);
+            int payloadLength = _batchAck.wrap(_responseScratchBuffer, _PREAMBLE_LENGTH)
+                    .receivedCount(_burstReceivedCount)
+                    .putReceivedImages(_batchReceived, 0, (ackedImages + 7) >> 3)
+                    .encodedLength();
+            _sendScratchResponse(BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_BATCH_END_REQUEST.getValue(),
+                    payloadLength);
+
+            _burstActive = false;
+            _burstImageName = null;
+            _image_flag = false;
+        }
+    }
 
-        /**
-         * Constructor, which takes the name of the HandlerThread and calls the super class.
-         * @param name
-         */
-        public dataParserThread(String name) {
-            super(name);
+    /**
+     * The current burst image has all its bytes: save it and note it in the batch ack.
+     * @param frame the frame that completed the image
+     */
+    private void _completeBurstImage(ReceiveFrame frame) {
+        _image_flag = false;
+        if (_jpegState != JpegScanner.COMPLETE) {
+            // left out of the batch ack, so the camera sends it again
+            _rejectImage(_burstImageName, "no EOI marker");
+            _burstImageName = null;
+            return;
         }
+        _handOffImage(_burstImageName, frame);
+        if (_burstImageIndex < _MAX_BATCH_IMAGES) {
+            _batchReceived[_burstImageIndex >> 3] |= (byte) (1 << (_burstImageIndex & 7));
+        }
+        _burstReceivedCount++;
+        _burstImageName = null;
+    }
 
-        /**
-         * Post a runnable task to the handler thread.
-         * @param task
-         */
-        public void postTask(Runnable task) {
-            dataParserHandler.post(task);
+    /**
+     * Telemetry report: record every sample in the series of its camera and metric. Samples of
+     * unknown metrics are skipped, newer cameras may report more than we know.
+     */
+    private class _TelemetryHandler implements BluetoothFrameHandler {
+        @Override
+        public void handle(ReceiveFrame frame) {
+            String camera = _cameraOf(frame);
+            long now = System.currentTimeMillis();
+            try {
+                _telemetryReport.wrap(frame.buffer, _PREAMBLE_LENGTH);
+                if (_telemetryReport.encodedLength() > frame.length - _PREAMBLE_LENGTH) {
+                    Log.e(TAG, "_TelemetryHandler: truncated report, " + frame.length + " bytes");
+                    return;
+                }
+                int count = _telemetryReport.sampleCount();
+                int sample = _telemetryReport.samplesDataOffset();
+                int samplesEnd = sample + _telemetryReport.samplesLength();
+                for (int i = 0; i < count && sample + _TELEMETRY_SAMPLE_LENGTH <= samplesEnd;
+                     i++, sample += _TELEMETRY_SAMPLE_LENGTH) {
+                    int metric = frame.buffer.get(sample) & 0xFF;
+                    int raw = (int) ProtocolBits.getU32(frame.buffer, sample + 1);
+                    _recordTelemetry(camera, metric, now, Telemetry.toUnit(metric, raw));
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "_TelemetryHandler: malformed report", e);
+            }
         }
+    }
 
-        /**
-         * Get the handler for the handler thread. Make sure to create the thread for the
-         * handler thread before calling this function.
-         */
-        public void prepareHandler(){
-            dataParserHandler = new Handler(getLooper());
+    /**
+     * Record a telemetry sample in memory, and queue it for the on-disk history. Samples of
+     * unknown metrics are not stored.
+     */
+    private void _recordTelemetry(String camera, int metric, long timeMillis, float value) {
+        if (myTelemetry.record(camera, metric, timeMillis, value) && myTelemetryStore != null) {
+            myTelemetryStore.append(camera, metric, timeMillis, value);
         }
     }
 
     /**
-     * Reverse a byte array in-place.
-     * @param array
+     * Name in the store of an image whose name is given in ASCII bytes, built in one allocation.
+     * Only used from the parser thread.
+     * @param prefix ImageStorageExecutor.storeNameOf() of the camera and an empty name
+     * @param name
+     * @param offset
+     * @param length
+     * @return String
      */
-    public static void reverse(byte[] array) {
-        if (array == null) {
+    private String _storeNameOf(String prefix, byte[] name, int offset, int length) {
+        int total = prefix.length() + length;
+        if (_storeNameScratch.length < total) {
+            _storeNameScratch = new char[total];
+        }
+        prefix.getChars(0, prefix.length(), _storeNameScratch, 0);
+        for (int i = 0; i < length; i++) {
+            byte b = name[offset + i];
+            // as the ASCII decoder does, a byte outside of ASCII becomes the replacement char
+            _storeNameScratch[prefix.length() + i] = b >= 0 ? (char) b : '\uFFFD';
+        }
+        return new String(_storeNameScratch, 0, total);
+    }
+
+    /**
+     * MAC address of the camera a frame came from.
+     * @param frame
+     * @return String
+     */
+    private static String _cameraOf(ReceiveFrame frame) {
+        return frame.device != null ? frame.device.getAddress() : _UNKNOWN_CAMERA;
+    }
+
+    /**
+     * Hand the image assembled in the image buffer to the storage stage. The buffer goes with
+     * it, the next image is assembled in another one.
+     * @param fileName
+     * @param frame the frame that completed the image
+     */
+    private void _handOffImage(String fileName, ReceiveFrame frame) {
+        if (_imageBuffer == null) {
             return;
         }
-        int i = 0;
-        int j = array.length - 1;
-        byte tmp;
-        while (j > i) {
-            tmp = array[j];
-            array[j] = array[i];
-            array[i] = tmp;
-            j--;
-            i++;
+        ImageSaveJob job = myReceivePipeline.claimSaveJob();
+        if (job == null) {
+            return;
         }
+        _imageBuffer.setLength(_currentImageBufferPosition);
+        job.image = _imageBuffer;
+        job.fileName = fileName;
+        job.cameraAddress = _cameraOf(frame);
+        // the capture time from the EXIF data, set by the camera clock, else the time of receipt
+        long captureTime = _jpegScanner.getCaptureTimeMillis();
+        job.captureTimeMillis = captureTime >= 0
+                ? myClockSync.toPhoneTime(job.cameraAddress, captureTime) : myClockSync.nowMillis();
+        job.width = _jpegScanner.getWidth();
+        job.height = _jpegScanner.getHeight();
+        _imageCache.put(job.cameraAddress, fileName, _imageBuffer);
+        _imageBuffer = null;
+        myReceivePipeline.publishSaveJob();
     }
 
     /**
-     * Prepare the response for BT_TIME_REQUEST.
-     * @return byte []
+     * Prepare to receive the data of the next image. Takes a free assembly buffer unless the
+     * current one was not handed off, this waits while every buffer is still being saved.
      */
-    private byte [] _getCurrentTimeResponse() {
-        long timeStamp = Utils.getCurrentTime();
-        byte[] bytes = ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(timeStamp).array();
-        Log.d(TAG, "_getCurrentTimeResponse: " + String.valueOf(timeStamp));
-        reverse(bytes);
-        return bytes;
+    private void _armImageReceiver() {
+        if (_imageBuffer == null) {
+            _imageBuffer = _imageBuffers.acquire();
+        }
+        _image_flag = _imageBuffer != null;
+        _currentImageBufferPosition = 0;
+        _currentImagePacketNumber = 0;
+        _jpegScanner.reset();
+        _jpegState = JpegScanner.NEED_MORE;
+        _imageRejected = false;
     }
 
+    /**
+     * Count a retry of a rejected image.
+     * @param fileName
+     * @return false if the image was asked for again too often already
+     */
+    private boolean _retryImage(String fileName) {
+        if (!fileName.equals(_retryImageName)) {
+            _retryImageName = fileName;
+            _retryCount = 0;
+        }
+        return ++_retryCount <= _MAX_IMAGE_RETRIES;
+    }
+
+    /**
+     * The image being received is malformed: keep none of it. Its buffer stays with the receiver
+     * for the next image.
+     * @param fileName name of the image, if known
+     * @param reason
+     */
+    private void _rejectImage(String fileName, String reason) {
+        Log.e(TAG, "_rejectImage: " + fileName + " rejected, " + reason);
+        BluetoothMetrics.get().recordImageRejected();
+        _imageRejected = true;
+    }
 
     /**
-     * AsyncTask to save the photo in the memory
+     * Image data: append the chunk to the image buffer and acknowledge its length.
      */
-    class SavePhotoTask extends AsyncTask<Object, String, String> {
+    private class _ImageDataHandler implements BluetoothFrameHandler {
         @Override
-        protected String doInBackground(Object... objects) {
-            File photo = new File(myContext.getExternalFilesDir("Pictures"), (String)objects[1]);
-            if (photo.exists()) {
-                Log.d(TAG, "SavePhotoTask: file exists, deleting...");
-                photo.delete();
+        public void handle(ReceiveFrame frame) {
+            if (D)
+                Log.d(TAG, "_handleBTData: image date, pkt number "+frame.packetNumber);
+
+            if(_image_flag) {
+                // the chunk as read is acknowledged, but the image data is only the payload, the
+                // '\0' after it is not part of the image
+                int chunk = frame.length - _PREAMBLE_LENGTH;
+                int len = Math.min(chunk, frame.payloadLength);
+                if (_imageRejected) {
+                    // the camera finishes sending the image, acknowledged without keeping it
+                    _sendScratchResponse(BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_DATA.getValue(),
+                            _writeDecimal(_responseScratch, _PREAMBLE_LENGTH, chunk));
+                    return;
+                }
+                if (_burstActive) {
+                    len = Math.min(len, _burstImageSize - _currentImageBufferPosition);
+                }
+                if (_currentImageBufferPosition + len > _imageBufferSize) {
+                    _rejectImage(_burstActive ? _burstImageName : null,
+                            "image larger than " + _imageBufferSize + " bytes");
+                    if (_burstActive) {
+                        _image_flag = false;
+                    } else {
+                        IMAGE_DATA_INVALID_FRAME.send(myBtController);
+                    }
+                    return;
+                }
+
+                // copy the image data into the buffer
+                System.arraycopy(frame.data, _PREAMBLE_LENGTH, _imageBuffer.data(),
+                        _currentImageBufferPosition,
+                        len);
+
+                // change the image buffer properties
+                _currentImageBufferPosition += len;
+                _currentImagePacketNumber = frame.packetNumber;
+
+                // check the new bytes in place
+                _jpegState = _jpegScanner.scan(_imageBuffer.data(), _currentImageBufferPosition);
+                if (_jpegState == JpegScanner.INVALID) {
+                    _rejectImage(_burstActive ? _burstImageName : null, _jpegScanner.getError());
+                    if (_burstActive) {
+                        // the rest of the image is skipped, the batch ack leaves it out
+                        _image_flag = false;
+                    } else {
+                        IMAGE_DATA_INVALID_FRAME.send(myBtController);
+                    }
+                    return;
+                }
+
+                if (_burstActive) {
+                    // no acknowledgement per chunk, the batch end acknowledges everything
+                    if (_currentImageBufferPosition >= _burstImageSize) {
+                        _completeBurstImage(frame);
+                    }
+                    return;
+                }
+
+                // send the response, the payload is the chunk length as decimal ASCII
+                _sendScratchResponse(BLUETOOTH_RESPONSE_TYPE.RESPONSE_FOR_IMAGE_DATA.getValue(),
+                        _writeDecimal(_responseScratch, _PREAMBLE_LENGTH, chunk));
             }
+        }
+    }
+
+    /**
+     * Finish the response in the scratch buffer, whose payload is already written, and send it.
+     * @param category response category
+     * @param payloadLength length of the payload written after the header
+     */
+    private void _sendScratchResponse(byte category, int payloadLength) {
+        BluetoothResponseFrame.writeHeader(_responseHeader, _responseScratchBuffer,
+                BLUETOOTH_COMM_TYPE.BT_RESPONSE.getValue(), category, payloadLength);
+        _responseScratch[_PREAMBLE_LENGTH + payloadLength] = '\0';    // this is added for string
+        myBtController.sendData(_responseScratch, 0,
+                BluetoothResponseFrame.frameLength(payloadLength));
+    }
 
+    /**
+     * Write a non negative int as decimal ASCII digits.
+     * @param dst
+     * @param offset
+     * @param value
+     * @return int, number of bytes written
+     */
+    private static int _writeDecimal(byte[] dst, int offset, int value) {
+        int digits = 1;
+        for (int v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return digits;
+    }
+
+    /**
+     * Write the response for BT_TIME_REQUEST into the scratch buffer: millis from Epoch.
+     * @param originateMillis t0, camera time the request was sent, 0 if not known
+     * @param receiveMillis t1, phone time the request was received
+     * @param transmitMillis t2, phone time the response is sent
+     * @return int, number of payload bytes written
+     */
+    private int _writeTimeResponse(long originateMillis, long receiveMillis, long transmitMillis) {
+        if (D)
+            Log.d(TAG, "_writeTimeResponse: " + transmitMillis);
+        return _timeResponse.wrap(_responseScratchBuffer, _PREAMBLE_LENGTH)
+                .epochMillis(transmitMillis)
+                .originateMillis(originateMillis)
+                .receiveMillis(receiveMillis)
+                .transmitMillis(transmitMillis)
+                .encodedLength();
+    }
+
+
+    /**
+     * Storage stage of the receive pipeline. Passes a completed image on to the storage
+     * executor, waiting while its queue is full.
+     */
+    private class _ImageWriter implements ReceivePipeline.ImageWriter {
+        @Override
+        public void write(ImageSaveJob job) {
+            // the executor gets its own reference, the job's one is released with the job
+            myImageStorage.submit(job.cameraAddress, job.fileName, job.captureTimeMillis,
+                    job.width, job.height, job.image.retain());
+        }
+    }
+
+    /**
+     * Catalogs and reports the saved images.
+     */
+    private static class _SaveListener implements ImageStorageExecutor.Listener {
+        private final ImageCatalog catalog;
+        private final ImageStorageQuota quota;
+
+        _SaveListener(ImageCatalog catalog, ImageStorageQuota quota) {
+            this.catalog = catalog;
+            this.quota = quota;
+        }
+
+        @Override
+        public void onImagesSaved(List<ImageStorageExecutor.Result> group) {
             try {
-                FileOutputStream fos = new FileOutputStream(photo.getPath());
-                fos.write((byte [])objects[0]);
-                fos.close();
+                catalog.addAll(group);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "onImagesSaved: failed to catalog " + group.size() + " images", e);
             }
-            catch (java.io.IOException e) {
-                Log.e("SavePhotoTask", "Exception in photoCallback", e);
+            quota.onImagesSaved(group);
+
+            for (ImageStorageExecutor.Result result : group) {
+                if (D)
+                    Log.d(TAG, "onImagesSaved: " + result.name + ", " + result.bytes
+                            + " bytes, queued " + result.queuedNanos / 1000000 + " ms, write "
+                            + result.writeNanos / 1000000 + " ms, sync "
+                            + result.syncNanos / 1000000 + " ms");
+                BluetoothMetrics.get().recordImageSaved(result.bytes,
+                        result.writeNanos + result.syncNanos);
             }
+        }
 
-            return(null);
+        @Override
+        public void onImageSaveFailed(String name, IOException e) {
+            Log.e(TAG, "onImageSaveFailed: " + name, e);
+            BluetoothMetrics.get().recordImageSaveFailed();
         }
     }
 }
@@ -0,0 +1,306 @@
+package com.example.bluetoothtest;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Passes the Bluetooth events on to any number of subscribers. The bus is itself a
+ * BluetoothBaseListener, it takes the place of the one listener of the broadcast receiver and
+ * the BluetoothService.
+ *
+ * Every subscriber picks the events it wants (EVENT_* bits) and where they are delivered: on the
+ * thread that raised them, on the background thread of the bus, or on the main thread.
+ *
+ * State events (adapter state, discovery, scan mode, connection state) are coalesced for the
+ * subscribers on another thread: while one is waiting to be delivered, a newer one replaces its
+ * value, so a slow subscriber gets the latest state instead of a backlog of flaps. Found devices
+ * and bond changes are all delivered, in order.
+ *
+ * Events for the main thread are not posted one by one, they are queued and delivered together
+ * once per frame, so a scan finding hundreds of devices costs the UI one message per frame.
+ *
+ * onReadData is the fast lane: it is always delivered directly on the reading thread, without
+ * copying or posting the data.
+ */
+final class BluetoothEventBus implements BluetoothBaseListener {
+
+    /** event bits */
+    static final int EVENT_ADAPTER_STATE = 1;
+    static final int EVENT_DISCOVERY = 1 << 1;
+    static final int EVENT_SCAN_MODE = 1 << 2;
+    static final int EVENT_CONNECTION_STATE = 1 << 3;
+    static final int EVENT_DEVICE_FOUND = 1 << 4;
+    static final int EVENT_BOND_STATE = 1 << 5;
+    static final int EVENT_READ_DATA = 1 << 6;
+    static final int EVENT_ALL = (1 << 7) - 1;
+
+    /** where a subscriber gets its events */
+    static final int DELIVER_ON_CALLER = 0;
+    static final int DELIVER_ON_BACKGROUND = 1;
+    static final int DELIVER_ON_MAIN = 2;
+
+    // main thread deliveries are made once per frame, at most this many per frame
+    private static final long FRAME_MILLIS = 16;
+    private static final int MAX_EVENTS_PER_FRAME = 256;
+
+    // coalesced events, index into the slots of a subscription
+    private static final int SLOT_ADAPTER_STATE = 0;
+    private static final int SLOT_DISCOVERY = 1;
+    private static final int SLOT_SCAN_MODE = 2;
+    private static final int SLOT_CONNECTION_STATE = 3;
+    private static final int SLOTS = 4;
+
+    /**
+     * One subscriber, its events and its delivery.
+     */
+    private final class Subscription {
+        final BluetoothBaseListener listener;
+        final int events;
+        final int delivery;
+
+        // latest value of each coalesced event: first << 32 | second
+        final AtomicLongArray latest = new AtomicLongArray(SLOTS);
+        // 1 while a delivery of the slot is posted
+        final AtomicIntegerArray pending = new AtomicIntegerArray(SLOTS);
+        // one delivery per slot, created once
+        final Runnable[] deliveries = new Runnable[SLOTS];
+
+        Subscription(BluetoothBaseListener listener, int events, int delivery) {
+            this.listener = listener;
+            this.events = events;
+            this.delivery = delivery;
+            for (int i = 0; i < SLOTS; i++) {
+                final int slot = i;
+                deliveries[i] = new Runnable() {
+                    @Override
+                    public void run() {
+                        // cleared before reading, a newer value posts again
+                        pending.set(slot, 0);
+                        long value = latest.get(slot);
+                        deliver(Subscription.this, slot, (int) (value >> 32), (int) value);
+                    }
+                };
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mySubscriptions = new CopyOnWriteArrayList<>();
+    private final Handler myMainHandler = new Handler(Looper.getMainLooper());
+    private ExecutorService myBackground;
+
+    // deliveries waiting for the next frame on the main thread
+    private final ConcurrentLinkedQueue<Runnable> myMainQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean myFrameScheduled = new AtomicBoolean();
+    private final Runnable myFrame = new Runnable() {
+        @Override
+        public void run() {
+            // cleared first, an event queued from now on schedules the next frame
+            myFrameScheduled.set(false);
+            Runnable delivery;
+            for (int i = 0; i < MAX_EVENTS_PER_FRAME && (delivery = myMainQueue.poll()) != null;
+                 i++) {
+                delivery.run();
+            }
+            if (!myMainQueue.isEmpty()) {
+                scheduleFrame();
+            }
+        }
+    };
+
+    /**
+     * Add a subscriber.
+     * @param listener gets the events, only the methods of the subscribed events are called
+     * @param events EVENT_* bits
+     * @param delivery DELIVER_ON_CALLER, DELIVER_ON_BACKGROUND or DELIVER_ON_MAIN
+     */
+    void subscribe(BluetoothBaseListener listener, int events, int delivery) {
+        if (delivery == DELIVER_ON_BACKGROUND) {
+            background();
+        }
+        mySubscriptions.add(new Subscription(listener, events, delivery));
+    }
+
+    /**
+     * Remove every subscription of a subscriber. Events already posted to it may still arrive.
+     * @param listener
+     */
+    void unsubscribe(BluetoothBaseListener listener) {
+        for (Subscription subscription : mySubscriptions) {
+            if (subscription.listener == listener) {
+                mySubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    synchronized void shutdown() {
+        if (myBackground != null) {
+            myBackground.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // BluetoothBaseListener
+
+    @Override
+    public void onActionStateChanged(int preState, int state) {
+        publishState(EVENT_ADAPTER_STATE, SLOT_ADAPTER_STATE, preState, state);
+    }
+
+    @Override
+    public void onActionDiscoveryStateChanged(String discoveryState) {
+        publishState(EVENT_DISCOVERY, SLOT_DISCOVERY, 0,
+                BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(discoveryState) ? 1 : 0);
+    }
+
+    @Override
+    public void onActionScanModeChanged(int preScanMode, int scanMode) {
+        publishState(EVENT_SCAN_MODE, SLOT_SCAN_MODE, preScanMode, scanMode);
+    }
+
+    @Override
+    public void onBluetoothServiceStateChanged(int state) {
+        publishState(EVENT_CONNECTION_STATE, SLOT_CONNECTION_STATE, 0, state);
+    }
+
+    @Override
+    public void onActionDeviceFound(final BluetoothDevice device, final short rssi) {
+        for (final Subscription subscription : mySubscriptions) {
+            if ((subscription.events & EVENT_DEVICE_FOUND) == 0) {
+                continue;
+            }
+            if (subscription.delivery == DELIVER_ON_CALLER) {
+                subscription.listener.onActionDeviceFound(device, rssi);
+            } else {
+                post(subscription, new Runnable() {
+                    @Override
+                    public void run() {
+                        subscription.listener.onActionDeviceFound(device, rssi);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onBondStateChanged(final BluetoothDevice device, final int bondState,
+                                   final int preBondState) {
+        for (final Subscription subscription : mySubscriptions) {
+            if ((subscription.events & EVENT_BOND_STATE) == 0) {
+                continue;
+            }
+            if (subscription.delivery == DELIVER_ON_CALLER) {
+                subscription.listener.onBondStateChanged(device, bondState, preBondState);
+            } else {
+                post(subscription, new Runnable() {
+                    @Override
+                    public void run() {
+                        subscription.listener.onBondStateChanged(device, bondState, preBondState);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onReadData(BluetoothDevice device, byte[] data) {
+        // fast lane: straight through on the reading thread
+        for (Subscription subscription : mySubscriptions) {
+            if ((subscription.events & EVENT_READ_DATA) != 0) {
+                subscription.listener.onReadData(device, data);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private void publishState(int event, int slot, int first, int second) {
+        for (Subscription subscription : mySubscriptions) {
+            if ((subscription.events & event) == 0) {
+                continue;
+            }
+            if (subscription.delivery == DELIVER_ON_CALLER) {
+                deliver(subscription, slot, first, second);
+                continue;
+            }
+            long value = (long) first << 32 | (second & 0xFFFFFFFFL);
+            subscription.latest.set(slot, value);
+            if (subscription.pending.compareAndSet(slot, 0, 1)) {
+                post(subscription, subscription.deliveries[slot]);
+            }
+        }
+    }
+
+    private static void deliver(Subscription subscription, int slot, int first, int second) {
+        BluetoothBaseListener listener = subscription.listener;
+        switch (slot) {
+            case SLOT_ADAPTER_STATE:
+                listener.onActionStateChanged(first, second);
+                break;
+            case SLOT_DISCOVERY:
+                listener.onActionDiscoveryStateChanged(second == 1
+                        ? BluetoothAdapter.ACTION_DISCOVERY_STARTED
+                        : BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+                break;
+            case SLOT_SCAN_MODE:
+                listener.onActionScanModeChanged(first, second);
+                break;
+            case SLOT_CONNECTION_STATE:
+                listener.onBluetoothServiceStateChanged(second);
+                break;
+        }
+    }
+
+    private void post(Subscription subscription, Runnable delivery) {
+        if (subscription.delivery == DELIVER_ON_MAIN) {
+            myMainQueue.add(delivery);
+            scheduleFrame();
+        } else {
+            ExecutorService background = background();
+            if (!background.isShutdown()) {
+                background.execute(delivery);
+            }
+        }
+    }
+
+    /**
+     * Deliver the queued main thread events at the next frame boundary, unless already planned.
+     */
+    private void scheduleFrame() {
+        if (myFrameScheduled.compareAndSet(false, true)) {
+            myMainHandler.postDelayed(myFrame,
+                    FRAME_MILLIS - SystemClock.uptimeMillis() % FRAME_MILLIS);
+        }
+    }
+
+    /**
+     * The background thread, created on first use.
+     */
+    private synchronized ExecutorService background() {
+        if (myBackground == null) {
+            myBackground = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BT_EVENT_THREAD");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return myBackground;
+    }
+}
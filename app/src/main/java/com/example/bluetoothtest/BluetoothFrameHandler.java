@@ -0,0 +1,16 @@
+package com.example.bluetoothtest;
+
+/**
+ * Handler for one (communication type, category) pair of the camera protocol. Handlers are
+ * registered once in the dispatch table of the BluetoothDataParser and are called on the dispatch
+ * stage thread of the receive pipeline for every received frame.
+ */
+interface BluetoothFrameHandler {
+
+    /**
+     * Handle a received frame. The payload starts at BluetoothResponseFrame.PREAMBLE_LENGTH.
+     * The frame goes back to the receive pipeline after this call, do not keep it.
+     * @param frame decoded frame
+     */
+    void handle(ReceiveFrame frame);
+}
@@ -48,18 +48,20 @@ public class BluetoothListenersImplementation implements BluetoothBaseListener {
     @Override
     public void onActionDeviceFound(BluetoothDevice device, short rssi) {
         // this callback will be called when a device is found during scan operation.
-        Log.d(TAG, "onActionDeviceFound: Device name: "+device.getName()+", address: "
-                +device.getAddress()+", bond state: "+Utils.btBondStateAsString(device.getBondState()));
-
-        // call a function that handles whatever operation when a device is found.
         if(myBTController != null) {
-            myBTController.addDiscoveredBTDevice(device);
+            // the name came with the broadcast, the bond state would cost a binder call
+            Log.d(TAG, "onActionDeviceFound: Device name: "
+                    +myBTController.getDeviceCache().nameOf(device)+", address: "+device.getAddress());
+
+            // call a function that handles whatever operation when a device is found.
+            myBTController.addDiscoveredBTDevice(device, rssi);
         }
     }
 
     @Override
     public void onBondStateChanged(BluetoothDevice device, int bondState, int preBondState) {
-        Log.d(TAG, "onBondStateChanged: Device name: " + device.getName() + ", address "
+        Log.d(TAG, "onBondStateChanged: Device name: "
+                + myBTController.getDeviceCache().nameOf(device) + ", address "
         +device.getAddress());
 
         Log.d(TAG, "onBondStateChanged: Previous bond state: "
@@ -70,7 +72,8 @@ public class BluetoothListenersImplementation implements BluetoothBaseListener {
 
     @Override
     public void onReadData(BluetoothDevice device, byte[] data) {
-        Log.d(TAG, "onReadData: Data received from " + device.getName()
+        Log.d(TAG, "onReadData: Data received from "
+                + myBTController.getDeviceCache().nameOf(device)
                 + " of length " + data.length + "\n\n");
 
         // forward the data to the parser, which copies the data and posts a runnable to parse
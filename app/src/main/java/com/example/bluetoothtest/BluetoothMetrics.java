@@ -0,0 +1,242 @@
+package com.example.bluetoothtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide metrics of the Bluetooth receive path. Components register themselves here and
+ * snapshot() copies their counters, so the UI or the log can show where time and memory go.
+ */
+public final class BluetoothMetrics {
+    private static final BluetoothMetrics INSTANCE = new BluetoothMetrics();
+
+    // the queues in front of the pipeline stages, in pipeline order
+    private final List<SpscRingBuffer<?>> stageQueues = new CopyOnWriteArrayList<>();
+
+    // socket reader paused by backpressure
+    private final AtomicLong readerPauses = new AtomicLong();
+    private final AtomicLong readerPausedNanos = new AtomicLong();
+
+    // time from an accepted connection to the first frame read from it
+    private final AtomicLong acceptToFirstFrameCount = new AtomicLong();
+    private final AtomicLong acceptToFirstFrameSumNanos = new AtomicLong();
+    private final AtomicLong acceptToFirstFrameMaxNanos = new AtomicLong();
+    private volatile long acceptToFirstFrameLastNanos;
+
+    // image storage
+    private final AtomicLong imagesSaved = new AtomicLong();
+    private final AtomicLong imageBytesSaved = new AtomicLong();
+    private final AtomicLong imageSaveNanos = new AtomicLong();
+    private final AtomicLong imageSaveFailures = new AtomicLong();
+    // images found malformed while they were received
+    private final AtomicLong imagesRejected = new AtomicLong();
+
+    // memory cache of the recent images
+    private final AtomicLong imageCacheHits = new AtomicLong();
+    private final AtomicLong imageCacheMisses = new AtomicLong();
+
+    private BluetoothMetrics() {
+    }
+
+    /**
+     * Get the metrics instance.
+     * @return BluetoothMetrics
+     */
+    public static BluetoothMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register the input queue of a pipeline stage.
+     * @param queue
+     */
+    void registerStageQueue(SpscRingBuffer<?> queue) {
+        stageQueues.add(queue);
+    }
+
+    /**
+     * Remove the input queue of a pipeline stage.
+     * @param queue
+     */
+    void unregisterStageQueue(SpscRingBuffer<?> queue) {
+        stageQueues.remove(queue);
+    }
+
+    /**
+     * Record that the socket reader was paused by backpressure.
+     * @param nanos how long the reader did not read
+     */
+    void recordReaderPause(long nanos) {
+        readerPauses.incrementAndGet();
+        readerPausedNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record the time from an accepted connection to the first frame read from it. For a camera
+     * that waited for the previous connection to end, the time counts from the hand over.
+     * @param nanos
+     */
+    void recordAcceptToFirstFrame(long nanos) {
+        acceptToFirstFrameLastNanos = nanos;
+        acceptToFirstFrameSumNanos.addAndGet(nanos);
+        acceptToFirstFrameCount.incrementAndGet();
+        long max = acceptToFirstFrameMaxNanos.get();
+        while (nanos > max && !acceptToFirstFrameMaxNanos.compareAndSet(max, nanos)) {
+            max = acceptToFirstFrameMaxNanos.get();
+        }
+    }
+
+    /**
+     * Record an image written and committed to storage.
+     * @param bytes size of the image
+     * @param nanos time spent writing and committing it
+     */
+    void recordImageSaved(int bytes, long nanos) {
+        imagesSaved.incrementAndGet();
+        imageBytesSaved.addAndGet(bytes);
+        imageSaveNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record an image that could not be stored.
+     */
+    void recordImageSaveFailed() {
+        imageSaveFailures.incrementAndGet();
+    }
+
+    /**
+     * Record an image rejected as malformed while it was received.
+     */
+    void recordImageRejected() {
+        imagesRejected.incrementAndGet();
+    }
+
+    /**
+     * Record an image found in the memory cache.
+     */
+    void recordImageCacheHit() {
+        imageCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Record an image looked up in the memory cache and not found.
+     */
+    void recordImageCacheMiss() {
+        imageCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Copy the current values of all metrics.
+     * @return Snapshot
+     */
+    public Snapshot snapshot() {
+        List<QueueSnapshot> queues = new ArrayList<>();
+        for (SpscRingBuffer<?> queue : stageQueues) {
+            queues.add(queue.snapshot());
+        }
+        long connections = acceptToFirstFrameCount.get();
+        return new Snapshot(queues, readerPauses.get(), readerPausedNanos.get(), connections,
+                acceptToFirstFrameLastNanos,
+                connections == 0 ? 0 : acceptToFirstFrameSumNanos.get() / connections,
+                acceptToFirstFrameMaxNanos.get(), imagesSaved.get(), imageBytesSaved.get(),
+                imageSaveNanos.get(), imageSaveFailures.get(), imagesRejected.get(),
+                imageCacheHits.get(), imageCacheMisses.get());
+    }
+
+    /**
+     * Metrics at one point in time.
+     */
+    public static final class Snapshot {
+        public final List<QueueSnapshot> stageQueues;
+        public final long readerPauses;
+        public final long readerPausedNanos;
+        public final long acceptedConnections;
+        public final long lastAcceptToFirstFrameNanos;
+        public final long averageAcceptToFirstFrameNanos;
+        public final long maxAcceptToFirstFrameNanos;
+        public final long imagesSaved;
+        public final long imageBytesSaved;
+        public final long imageSaveNanos;
+        public final long imageSaveFailures;
+        public final long imagesRejected;
+        public final long imageCacheHits;
+        public final long imageCacheMisses;
+
+        Snapshot(List<QueueSnapshot> stageQueues, long readerPauses, long readerPausedNanos,
+                 long acceptedConnections, long lastAcceptToFirstFrameNanos,
+                 long averageAcceptToFirstFrameNanos, long maxAcceptToFirstFrameNanos,
+                 long imagesSaved, long imageBytesSaved, long imageSaveNanos,
+                 long imageSaveFailures, long imagesRejected, long imageCacheHits,
+                 long imageCacheMisses) {
+            this.stageQueues = stageQueues;
+            this.readerPauses = readerPauses;
+            this.readerPausedNanos = readerPausedNanos;
+            this.acceptedConnections = acceptedConnections;
+            this.lastAcceptToFirstFrameNanos = lastAcceptToFirstFrameNanos;
+            this.averageAcceptToFirstFrameNanos = averageAcceptToFirstFrameNanos;
+            this.maxAcceptToFirstFrameNanos = maxAcceptToFirstFrameNanos;
+            this.imagesSaved = imagesSaved;
+            this.imageBytesSaved = imageBytesSaved;
+            this.imageSaveNanos = imageSaveNanos;
+            this.imageSaveFailures = imageSaveFailures;
+            this.imagesRejected = imagesRejected;
+            this.imageCacheHits = imageCacheHits;
+            this.imageCacheMisses = imageCacheMisses;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("BluetoothMetrics");
+            for (QueueSnapshot queue : stageQueues) {
+                sb.append("\n  ").append(queue);
+            }
+            sb.append("\n  reader paused ").append(readerPauses).append(" times, ")
+                    .append(readerPausedNanos / 1000000).append(" ms");
+            sb.append("\n  accept to first frame: last ").append(lastAcceptToFirstFrameNanos / 1000000)
+                    .append(" ms, avg ").append(averageAcceptToFirstFrameNanos / 1000000)
+                    .append(" ms, max ").append(maxAcceptToFirstFrameNanos / 1000000)
+                    .append(" ms over ").append(acceptedConnections).append(" connections");
+            sb.append("\n  images saved ").append(imagesSaved).append(", ")
+                    .append(imageBytesSaved / 1024).append(" KB in ")
+                    .append(imageSaveNanos / 1000000).append(" ms, failed ")
+                    .append(imageSaveFailures).append(", rejected ").append(imagesRejected);
+            sb.append("\n  image cache hits ").append(imageCacheHits).append(", misses ")
+                    .append(imageCacheMisses);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Occupancy of the queue in front of a pipeline stage. A stage whose queue is often full
+     * (high average occupancy, many producer waits) is the bottleneck of the pipeline.
+     */
+    public static final class QueueSnapshot {
+        public final String name;
+        public final int capacity;
+        public final int occupancy;
+        public final int maxOccupancy;
+        public final double averageOccupancy;
+        public final long consumed;
+        public final long producerWaits;
+
+        QueueSnapshot(String name, int capacity, int occupancy, int maxOccupancy,
+                      double averageOccupancy, long consumed, long producerWaits) {
+            this.name = name;
+            this.capacity = capacity;
+            this.occupancy = occupancy;
+            this.maxOccupancy = maxOccupancy;
+            this.averageOccupancy = averageOccupancy;
+            this.consumed = consumed;
+            this.producerWaits = producerWaits;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + occupancy + "/" + capacity + " (avg "
+                    + String.format("%.2f", averageOccupancy) + ", max " + maxOccupancy
+                    + "), consumed " + consumed + ", producer waits " + producerWaits;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.bluetoothtest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A response frame that is encoded once and then sent as many times as needed. The constant
+ * responses of the camera protocol ("ok", "i am ready", ...) never change, so there is no reason
+ * to build a new byte array for them every time a request comes in.
+ *
+ * The frame layout is the same as the one the camera uses: a FrameHeader (see
+ * camera_protocol.schema), the payload and a '\0' terminator.
+ */
+final class BluetoothResponseFrame {
+    static final int PREAMBLE_LENGTH = FrameHeaderEncoder.FIXED_LENGTH;
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // the encoded frame, never handed out so that no one can modify it
+    private final byte[] frame;
+
+    private BluetoothResponseFrame(byte[] frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Encode a frame with an ASCII string payload.
+     * @param commType communication type: Request, Data, or Response
+     * @param category category of the communication
+     * @param payload ASCII payload
+     * @return BluetoothResponseFrame
+     */
+    static BluetoothResponseFrame encode(byte commType, byte category, String payload) {
+        return encode(commType, category, payload.getBytes(ASCII));
+    }
+
+    /**
+     * Encode a frame with the given payload.
+     * @param commType communication type: Request, Data, or Response
+     * @param category category of the communication
+     * @param payload payload bytes
+     * @return BluetoothResponseFrame
+     */
+    static BluetoothResponseFrame encode(byte commType, byte category, byte[] payload) {
+        byte[] frame = new byte[frameLength(payload.length)];
+        writeHeader(new FrameHeaderEncoder(), ByteBuffer.wrap(frame), commType, category,
+                payload.length);
+        System.arraycopy(payload, 0, frame, PREAMBLE_LENGTH, payload.length);
+        frame[PREAMBLE_LENGTH + payload.length] = '\0';    // this is added for string
+        return new BluetoothResponseFrame(frame);
+    }
+
+    /**
+     * Total length of a frame carrying a payload of the given length.
+     * @param payloadLength
+     * @return int
+     */
+    static int frameLength(int payloadLength) {
+        return payloadLength + PREAMBLE_LENGTH + 1;
+    }
+
+    /**
+     * Write the frame header at the start of the given buffer.
+     * @param header encoder to use, owned by the calling thread
+     * @param dst buffer to write into, at least PREAMBLE_LENGTH bytes long
+     * @param commType communication type: Request, Data, or Response
+     * @param category category of the communication
+     * @param payloadLength length of the payload that follows the header
+     */
+    static void writeHeader(FrameHeaderEncoder header, ByteBuffer dst, byte commType,
+                            byte category, int payloadLength) {
+        // responses always go out as a single packet
+        header.wrap(dst, 0)
+                .commType(commType)
+                .category(category)
+                .payloadLength(payloadLength)
+                .packetNumber(1);
+    }
+
+    /**
+     * Send this frame over the running Bluetooth connection.
+     * @param controller
+     */
+    void send(BluetoothController controller) {
+        controller.sendData(frame, 0, frame.length);
+    }
+}
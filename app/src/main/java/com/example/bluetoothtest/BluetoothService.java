@@ -10,10 +10,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 
 
@@ -66,23 +63,45 @@ public class BluetoothService {
     // Service and Thread
     private AcceptThread myAcceptThread;
     private ConnectThread myConnectThread;
-    private ConnectedThread myConnectedThread;
+    // read without the lock by writeBytes()
+    private volatile ConnectedThread myConnectedThread;
 
     // these two variables are used when the phone want to connect to a Bluetooth device as a client.
     // Most probably we will not be using these in our application of phone and camera communication
     // since, phone will be the server and the camera client always.
     private BluetoothDevice myRemoteBTDevice;
 
-    // State variable, that tracks the state of Bluetooth process currently running
-    private int myState;
+    // State of the Bluetooth process currently running. Read and changed without the lock of
+    // the service, its listener is called on a thread of its own.
+    private final ConnectionStateMachine myConnectionState =
+            new ConnectionStateMachine(BluetoothState.STATE_NONE);
 
     // Bluetooth listeners
-    private BluetoothBaseListener myBaseListeners;
+    private volatile BluetoothBaseListener myBaseListeners;
+
+    // Receive pipeline the connected thread reads into. When it is null the data is handed to
+    // the listeners' onReadData instead.
+    private volatile ReceivePipeline myReceivePipeline;
+
+    // name and bond state of the remote devices, filled in when a device connects
+    private volatile DeviceMetadataCache myDeviceCache;
+
+    // cameras allowed to connect, checked right after accept(). null allows every device.
+    private volatile CameraAllowlist myAllowlist;
+
+    // decides when dropped and failed connections are retried
+    private final ReconnectPolicy myReconnectPolicy = new ReconnectPolicy();
+
+    // retry key of the server socket, which is not tied to one device
+    private static final String SERVER_RETRY_KEY = "server";
+
+    // a camera that connected while another one was connected. It takes over as soon as the
+    // current connection ends.
+    private BluetoothSocket myPendingSocket;
 
     // Constructor
     public BluetoothService(BluetoothAdapter mBTAdapter) {
         this.myBTAdapter = mBTAdapter;
-        this.myState = BluetoothState.STATE_NONE;
         // we may need to pass an handler to inform the UI thread about the Bluetooth events
     }
 
@@ -90,30 +109,53 @@ public class BluetoothService {
      * Return the current connection state
      * @return int
      */
-    public synchronized int getState() {
-        return myState;
+    public int getState() {
+        return myConnectionState.get();
     }
 
     /**
-     * Set the current connection state
+     * Set the current connection state, if the move from the current state is allowed
      * @param mS (int)
+     * @return boolean, false if the move was rejected
      */
-    public synchronized void setState(int mS) {
-
-        myState = mS;
-        if(myBaseListeners != null) {
-            myBaseListeners.onBluetoothServiceStateChanged(mS);
-        }
+    public boolean setState(int mS) {
+        return myConnectionState.moveTo(mS);
     }
 
     /**
      * Set Bluetooth listeners
      * @param BluetoothBaseListener
      */
-    public synchronized void setBluetoothListeners(BluetoothBaseListener listener) {
+    public void setBluetoothListeners(BluetoothBaseListener listener) {
         this.myBaseListeners = listener;
+        myConnectionState.setListener(listener);
+    }
+
+
+    /**
+     * Set the cache the metadata of a connected device is looked up into.
+     * @param cache (DeviceMetadataCache), null for none
+     */
+    void setDeviceCache(DeviceMetadataCache cache) {
+        this.myDeviceCache = cache;
+    }
+
+    /**
+     * Set the cameras allowed to connect. Any other device is disconnected as soon as it is
+     * accepted.
+     * @param allowlist (CameraAllowlist), null to allow every device
+     */
+    void setAllowlist(CameraAllowlist allowlist) {
+        this.myAllowlist = allowlist;
     }
 
+    /**
+     * Set the receive pipeline the data read from the remote device is written to.
+     * @param pipeline (ReceivePipeline), null to deliver the data through onReadData
+     */
+    void setReceivePipeline(ReceivePipeline pipeline) {
+        this.myReceivePipeline = pipeline;
+    }
 
     /*
     1. One device opens a server socket, and the other must initiate the connection using the server
@@ -126,8 +168,9 @@ public class BluetoothService {
     3. If the devices that are trying to connect are not paired, then pairing dialog is shown automatically.
 
     4. Server holds an open BluetoothServerSocket open and listen for incoming connection. Once a
-    request is accepted, server returns a connected BluetoothSocket. After this BluetoothServerSocket
-    should be discarded.
+    request is accepted, server returns a connected BluetoothSocket. We keep the BluetoothServerSocket
+    (and its SDP record) open across connections, so a camera waking right after another one does
+    not find the phone without a listener.
      */
 
     /**
@@ -162,6 +205,9 @@ public class BluetoothService {
      * Stop accepting bluetooth connections from remote devices.
      */
     public synchronized void stopServer() {
+        // a deliberate stop, no more retries
+        myReconnectPolicy.cancelAll();
+
         // close accept threads if any
         stopAcceptThread();
 
@@ -169,9 +215,7 @@ public class BluetoothService {
         stopConnectedThread();
 
         // set the state to none, if the state was listening
-        if (myState == BluetoothState.STATE_LISTEN) {
-            setState(BluetoothState.STATE_NONE);
-        }
+        myConnectionState.moveFrom(BluetoothState.STATE_LISTEN, BluetoothState.STATE_NONE);
     }
 
     /**
@@ -184,7 +228,7 @@ public class BluetoothService {
             Log.d(TAG, "startClient: starting connect thread");
 
         // cancel any thread attempting to make a connection
-        if(myState == BluetoothState.STATE_CONNECTING && myConnectThread != null) {
+        if(myConnectionState.get() == BluetoothState.STATE_CONNECTING && myConnectThread != null) {
                 myConnectThread.close();
                 myConnectThread = null;
         }
@@ -203,6 +247,9 @@ public class BluetoothService {
      * connection to the remote device.
      */
     public synchronized void stopClient() {
+        // a deliberate stop, no more retries
+        myReconnectPolicy.cancelAll();
+
         // stop any connecting thread if any
         stopConnectingThread();
 
@@ -210,17 +257,19 @@ public class BluetoothService {
         stopConnectedThread();
 
         // set state to none if it was connecting
-        if (myState == BluetoothState.STATE_CONNECTING) {
-            setState(BluetoothState.STATE_NONE);
-        }
+        myConnectionState.moveFrom(BluetoothState.STATE_CONNECTING, BluetoothState.STATE_NONE);
     }
 
     /**
      *  This function is called once a bluetooth connection is established. Starts the connected thread
      *  to manage a Bluetooth connection.
      * @param mmSocket (BluetoothSocket)
+     * @param outgoing (boolean) true if the phone connected as client, false if it accepted
+     * @param connectedNanos (long) System.nanoTime() when the socket was connected, or handed
+     *                       over if it waited for the previous connection to end
      */
-    private synchronized void manageConnectedSocket(BluetoothSocket mmSocket) {
+    private synchronized void manageConnectedSocket(BluetoothSocket mmSocket, boolean outgoing,
+                                                    long connectedNanos) {
         if(D)
             Log.d(TAG, "manageConnectedSocket: starting manage connected connection thread");
 
@@ -230,13 +279,19 @@ public class BluetoothService {
         // close any thread currently managing a connected Bluetooth socket
         stopConnectedThread();
 
-        // close any thread accepting connections from remote devices
-        stopAcceptThread();
+        if (outgoing) {
+            // close any thread accepting connections from remote devices
+            stopAcceptThread();
+        } else {
+            // the accept thread keeps listening for the next camera
+            myReconnectPolicy.onConnected(SERVER_RETRY_KEY);
+        }
 
         // start the thread to manage the connection and perform transmission
-        myConnectedThread = new ConnectedThread(mmSocket);
+        myConnectedThread = new ConnectedThread(mmSocket, outgoing, connectedNanos);
         myConnectedThread.start();
         myRemoteBTDevice = mmSocket.getRemoteDevice();
+        myReconnectPolicy.onConnected(myRemoteBTDevice.getAddress());
         setState(BluetoothState.STATE_CONNECTED);
     }
 
@@ -251,6 +306,12 @@ public class BluetoothService {
             myAcceptThread.close();
             myAcceptThread = null;
         }
+
+        // a camera waiting for the listener is dropped with it
+        if (myPendingSocket != null) {
+            closeSocket(myPendingSocket);
+            myPendingSocket = null;
+        }
     }
 
     /**
@@ -278,9 +339,7 @@ public class BluetoothService {
         }
 
         // if the state was connected, set it to none
-        if (myState == BluetoothState.STATE_CONNECTED) {
-            setState(BluetoothState.STATE_NONE);
-        }
+        myConnectionState.moveFrom(BluetoothState.STATE_CONNECTED, BluetoothState.STATE_NONE);
     }
 
 
@@ -310,44 +369,130 @@ public class BluetoothService {
      * @param outBuffer (byte [])
      */
     public void writeBytes(byte[] outBuffer) {
-        ConnectedThread r;
-        // Synchronized a copy of the Connected Thread
-        synchronized (this) {
-            if (myState != BluetoothState.STATE_CONNECTED){
-                if (D)
-                    Log.d(TAG, "writeBytes: not connected state");
-                return;
-            }
-            r = myConnectedThread;
+        writeBytes(outBuffer, 0, outBuffer.length);
+    }
+
+    /**
+     * Write a slice of a buffer to the connected thread in an unsynchronized manner
+     * @param outBuffer (byte [])
+     * @param offset (int)
+     * @param length (int)
+     */
+    public void writeBytes(byte[] outBuffer, int offset, int length) {
+        // a copy of the Connected Thread, no lock needed
+        ConnectedThread r = myConnectedThread;
+        if (r == null || myConnectionState.get() != BluetoothState.STATE_CONNECTED) {
+            if (D)
+                Log.d(TAG, "writeBytes: not connected state");
+            return;
         }
 
         // send the data
-        r.write(outBuffer, 0, outBuffer.length);
+        r.write(outBuffer, offset, length);
     }
 
     /**
      * This function is called to re-establish the bluetooth connection with the camera module
-     * if the connection was failed to be established. We try to connect to the camera after 5
-     * seconds.
+     * if the connection was failed to be established. The reconnect policy decides when we try
+     * to connect to the camera again.
+     * @param device (BluetoothDevice) the device we failed to connect to
      */
-    private void connectionFailed() {
-        // after sometime (5 seconds) again try to connect to the same remote device
-        new Timer().schedule(new TimerTask() {
+    private void connectionFailed(final BluetoothDevice device) {
+        boolean scheduled = myReconnectPolicy.retryAfterFailure(device.getAddress(), new Runnable() {
             @Override
             public void run() {
-                if (myRemoteBTDevice != null){
-                    BluetoothService.this.startClient(myRemoteBTDevice);
+                BluetoothService.this.startClient(device);
+            }
+        });
+
+        if (!scheduled) {
+            synchronized (this) {
+                stopConnectingThread();
+                setState(BluetoothState.STATE_NONE);
+            }
+        }
+    }
+
+    /**
+     * The accept thread could not listen or accept any more. Start the bluetooth server again
+     * after the reconnect policy's backoff.
+     * @param thread (AcceptThread) the failed thread
+     */
+    private void acceptFailed(AcceptThread thread) {
+        synchronized (this) {
+            if (myAcceptThread != thread) {
+                return;
+            }
+            myAcceptThread = null;
+            myConnectionState.moveFrom(BluetoothState.STATE_LISTEN, BluetoothState.STATE_NONE);
+        }
+
+        myReconnectPolicy.retryAfterFailure(SERVER_RETRY_KEY, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BluetoothService.this) {
+                    // do not cut off a connection made in the meantime
+                    if (myConnectionState.get() != BluetoothState.STATE_CONNECTED) {
+                        BluetoothService.this.startServer();
+                    }
                 }
             }
-        }, 5000);
+        });
     }
 
     /**
-     * Connection lost to the remote device. Start the bluetooth server again and wait for the
-     * incoming connection.
+     * Connection lost to the remote device. If the phone was the server, hand over to a camera
+     * that connected in the meantime, or go back to listening. Otherwise connect to the device
+     * again, a clean disconnect is retried at once, a broken connection with backoff.
+     * @param thread (ConnectedThread) the thread that ran the connection
+     * @param clean (boolean) true if the remote device closed the connection
      */
-    private void connectionLost() {
-        BluetoothService.this.startServer();
+    private void connectionLost(ConnectedThread thread, boolean clean) {
+        // the connection is gone, do not stay in the connected state until the retry runs
+        synchronized (this) {
+            if (myConnectedThread != thread) {
+                return;
+            }
+            myConnectedThread = null;
+            myConnectionState.moveFrom(BluetoothState.STATE_CONNECTED, BluetoothState.STATE_NONE);
+
+            if (!thread.isOutgoing()) {
+                if (myPendingSocket != null) {
+                    BluetoothSocket next = myPendingSocket;
+                    myPendingSocket = null;
+                    // timed from the hand over, the wait for the previous connection is not the
+                    // camera's latency
+                    manageConnectedSocket(next, false, System.nanoTime());
+                } else if (myAcceptThread != null) {
+                    setState(BluetoothState.STATE_LISTEN);
+                } else {
+                    startServer();
+                }
+                return;
+            }
+        }
+
+        final BluetoothDevice device = thread.getRemoteDevice();
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                BluetoothService.this.startClient(device);
+            }
+        };
+
+        if (clean) {
+            myReconnectPolicy.retryAfterDisconnect(device.getAddress(), retry);
+        } else {
+            myReconnectPolicy.retryAfterFailure(device.getAddress(), retry);
+        }
+    }
+
+    private static void closeSocket(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closeSocket: could not close socket", e);
+        }
     }
 
     /**
@@ -358,18 +503,22 @@ public class BluetoothService {
 
     /**
      * This thread runs while listening for incoming Bluetooth connections. This thread makes the phone
-     * a sever and the camera module will be the client. It runs until a connection is accepted or
-     * (or until canceled)
+     * a sever and the camera module will be the client. It keeps listening across connections
+     * until canceled.
      */
     private class AcceptThread extends Thread {
         /*
         1. Get a BluetoothServerSocket
         2. Start listening for connection requests by calling accept()
-        3. Close the server socket once connection is accepted.
+        3. Hand the accepted socket over and accept the next one. The server socket is only
+           closed when the server is stopped.
          */
 
         private final BluetoothServerSocket mmServerSocket;
 
+        // set when the server is stopped from our side
+        private volatile boolean mmClosed;
+
         public AcceptThread() {
             // use a temporary object that is later assigned to mmServerSocket because mmServerSocket
             // is final
@@ -388,10 +537,16 @@ public class BluetoothService {
             if(D)
                 Log.d(TAG, "run: AcceptThread Running");
 
+            if (mmServerSocket == null) {
+                acceptFailed(this);
+                return;
+            }
+
             BluetoothSocket socket = null;
+            long acceptedNanos;
 
-            // keep listening until exception occurs or a socket is returned.
-            while (myState != BluetoothState.STATE_CONNECTED) {
+            // keep listening until exception occurs or the server is stopped.
+            while (!mmClosed) {
                 try {
                     // this is a blocking call and hence must be ran on a separate thread.
                     // Also call close() on BluetoothServerSocket or BluetoothSocket to exit out of it.
@@ -399,29 +554,41 @@ public class BluetoothService {
                         Log.d(TAG, "run: RFCOMM server socket accepting connections");
 
                     socket = mmServerSocket.accept();
+                    acceptedNanos = System.nanoTime();
 
                     if(D)
                         Log.d(TAG, "run: RFCOMM server accepted connection");
                 } catch (IOException e) {
-                    Log.e(TAG, "run: Socket's accept method failed", e);
+                    if (!mmClosed) {
+                        Log.e(TAG, "run: Socket's accept method failed", e);
+                        acceptFailed(this);
+                    }
                     break;
                 }
 
+                if (socket != null && !isAllowed(socket)) {
+                    // not one of our cameras: hang up before anything is set up for it, so it
+                    // cannot hold the connection slot
+                    closeSocket(socket);
+                    continue;
+                }
+
                 if (socket != null) {
                     synchronized (BluetoothService.this) {
-                        switch (myState){
+                        switch (myConnectionState.get()){
                             case BluetoothState.STATE_NONE:
                             case BluetoothState.STATE_LISTEN:
                             case BluetoothState.STATE_CONNECTING:
                                 // Normal case, start the connected thread to manage the connection
-                                manageConnectedSocket(socket);
+                                manageConnectedSocket(socket, false, acceptedNanos);
                                 break;
                             case BluetoothState.STATE_CONNECTED:
-                                // Either the socket is not ready or already connected.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "could not close unwanted socket in accept thread", e);
+                                // Another camera woke up while one is connected. It takes over
+                                // when the current connection ends, a third one is turned away.
+                                if (myPendingSocket == null) {
+                                    myPendingSocket = socket;
+                                } else {
+                                    closeSocket(socket);
                                 }
                                 break;
 
@@ -435,8 +602,23 @@ public class BluetoothService {
                 Log.d(TAG, "run: End of Accept Thread");
         }
 
+        private boolean isAllowed(BluetoothSocket socket) {
+            CameraAllowlist allowlist = myAllowlist;
+            String mac = socket.getRemoteDevice().getAddress();
+            if (allowlist == null || allowlist.isAllowed(mac)) {
+                return true;
+            }
+            if(D)
+                Log.d(TAG, "isAllowed: rejected connection from unknown device " + mac);
+            return false;
+        }
+
         // provide the close method to close the BluetoothServerSocket or BluetoothSocket
         public void close() {
+            mmClosed = true;
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 if(D)
                     Log.d(TAG, "close: Closing the accept socket.");
@@ -454,6 +636,10 @@ public class BluetoothService {
      */
     private class ConnectThread extends Thread {
         private BluetoothSocket mmSocket;
+        private final BluetoothDevice mmDevice;
+
+        // set when the attempt is cancelled, a cancelled attempt is not retried
+        private volatile boolean mmCanceled;
         
         public ConnectThread (BluetoothDevice device) {
             // we will need the Bluetooth device and UUID of the server we want to connect to
@@ -461,6 +647,7 @@ public class BluetoothService {
                 Log.d(TAG, "run: Connect Thread");
 
             // save the provided device as the remote device
+            mmDevice = device;
             myRemoteBTDevice = device;
 
             BluetoothSocket tmp = null;
@@ -492,13 +679,15 @@ public class BluetoothService {
             } catch (IOException e) {
                 Log.e(TAG, "run: Failed to connect with the device", e);
 
+                boolean canceled = mmCanceled;
+
                 // no matter what close the socket, even if there was an exception
                 close();
 
-                // TODO connection failed. Do you want to retry ?
-//                connectionFailed();
-
-                // for now just return from here without going to the manage connection thread
+                // connection failed, try again later unless we were told to stop
+                if (!canceled) {
+                    connectionFailed(mmDevice);
+                }
                 return;
             }
 
@@ -508,11 +697,12 @@ public class BluetoothService {
             }
 
             // we have a connected socket, now manage the connection. Start the connected thread
-            manageConnectedSocket(mmSocket);
+            manageConnectedSocket(mmSocket, true, System.nanoTime());
         }
         
         // Function to cancel the connect blocking call
         public void close() {
+            mmCanceled = true;
             try {
                 if(D)
                     Log.d(TAG, "cancel: Closing the connect socket");
@@ -532,13 +722,20 @@ public class BluetoothService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInputStream;
         private final OutputStream mmOutputStream;
+        private final boolean mmOutgoing;
+        private final long mmConnectedNanos;
 
-        public ConnectedThread(BluetoothSocket socket) {
+        // set when the connection is closed from our side, the connection is then not retried
+        private volatile boolean mmClosed;
+
+        public ConnectedThread(BluetoothSocket socket, boolean outgoing, long connectedNanos) {
             if(D)
                 Log.d(TAG, "ConnectedThread: started");
 
             // save the socket
             mmSocket = socket;
+            mmOutgoing = outgoing;
+            mmConnectedNanos = connectedNanos;
 
             // get the input and output stream
             InputStream tmpIn = null;
@@ -559,9 +756,22 @@ public class BluetoothService {
         }
 
         public void run() {
+            // look the device up once, the data handlers read its name from the cache
+            DeviceMetadataCache cache = myDeviceCache;
+            if (cache != null) {
+                cache.get(mmSocket.getRemoteDevice());
+            }
+
+            ReceivePipeline pipeline = myReceivePipeline;
+            if (pipeline != null) {
+                readIntoPipeline(pipeline);
+                return;
+            }
+
             // buffer to store the input data
             byte[] buffer = new byte[BufferSize];
             int nBytes;
+            boolean firstFrame = true;
 
             // keep listening to the Input Stream while connected or until an exception occurs
             while(true) {
@@ -575,6 +785,11 @@ public class BluetoothService {
                     nBytes = mmInputStream.read(buffer,  0, BufferSize);
 
                     if(nBytes > 0) {
+                        if (firstFrame) {
+                            firstFrameReceived(System.nanoTime());
+                            firstFrame = false;
+                        }
+
 //                        String inMessage = new String(buffer, 0, nBytes);
 //                        Log.d(TAG, "run: Read Data: " + inMessage);
 
@@ -583,32 +798,184 @@ public class BluetoothService {
                         if (myBaseListeners != null) {
                             ((BluetoothBaseListener) myBaseListeners).onReadData(mmSocket.getRemoteDevice(), data);
                         }
+                    } else if (nBytes < 0) {
+                        // the camera closed the connection
+                        if (!mmClosed) {
+                            connectionLost(this, true);
+                        }
+                        break;
                     }
 
                 } catch (IOException | InterruptedException e) {
                     Log.e(TAG, "run: Error reading data from BT device", e);
 
-                    //TODO Connection lost. Do you want to start the service again or not??
-                    connectionLost();
+                    if (!mmClosed) {
+                        connectionLost(this, false);
+                    }
+                    break;
+                }
+            }
+        }
 
-                    // need to first verify the state variable
-//                    setState(BluetoothState.STATE_DISCONNECTED);
+        /**
+         * Read loop that reads straight into the frames of the receive pipeline. No buffer is
+         * allocated or copied per packet.
+         * @param pipeline
+         */
+        private void readIntoPipeline(ReceivePipeline pipeline) {
+            // the reader of the previous connection was closed, but may not have finished its
+            // last frame yet. Wait for it, the read ring takes one producer only.
+            if (!pipeline.acquireReader()) {
+                if (!mmClosed) {
+                    connectionLost(this, false);
+                }
+                return;
+            }
+            try {
+                readFrames(pipeline);
+            } finally {
+                pipeline.releaseReader();
+            }
+        }
+
+        /**
+         * Reads one frame per entry: the header first, then as many bytes as its payload length
+         * says, so a frame split over several reads or several frames in one read come out whole.
+         * A frame too large for an entry is skipped.
+         * @param pipeline
+         */
+        private void readFrames(ReceivePipeline pipeline) {
+            BluetoothDevice device = mmSocket.getRemoteDevice();
+            FrameHeaderDecoder header = new FrameHeaderDecoder();
+            boolean firstFrame = true;
+
+            while(true) {
+                try {
+                    // stop reading while the pipeline is behind. The camera is then held back by
+                    // RFCOMM flow control.
+                    if (!pipeline.awaitCapacity()) {
+                        throw new InterruptedException("connected thread interrupted");
+                    }
+
+                    // get a free frame, this waits while the decode stage is behind
+                    ReceiveFrame frame = pipeline.claimFrame();
+                    if (frame == null) {
+                        throw new InterruptedException("connected thread interrupted");
+                    }
+
+                    if (!readFully(frame.data, 0, FrameHeaderDecoder.FIXED_LENGTH)) {
+                        // the camera closed the connection
+                        if (!mmClosed) {
+                            connectionLost(this, true);
+                        }
+                        break;
+                    }
+                    int length = BluetoothResponseFrame.frameLength(
+                            header.wrap(frame.buffer, 0).payloadLength());
+                    boolean complete;
+                    if (length > frame.data.length) {
+                        Log.e(TAG, "readFrames: skipping a frame of " + length + " bytes");
+                        // read it into the same entry, to stay in step with the frames after it
+                        complete = skipFully(frame.data, length - FrameHeaderDecoder.FIXED_LENGTH);
+                    } else {
+                        complete = readFully(frame.data, FrameHeaderDecoder.FIXED_LENGTH,
+                                length - FrameHeaderDecoder.FIXED_LENGTH);
+                    }
+                    if (!complete) {
+                        if (!mmClosed) {
+                            connectionLost(this, true);
+                        }
+                        break;
+                    }
+                    if (length > frame.data.length) {
+                        // the claimed entry is filled again by the next frame
+                        continue;
+                    }
+
+                    frame.length = length;
+                    frame.receivedNanos = System.nanoTime();
+                    frame.device = device;
+                    if (firstFrame) {
+                        firstFrameReceived(frame.receivedNanos);
+                        firstFrame = false;
+                    }
+                    pipeline.publishFrame();
+
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "run: Error reading data from BT device", e);
+                    if (!mmClosed) {
+                        connectionLost(this, false);
+                    }
                     break;
                 }
             }
         }
 
-        // Function to write data to the connected Bluetooth device
-        public void write(byte[] buffer, int start, int end) {
-            // print out the buffer content
-            if(D){
-                String txt = new String(buffer, Charset.defaultCharset());
-                Log.d(TAG, "connected thread: writing data " + txt);
+        /**
+         * Read exactly len bytes.
+         * @param b
+         * @param off
+         * @param len
+         * @return boolean, false if the stream ended first
+         * @throws IOException
+         */
+        private boolean readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int nBytes = mmInputStream.read(b, off, len);
+                if (nBytes < 0) {
+                    return false;
+                }
+                off += nBytes;
+                len -= nBytes;
+            }
+            return true;
+        }
+
+        /**
+         * Read and drop len bytes, through the scratch array.
+         * @param scratch
+         * @param len
+         * @return boolean, false if the stream ended first
+         * @throws IOException
+         */
+        private boolean skipFully(byte[] scratch, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, scratch.length);
+                if (!readFully(scratch, 0, chunk)) {
+                    return false;
+                }
+                len -= chunk;
             }
+            return true;
+        }
 
-            // write the data to the output stream
+        /**
+         * Record how long the camera took from the accepted connection to its first frame.
+         * Without the receive pipeline, the delay before each read in run() is included.
+         * @param receivedNanos
+         */
+        private void firstFrameReceived(long receivedNanos) {
+            if (!mmOutgoing) {
+                BluetoothMetrics.get().recordAcceptToFirstFrame(receivedNanos - mmConnectedNanos);
+            }
+        }
+
+        BluetoothDevice getRemoteDevice() {
+            return mmSocket.getRemoteDevice();
+        }
+
+        boolean isOutgoing() {
+            return mmOutgoing;
+        }
+
+        // Function to write data to the connected Bluetooth device
+        public void write(byte[] buffer, int start, int end) {
+            // write the data to the output stream. Responses are sent from the pipeline threads
+            // and the UI, so the writes must not interleave.
             try {
-                mmOutputStream.write(buffer, start, end);
+                synchronized (mmOutputStream) {
+                    mmOutputStream.write(buffer, start, end);
+                }
             } catch (IOException e) {
                 Log.e(TAG, "connected thread: failed sending data", e);
             }
@@ -616,10 +983,14 @@ public class BluetoothService {
 
         // Function to close the blocking read and write calls
         public void close() {
+            mmClosed = true;
             try {
                 if(D)
                     Log.d(TAG, "connected thread: Closing the connected socket");
                 mmSocket.close();
+
+                // also wakes the thread up if it waits for a free frame in the receive pipeline
+                interrupt();
             } catch (IOException e) {
                 Log.e(TAG, "connected thread: Failed to close the socket", e);
             }
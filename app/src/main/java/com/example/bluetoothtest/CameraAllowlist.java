@@ -0,0 +1,261 @@
+package com.example.bluetoothtest;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * MAC addresses of the cameras allowed to connect, saved in the shared preferences.
+ *
+ * The accept thread checks every accepted socket against the list before anything is set up for
+ * it, so the check has to be cheap: a MAC address is a 48 bit number, and the addresses are held
+ * in an open addressing table of longs. A lookup parses the address, hashes it and probes the
+ * table, without a lock and without allocating.
+ *
+ * The table is replaced as a whole when a camera is added or removed, which is rare, so readers
+ * never see it half changed. A device not on the list is rejected, also while the list is empty.
+ * On the first start the list is set up with seed(), from the cameras paired before the app ran.
+ */
+final class CameraAllowlist {
+    private static final String TAG = "CameraAllowlist";
+    private static final boolean D = true;
+
+    static final String PREFERENCES_NAME = "camera_allowlist";
+    private static final String KEY_CAMERAS = "cameras";
+
+    // a MAC address is 48 bits, this is never one
+    private static final long EMPTY = -1;
+
+    private final SharedPreferences myPreferences;
+
+    // open addressing table, length a power of two and at most half full
+    private volatile long[] myTable;
+    private volatile int mySize;
+    // a list was saved, so the first start is over and seed() does nothing
+    private volatile boolean mySaved;
+
+    /**
+     * @param preferences where the list is saved, null to keep it in memory only
+     */
+    CameraAllowlist(SharedPreferences preferences) {
+        myPreferences = preferences;
+        Set<String> saved = preferences != null ? preferences.getStringSet(KEY_CAMERAS, null) : null;
+        mySaved = saved != null;
+        long[] table = newTable(saved != null ? saved.size() : 0);
+        if (saved != null) {
+            for (String mac : saved) {
+                long key = toKey(mac);
+                if (key != EMPTY && insert(table, key)) {
+                    mySize++;
+                }
+            }
+        }
+        myTable = table;
+        if (D)
+            Log.d(TAG, "CameraAllowlist: " + mySize + " cameras");
+    }
+
+    /**
+     * Whether a device may connect.
+     * @param mac MAC address of the device, "00:11:22:AA:BB:CC"
+     * @return boolean, true if the device is on the list
+     */
+    boolean isAllowed(String mac) {
+        long key = toKey(mac);
+        return key != EMPTY && indexOf(myTable, key) >= 0;
+    }
+
+    /**
+     * Whether the list was set up, by seed() or by adding or removing a camera.
+     * @return boolean, false on the first start
+     */
+    boolean isSetUp() {
+        return mySaved;
+    }
+
+    /**
+     * Set the list up on the first start, e.g. with the cameras paired in the system settings
+     * before the app ran. Does nothing once the list is set up, also if it was emptied since.
+     * @param macs MAC addresses of the cameras
+     * @return int, number of cameras added
+     */
+    synchronized int seed(Collection<String> macs) {
+        if (mySaved) {
+            return 0;
+        }
+        long[] table = newTable(mySize + macs.size());
+        copyInto(myTable, table, EMPTY);
+        int added = 0;
+        for (String mac : macs) {
+            long key = toKey(mac);
+            if (key != EMPTY && insert(table, key)) {
+                added++;
+            }
+        }
+        myTable = table;
+        mySize += added;
+        save();
+        if (D)
+            Log.d(TAG, "seed: " + added + " cameras");
+        return added;
+    }
+
+    /**
+     * Add a camera to the list and save the list.
+     * @param mac MAC address of the camera
+     * @return boolean, false if the address is malformed or already on the list
+     */
+    synchronized boolean add(String mac) {
+        long key = toKey(mac);
+        if (key == EMPTY || indexOf(myTable, key) >= 0) {
+            return false;
+        }
+        long[] table = newTable(mySize + 1);
+        copyInto(myTable, table, EMPTY);
+        insert(table, key);
+        myTable = table;
+        mySize++;
+        save();
+        return true;
+    }
+
+    /**
+     * Remove a camera from the list and save the list.
+     * @param mac MAC address of the camera
+     * @return boolean, false if it was not on the list
+     */
+    synchronized boolean remove(String mac) {
+        long key = toKey(mac);
+        if (key == EMPTY || indexOf(myTable, key) < 0) {
+            return false;
+        }
+        long[] table = newTable(mySize - 1);
+        copyInto(myTable, table, key);
+        myTable = table;
+        mySize--;
+        save();
+        return true;
+    }
+
+    /**
+     * Number of cameras on the list.
+     * @return int
+     */
+    int size() {
+        return mySize;
+    }
+
+    /**
+     * MAC address as a 48 bit number.
+     * @param mac "00:11:22:AA:BB:CC", either case
+     * @return long, EMPTY if the address is malformed
+     */
+    static long toKey(String mac) {
+        if (mac == null || mac.length() != 17) {
+            return EMPTY;
+        }
+        long key = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return EMPTY;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return EMPTY;
+            }
+            key = key << 4 | digit;
+        }
+        return key;
+    }
+
+    /**
+     * 48 bit number as a MAC address.
+     * @param key
+     * @return String, "00:11:22:AA:BB:CC"
+     */
+    static String toMac(long key) {
+        StringBuilder mac = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (key >>> shift) & 0xFF;
+            mac.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)));
+            mac.append(Character.toUpperCase(Character.forDigit(octet & 0xF, 16)));
+            if (shift > 0) {
+                mac.append(':');
+            }
+        }
+        return mac.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private void save() {
+        mySaved = true;
+        if (myPreferences == null) {
+            return;
+        }
+        Set<String> cameras = new HashSet<>();
+        for (long key : myTable) {
+            if (key != EMPTY) {
+                cameras.add(toMac(key));
+            }
+        }
+        myPreferences.edit().putStringSet(KEY_CAMERAS, cameras).apply();
+    }
+
+    private static long[] newTable(int size) {
+        int length = 8;
+        while (length < size * 2) {
+            length <<= 1;
+        }
+        long[] table = new long[length];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static void copyInto(long[] from, long[] to, long skip) {
+        for (long key : from) {
+            if (key != EMPTY && key != skip) {
+                insert(to, key);
+            }
+        }
+    }
+
+    private static int slot(long[] table, long key) {
+        // the vendor part of MAC addresses repeats, mix all bits into the index
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (table.length - 1);
+    }
+
+    private static int indexOf(long[] table, long key) {
+        int mask = table.length - 1;
+        for (int i = slot(table, key); ; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return i;
+            }
+            if (table[i] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private static boolean insert(long[] table, long key) {
+        int mask = table.length - 1;
+        for (int i = slot(table, key); ; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return false;
+            }
+            if (table[i] == EMPTY) {
+                table[i] = key;
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.bluetoothtest;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Clock synchronization with the cameras, NTP style.
+ *
+ * A camera sends its clock in TIME_REQUEST (t0), the phone answers with the time it received the
+ * request (t1) and the time it sent the answer (t2), and the camera notes when the answer arrived
+ * (t3). With all four the camera can set its clock without the transfer delay. The camera passes
+ * t3 back with its next request, so the phone learns the same exchange and estimates the offset
+ * of every camera clock from its own:
+ *
+ *      offset = ((t1 - t0) + (t2 - t3)) / 2        delay = (t3 - t0) - (t2 - t1)
+ *
+ * The exchange with the shortest delay of the last few is the most accurate and gives the
+ * offset. The drift of the camera clock is the slope of these offsets over time. Both are used to
+ * correct times set by the camera clock, e.g. the capture time of an image, on ingest.
+ *
+ * The phone times come from a monotonic clock, so t2 - t1 is exact even if the wall clock is
+ * set in between. The monotonic clock is put on the wall clock once per exchange.
+ */
+final class ClockSync {
+    private static final String TAG = "ClockSync";
+    // logs every exchange, only turn on to debug
+    private static final boolean D = false;
+
+    // exchanges kept per camera, the one with the shortest delay gives the offset
+    private static final int FILTER_SIZE = 8;
+    // offsets kept per camera for the drift estimate
+    private static final int DRIFT_POINTS = 32;
+    // the drift is estimated once the offsets span this long
+    private static final long MIN_DRIFT_SPAN_MILLIS = 10 * 60 * 1000;
+    // drift of a working quartz clock, anything beyond is a measurement error
+    private static final double MAX_DRIFT_PPM = 500;
+    // exchanges with a longer delay are not used
+    private static final long MAX_DELAY_MILLIS = 2000;
+    // the monotonic clock is put on the wall clock again once they are this far apart
+    private static final long REBASE_MILLIS = 500;
+
+    /**
+     * Clock state of one camera, guarded by itself.
+     */
+    private static final class CameraClock {
+        // the last exchange, waiting for its t3 in the next request. t0 0 if none.
+        long originate;
+        long receive;
+        long transmit;
+
+        // the last exchanges: phone time (t1), offset, delay
+        final long[] filterTimes = new long[FILTER_SIZE];
+        final double[] filterOffsets = new double[FILTER_SIZE];
+        final long[] filterDelays = new long[FILTER_SIZE];
+        int filterCount;
+
+        // the offsets picked by the filter over time
+        final long[] driftTimes = new long[DRIFT_POINTS];
+        final double[] driftOffsets = new double[DRIFT_POINTS];
+        int driftCount;
+
+        // estimate: phone time = camera time + offset + drift * (phone time - reference)
+        boolean synced;
+        double offsetMillis;
+        double driftPpm;
+        long referenceMillis;
+    }
+
+    // wall clock - monotonic clock
+    private volatile long myBaseMillis;
+    private final ConcurrentMap<String, CameraClock> myCameras = new ConcurrentHashMap<>();
+
+    ClockSync() {
+        rebase();
+    }
+
+    /**
+     * Current phone time, milliseconds since the epoch. Cheap, allocates nothing.
+     * @return long
+     */
+    long nowMillis() {
+        return SystemClock.elapsedRealtime() + myBaseMillis;
+    }
+
+    /**
+     * Phone time of a System.nanoTime() taken a short while ago, e.g. when a frame was read.
+     * @param nanos
+     * @return long, milliseconds since the epoch
+     */
+    long toMillis(long nanos) {
+        return nowMillis() - (System.nanoTime() - nanos) / 1000000;
+    }
+
+    /**
+     * Put the monotonic clock on the wall clock again if the wall clock was set. Call before
+     * taking the times of an exchange.
+     */
+    void rebase() {
+        long base = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (Math.abs(base - myBaseMillis) > REBASE_MILLIS) {
+            myBaseMillis = base;
+        }
+    }
+
+    /**
+     * Record an exchange with a camera: the request it sent and the response going back.
+     * @param camera MAC address of the camera
+     * @param originateMillis t0, camera time the request was sent
+     * @param lastArrivalMillis camera time the previous response arrived, 0 if unknown
+     * @param receiveMillis t1, phone time the request was received
+     * @param transmitMillis t2, phone time the response is sent
+     */
+    void onExchange(String camera, long originateMillis, long lastArrivalMillis,
+                    long receiveMillis, long transmitMillis) {
+        CameraClock clock = myCameras.get(camera);
+        if (clock == null) {
+            CameraClock created = new CameraClock();
+            clock = myCameras.putIfAbsent(camera, created);
+            if (clock == null) {
+                clock = created;
+            }
+        }
+        synchronized (clock) {
+            if (clock.originate != 0 && lastArrivalMillis != 0) {
+                complete(camera, clock, lastArrivalMillis);
+            }
+            clock.originate = originateMillis;
+            clock.receive = receiveMillis;
+            clock.transmit = transmitMillis;
+        }
+    }
+
+    /**
+     * Convert a time set by a camera clock to phone time.
+     * @param camera MAC address of the camera
+     * @param cameraMillis milliseconds since the epoch, by the camera clock
+     * @return long, milliseconds since the epoch by the phone clock, cameraMillis unchanged if
+     * the camera has not synchronized yet
+     */
+    long toPhoneTime(String camera, long cameraMillis) {
+        CameraClock clock = myCameras.get(camera);
+        if (clock == null) {
+            return cameraMillis;
+        }
+        synchronized (clock) {
+            if (!clock.synced) {
+                return cameraMillis;
+            }
+            double phone = cameraMillis + clock.offsetMillis;
+            phone += clock.driftPpm * (phone - clock.referenceMillis) / 1e6;
+            return Math.round(phone);
+        }
+    }
+
+    /**
+     * Offset of a camera clock, phone time - camera time.
+     * @param camera MAC address of the camera
+     * @return long, milliseconds, 0 if the camera has not synchronized yet
+     */
+    long getOffsetMillis(String camera) {
+        CameraClock clock = myCameras.get(camera);
+        if (clock == null) {
+            return 0;
+        }
+        synchronized (clock) {
+            return Math.round(clock.offsetMillis);
+        }
+    }
+
+    /**
+     * Drift of a camera clock, how much faster the phone clock runs.
+     * @param camera MAC address of the camera
+     * @return double, parts per million, 0 if not known yet
+     */
+    double getDriftPpm(String camera) {
+        CameraClock clock = myCameras.get(camera);
+        if (clock == null) {
+            return 0;
+        }
+        synchronized (clock) {
+            return clock.driftPpm;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * The t3 of the last exchange arrived: take its offset into the estimate.
+     */
+    private static void complete(String camera, CameraClock clock, long arrivalMillis) {
+        long delay = (arrivalMillis - clock.originate) - (clock.transmit - clock.receive);
+        if (delay < 0 || delay > MAX_DELAY_MILLIS) {
+            if (D)
+                Log.d(TAG, "complete: " + camera + " exchange dropped, delay " + delay + " ms");
+            return;
+        }
+        double offset = ((clock.receive - clock.originate) + (clock.transmit - arrivalMillis)) / 2.0;
+        int slot = clock.filterCount++ % FILTER_SIZE;
+        clock.filterTimes[slot] = clock.receive;
+        clock.filterOffsets[slot] = offset;
+        clock.filterDelays[slot] = delay;
+
+        // the shortest delay of the filter
+        int best = 0;
+        int n = Math.min(clock.filterCount, FILTER_SIZE);
+        for (int i = 1; i < n; i++) {
+            if (clock.filterDelays[i] < clock.filterDelays[best]) {
+                best = i;
+            }
+        }
+        long bestTime = clock.filterTimes[best];
+        double bestOffset = clock.filterOffsets[best];
+        int lastPoint = (clock.driftCount - 1) % DRIFT_POINTS;
+        if (clock.driftCount == 0 || clock.driftTimes[lastPoint] != bestTime) {
+            int point = clock.driftCount++ % DRIFT_POINTS;
+            clock.driftTimes[point] = bestTime;
+            clock.driftOffsets[point] = bestOffset;
+        }
+
+        clock.offsetMillis = bestOffset;
+        clock.referenceMillis = bestTime;
+        clock.driftPpm = estimateDrift(clock);
+        clock.synced = true;
+        if (D)
+            Log.d(TAG, "complete: " + camera + " offset " + Math.round(bestOffset) + " ms, delay "
+                    + clock.filterDelays[best] + " ms, drift " + Math.round(clock.driftPpm) + " ppm");
+    }
+
+    /**
+     * Least squares slope of the filtered offsets over phone time.
+     * @return double, parts per million, 0 while the offsets span too short a time
+     */
+    private static double estimateDrift(CameraClock clock) {
+        int n = Math.min(clock.driftCount, DRIFT_POINTS);
+        if (n < 2) {
+            return 0;
+        }
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            first = Math.min(first, clock.driftTimes[i]);
+            last = Math.max(last, clock.driftTimes[i]);
+        }
+        if (last - first < MIN_DRIFT_SPAN_MILLIS) {
+            return 0;
+        }
+        // relative to the first time, the doubles keep their precision
+        double meanTime = 0;
+        double meanOffset = 0;
+        for (int i = 0; i < n; i++) {
+            meanTime += clock.driftTimes[i] - first;
+            meanOffset += clock.driftOffsets[i];
+        }
+        meanTime /= n;
+        meanOffset /= n;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < n; i++) {
+            double dt = clock.driftTimes[i] - first - meanTime;
+            covariance += dt * (clock.driftOffsets[i] - meanOffset);
+            variance += dt * dt;
+        }
+        double ppm = covariance / variance * 1e6;
+        return Math.max(-MAX_DRIFT_PPM, Math.min(MAX_DRIFT_PPM, ppm));
+    }
+}
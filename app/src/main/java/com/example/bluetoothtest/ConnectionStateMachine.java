@@ -0,0 +1,190 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection state of the BluetoothService, one of the BluetoothState values.
+ *
+ * The state changes with a compare-and-set, so reading it and moving it never takes a lock. A
+ * move is only made if the transition table allows it, an illegal move is rejected and logged.
+ *
+ * The listener is called on a thread of its own, never on the thread that moved the state, so
+ * a slow listener cannot hold up accepting, connecting or writing. Every move is numbered
+ * together with the state. If two moves race, the listener may miss the older one, but it never
+ * sees the states out of order and always ends up with the current one.
+ */
+final class ConnectionStateMachine {
+    private static final String TAG = "ConnectionStateMachine";
+    private static final boolean D = true;
+
+    private static final int STATE_BITS = 8;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    // allowed moves: bit "to" of ALLOWED[from]
+    private static final int[] ALLOWED = new int[BluetoothState.STATE_UNKNOWN + 1];
+
+    static {
+        allow(BluetoothState.STATE_NONE, BluetoothState.STATE_LISTEN,
+                BluetoothState.STATE_CONNECTING, BluetoothState.STATE_CONNECTED);
+        allow(BluetoothState.STATE_LISTEN, BluetoothState.STATE_NONE,
+                BluetoothState.STATE_CONNECTING, BluetoothState.STATE_CONNECTED);
+        allow(BluetoothState.STATE_CONNECTING, BluetoothState.STATE_NONE,
+                BluetoothState.STATE_LISTEN, BluetoothState.STATE_CONNECTED);
+        allow(BluetoothState.STATE_CONNECTED, BluetoothState.STATE_NONE,
+                BluetoothState.STATE_LISTEN, BluetoothState.STATE_DISCONNECTED);
+        allow(BluetoothState.STATE_DISCONNECTED, BluetoothState.STATE_NONE,
+                BluetoothState.STATE_LISTEN, BluetoothState.STATE_CONNECTING,
+                BluetoothState.STATE_CONNECTED);
+        allow(BluetoothState.STATE_UNKNOWN, BluetoothState.STATE_NONE,
+                BluetoothState.STATE_LISTEN, BluetoothState.STATE_CONNECTING,
+                BluetoothState.STATE_CONNECTED, BluetoothState.STATE_DISCONNECTED);
+    }
+
+    private static void allow(int from, int... to) {
+        for (int state : to) {
+            ALLOWED[from] |= 1 << state;
+        }
+    }
+
+    // move number << STATE_BITS | state
+    private final AtomicLong myState;
+    private volatile BluetoothBaseListener myListener;
+    private final ExecutorService myNotifier;
+
+    // last move passed to the listener, only used on the notifier thread
+    private long myDeliveredMove = -1;
+
+    /**
+     * @param initialState BluetoothState value to start in
+     */
+    ConnectionStateMachine(int initialState) {
+        myState = new AtomicLong(initialState);
+        myNotifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BT_STATE_THREAD");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set the listener told about every state change.
+     * @param listener null for none
+     */
+    void setListener(BluetoothBaseListener listener) {
+        myListener = listener;
+    }
+
+    /**
+     * Current state.
+     * @return int, BluetoothState value
+     */
+    int get() {
+        return (int) (myState.get() & STATE_MASK);
+    }
+
+    /**
+     * Whether the table allows a move.
+     * @param from BluetoothState value
+     * @param to BluetoothState value
+     * @return boolean, true for staying in the same state
+     */
+    static boolean isAllowed(int from, int to) {
+        return from == to || (from >= 0 && from < ALLOWED.length && to >= 0 && to < ALLOWED.length
+                && (ALLOWED[from] & (1 << to)) != 0);
+    }
+
+    /**
+     * Move to a state from whatever the current state is, if the table allows it.
+     * @param to BluetoothState value
+     * @return boolean, false if the move was rejected
+     */
+    boolean moveTo(int to) {
+        while (true) {
+            long current = myState.get();
+            int from = (int) (current & STATE_MASK);
+            if (from == to) {
+                return true;
+            }
+            if (!isAllowed(from, to)) {
+                Log.e(TAG, "moveTo: illegal move " + Utils.btConnStateAsString(from) + " -> "
+                        + Utils.btConnStateAsString(to));
+                return false;
+            }
+            if (compareAndMove(current, to)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move to a state only if the current state is the expected one.
+     * @param from the expected BluetoothState value
+     * @param to BluetoothState value
+     * @return boolean, false if the state was not "from" or the move is not allowed
+     */
+    boolean moveFrom(int from, int to) {
+        if (!isAllowed(from, to)) {
+            Log.e(TAG, "moveFrom: illegal move " + Utils.btConnStateAsString(from) + " -> "
+                    + Utils.btConnStateAsString(to));
+            return false;
+        }
+        while (true) {
+            long current = myState.get();
+            if ((int) (current & STATE_MASK) != from) {
+                return false;
+            }
+            if (from == to || compareAndMove(current, to)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stop the notifier thread. Moves made afterwards are not reported.
+     */
+    void shutdown() {
+        myNotifier.shutdown();
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private boolean compareAndMove(long current, int to) {
+        final long next = ((current >>> STATE_BITS) + 1) << STATE_BITS | to;
+        if (!myState.compareAndSet(current, next)) {
+            return false;
+        }
+        if (D)
+            Log.d(TAG, "move: " + Utils.btConnStateAsString((int) (current & STATE_MASK)) + " -> "
+                    + Utils.btConnStateAsString(to));
+        if (myListener != null && !myNotifier.isShutdown()) {
+            myNotifier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(next);
+                }
+            });
+        }
+        return true;
+    }
+
+    private void deliver(long move) {
+        long number = move >>> STATE_BITS;
+        if (number <= myDeliveredMove) {
+            // a later move got here first
+            return;
+        }
+        myDeliveredMove = number;
+        BluetoothBaseListener listener = myListener;
+        if (listener != null) {
+            listener.onBluetoothServiceStateChanged((int) (move & STATE_MASK));
+        }
+    }
+}
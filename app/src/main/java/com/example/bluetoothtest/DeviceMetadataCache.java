@@ -0,0 +1,194 @@
+package com.example.bluetoothtest;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Name and bond state of the remote devices, keyed by MAC address.
+ *
+ * BluetoothDevice.getName() and getBondState() are binder calls into the Bluetooth system
+ * service. Each is made at most once per device, when the value is first needed, and after that
+ * the metadata comes from here. The broadcasts keep the entries current: ACTION_FOUND and
+ * ACTION_NAME_CHANGED carry the name, so a found device costs no binder call at all, and
+ * ACTION_BOND_STATE_CHANGED the bond state. A device that disconnects or is unpaired is
+ * forgotten.
+ *
+ * Like the DiscoveryTable, the cache holds at most a fixed number of devices, the one not used
+ * for the longest time makes room, and devices not used for a while are dropped. So a scan in a
+ * crowded place does not make it grow without bound.
+ */
+final class DeviceMetadataCache {
+
+    // the bond state was not looked up yet
+    private static final int BOND_UNKNOWN = -1;
+
+    /**
+     * Metadata of one device, kept current by the broadcasts.
+     */
+    static final class Entry {
+        final String address;
+        volatile String name;
+        volatile int bondState;
+        // SystemClock.elapsedRealtime() of the last use, guarded by the cache
+        long usedMillis;
+
+        Entry(String address, String name, int bondState) {
+            this.address = address;
+            this.name = name;
+            this.bondState = bondState;
+        }
+    }
+
+    private final int myCapacity;
+    private final long myMaxAgeMillis;
+
+    // by MAC address, least recently used first. Guarded by this.
+    private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity most devices kept
+     * @param maxAgeMillis a device not used for this long is dropped
+     */
+    DeviceMetadataCache(int capacity, long maxAgeMillis) {
+        myCapacity = capacity;
+        myMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Metadata of a device. The name is looked up from the system the first time only, the
+     * bond state when bondStateOf() first needs it.
+     * @param device
+     * @return Entry
+     */
+    Entry get(BluetoothDevice device) {
+        String address = device.getAddress();
+        Entry entry = lookup(address);
+        if (entry == null) {
+            // the binder call is made outside of the lock
+            entry = add(new Entry(address, device.getName(), BOND_UNKNOWN));
+        }
+        return entry;
+    }
+
+    /**
+     * Name of a device.
+     * @param device
+     * @return String, null if the device has not told its name
+     */
+    String nameOf(BluetoothDevice device) {
+        return get(device).name;
+    }
+
+    /**
+     * Bond state of a device.
+     * @param device
+     * @return int, BluetoothDevice.BOND_*
+     */
+    int bondStateOf(BluetoothDevice device) {
+        Entry entry = get(device);
+        int bondState = entry.bondState;
+        if (bondState == BOND_UNKNOWN) {
+            bondState = device.getBondState();
+            entry.bondState = bondState;
+        }
+        return bondState;
+    }
+
+    /**
+     * A device was found in a scan or changed its name. The entry is made from the broadcast,
+     * without asking the system.
+     * @param device
+     * @param name the name sent with the broadcast, null if none was sent
+     */
+    void onName(BluetoothDevice device, String name) {
+        if (name == null) {
+            return;
+        }
+        String address = device.getAddress();
+        Entry entry = lookup(address);
+        if (entry != null) {
+            entry.name = name;
+        } else {
+            add(new Entry(address, name, BOND_UNKNOWN)).name = name;
+        }
+    }
+
+    /**
+     * The bond state of a device changed.
+     * @param device
+     * @param bondState the state sent with the broadcast
+     */
+    void onBondState(BluetoothDevice device, int bondState) {
+        Entry entry = lookup(device.getAddress());
+        if (entry != null) {
+            entry.bondState = bondState;
+        }
+    }
+
+    /**
+     * Forget a device, its metadata is looked up again on the next use.
+     * @param device
+     */
+    synchronized void invalidate(BluetoothDevice device) {
+        myEntries.remove(device.getAddress());
+    }
+
+    /**
+     * Number of devices cached.
+     * @return int
+     */
+    synchronized int size() {
+        expire(SystemClock.elapsedRealtime());
+        return myEntries.size();
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Entry of a device, marked as used.
+     * @return Entry, null if the device is not cached or was not used for too long
+     */
+    private synchronized Entry lookup(String address) {
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+        // get() moves the entry to the most recently used end
+        Entry entry = myEntries.get(address);
+        if (entry != null) {
+            entry.usedMillis = now;
+        }
+        return entry;
+    }
+
+    /**
+     * Add an entry, unless another thread added one for the device meanwhile.
+     * @return Entry, the one in the cache
+     */
+    private synchronized Entry add(Entry entry) {
+        Entry raced = myEntries.get(entry.address);
+        if (raced != null) {
+            return raced;
+        }
+        entry.usedMillis = SystemClock.elapsedRealtime();
+        myEntries.put(entry.address, entry);
+        // the device not used for the longest time makes room
+        Iterator<Entry> eldest = myEntries.values().iterator();
+        while (myEntries.size() > myCapacity) {
+            eldest.next();
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    /**
+     * Drop the devices not used for too long, they are all at the start of the order.
+     */
+    private void expire(long nowMillis) {
+        Iterator<Entry> eldest = myEntries.values().iterator();
+        while (eldest.hasNext() && nowMillis - eldest.next().usedMillis > myMaxAgeMillis) {
+            eldest.remove();
+        }
+    }
+}
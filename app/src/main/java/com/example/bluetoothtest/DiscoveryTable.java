@@ -0,0 +1,194 @@
+package com.example.bluetoothtest;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The devices found by the scans, one entry per MAC address.
+ *
+ * A device answers an inquiry several times, and every answer is an ACTION_FOUND. Instead of a
+ * list with the same camera in it over and over, each answer updates the entry of the device:
+ * when it was last seen and its RSSI, smoothed over the answers so one faded reading does not
+ * move it to the back. The table holds at most a fixed number of devices, the one not seen for
+ * the longest time makes room, and devices not seen for a while are dropped.
+ *
+ * The entries are ordered by when they were last seen, so expiring and evicting only look at
+ * the oldest ones. An entry is replaced on every answer, the ones handed out do not change.
+ *
+ * An answer without an RSSI only counts as a sighting, it does not move the smoothed value. A
+ * device never heard with an RSSI ranks behind every device that was.
+ */
+final class DiscoveryTable {
+
+    /** RSSI of an answer that came without one */
+    static final short NO_RSSI = Short.MIN_VALUE;
+
+    // weight of a new RSSI reading in the smoothed value
+    private static final double RSSI_WEIGHT = 0.3;
+
+    /**
+     * One device, as last seen.
+     */
+    static final class Entry {
+        final BluetoothDevice device;
+        final long firstSeenMillis;
+        final long lastSeenMillis;
+        // smoothed RSSI, dBm. NO_RSSI if no answer had one.
+        final double rssi;
+        final int sightings;
+
+        Entry(BluetoothDevice device, long firstSeenMillis, long lastSeenMillis, double rssi,
+              int sightings) {
+            this.device = device;
+            this.firstSeenMillis = firstSeenMillis;
+            this.lastSeenMillis = lastSeenMillis;
+            this.rssi = rssi;
+            this.sightings = sightings;
+        }
+    }
+
+    private static final Comparator<Entry> STRONGEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Double.compare(b.rssi, a.rssi);
+        }
+    };
+
+    private final int myCapacity;
+    private final long myMaxAgeMillis;
+
+    // by MAC address, least recently seen first. Guarded by this.
+    private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<>();
+
+    /**
+     * @param capacity most devices kept
+     * @param maxAgeMillis a device not seen for this long is dropped
+     */
+    DiscoveryTable(int capacity, long maxAgeMillis) {
+        myCapacity = capacity;
+        myMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * A device answered a scan.
+     * @param device
+     * @param rssi RSSI of the answer, dBm, NO_RSSI if it had none
+     * @return Entry, the updated entry of the device
+     */
+    Entry onFound(BluetoothDevice device, short rssi) {
+        return onFound(device, rssi, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * A device answered a scan.
+     * @param device
+     * @param rssi RSSI of the answer, dBm, NO_RSSI if it had none
+     * @param nowMillis SystemClock.elapsedRealtime() of the answer
+     * @return Entry, the updated entry of the device
+     */
+    synchronized Entry onFound(BluetoothDevice device, short rssi, long nowMillis) {
+        String address = device.getAddress();
+        // taken out and put back, so the entry moves to the end of the order
+        Entry previous = myEntries.remove(address);
+        Entry entry;
+        if (previous == null) {
+            entry = new Entry(device, nowMillis, nowMillis, rssi, 1);
+        } else {
+            double smoothed;
+            if (rssi == NO_RSSI) {
+                smoothed = previous.rssi;
+            } else if (previous.rssi == NO_RSSI) {
+                // the first reading, nothing to smooth with
+                smoothed = rssi;
+            } else {
+                smoothed = previous.rssi + RSSI_WEIGHT * (rssi - previous.rssi);
+            }
+            entry = new Entry(device, previous.firstSeenMillis, nowMillis, smoothed,
+                    previous.sightings + 1);
+        }
+        myEntries.put(address, entry);
+        expire(nowMillis);
+        // the device not seen for the longest time makes room
+        Iterator<Entry> oldest = myEntries.values().iterator();
+        while (myEntries.size() > myCapacity) {
+            oldest.next();
+            oldest.remove();
+        }
+        return entry;
+    }
+
+    /**
+     * Entry of a device.
+     * @param mac MAC address
+     * @return Entry, null if the device was not seen lately
+     */
+    synchronized Entry get(String mac) {
+        Entry entry = myEntries.get(mac);
+        if (entry == null || isExpired(entry, SystemClock.elapsedRealtime())) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * The devices seen lately with the strongest signal, e.g. to connect to the camera most
+     * likely to answer quickly first.
+     * @param n most devices returned
+     * @return List, strongest first
+     */
+    List<Entry> strongest(int n) {
+        return strongest(n, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * The devices seen lately with the strongest signal.
+     * @param n most devices returned
+     * @param nowMillis SystemClock.elapsedRealtime()
+     * @return List, strongest first
+     */
+    synchronized List<Entry> strongest(int n, long nowMillis) {
+        expire(nowMillis);
+        List<Entry> entries = new ArrayList<>(myEntries.values());
+        Collections.sort(entries, STRONGEST_FIRST);
+        return n < entries.size() ? new ArrayList<>(entries.subList(0, n)) : entries;
+    }
+
+    /**
+     * Number of devices seen lately.
+     * @return int
+     */
+    synchronized int size() {
+        expire(SystemClock.elapsedRealtime());
+        return myEntries.size();
+    }
+
+    /**
+     * Forget all devices.
+     */
+    synchronized void clear() {
+        myEntries.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private boolean isExpired(Entry entry, long nowMillis) {
+        return nowMillis - entry.lastSeenMillis > myMaxAgeMillis;
+    }
+
+    /**
+     * Drop the devices not seen for too long, they are all at the start of the order.
+     */
+    private void expire(long nowMillis) {
+        Iterator<Entry> oldest = myEntries.values().iterator();
+        while (oldest.hasNext() && isExpired(oldest.next(), nowMillis)) {
+            oldest.remove();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ImageStore keeping every image in a file of its own. An image is written through a FileChannel
+ * to a temporary file, and sync() forces the written files to disk and renames them into place.
+ * So a reader never sees a half written image, and an existing image is only replaced once its
+ * successor is complete.
+ *
+ * Every write gets a temporary file of its own, so two writes of the same name, e.g. a retried
+ * image, never write into the same file. The last one synced wins. The temporary file is closed
+ * once written, sync() opens it again to force it to disk.
+ */
+final class FileImageStore implements ImageStore {
+    private static final String TAG = "FileImageStore";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final File myDirectory;
+    private final boolean myForce;
+
+    // written files waiting for sync(), guarded by this
+    private List<PendingFile> myPending = new ArrayList<>();
+
+    // makes the name of each temporary file unique
+    private final AtomicLong myPartSequence = new AtomicLong();
+
+    private static final class PendingFile {
+        final String name;
+        final File part;
+        final File target;
+
+        PendingFile(String name, File part, File target) {
+            this.name = name;
+            this.part = part;
+            this.target = target;
+        }
+    }
+
+    /**
+     * @param directory where the images are kept, null if storage is not available
+     * @param force whether sync() forces the data to the storage device, or only renames
+     */
+    FileImageStore(File directory, boolean force) {
+        myDirectory = directory;
+        myForce = force;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return myDirectory != null;
+    }
+
+    @Override
+    public void write(String name, byte[] data, int offset, int length) throws IOException {
+        File target = fileOf(name);
+        if (target == null) {
+            throw new IOException("cannot store image " + name);
+        }
+
+        File part = new File(myDirectory,
+                name + '.' + myPartSequence.incrementAndGet() + PART_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(part);
+        try {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } catch (IOException e) {
+            stream.close();
+            part.delete();
+            throw e;
+        }
+        stream.close();
+
+        synchronized (this) {
+            myPending.add(new PendingFile(name, part, target));
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        List<PendingFile> pending;
+        synchronized (this) {
+            if (myPending.isEmpty()) {
+                return;
+            }
+            pending = myPending;
+            myPending = new ArrayList<>();
+        }
+
+        IOException failure = commit(pending, null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public Set<String> sync(Set<String> names) {
+        List<PendingFile> pending = new ArrayList<>(names.size());
+        synchronized (this) {
+            Iterator<PendingFile> files = myPending.iterator();
+            while (files.hasNext()) {
+                PendingFile file = files.next();
+                if (names.contains(file.name)) {
+                    pending.add(file);
+                    files.remove();
+                }
+            }
+        }
+
+        Set<String> stored = new HashSet<>();
+        commit(pending, stored);
+        return stored;
+    }
+
+    @Override
+    public long sizeOf(String name) {
+        File file = fileOf(name);
+        return file != null && file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public String pathOf(String name) {
+        File file = fileOf(name);
+        return file != null ? file.getPath() : name;
+    }
+
+    @Override
+    public long transferTo(String name, WritableByteChannel target) throws IOException {
+        File file = fileOf(name);
+        if (file == null || !file.isFile()) {
+            return -1;
+        }
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return size;
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public boolean delete(String name) {
+        File file = fileOf(name);
+        return file != null && file.delete();
+    }
+
+    /**
+     * File of an image. The name comes from the camera, names that would leave the image
+     * directory are refused.
+     * @param name
+     * @return File, or null if storage is not available or the name is not usable
+     */
+    private File fileOf(String name) {
+        if (myDirectory == null || name == null || name.isEmpty() || name.indexOf('/') >= 0
+                || name.equals(".") || name.equals("..") || name.endsWith(PART_SUFFIX)) {
+            return null;
+        }
+        return new File(myDirectory, name);
+    }
+
+    /**
+     * Force written files to disk and rename them into place, in the order they were written.
+     * A file that fails is deleted, the others are still stored.
+     * @param pending
+     * @param stored gets the names of the images stored, null if not needed
+     * @return IOException, the first failure, null if every file was stored
+     */
+    private IOException commit(List<PendingFile> pending, Set<String> stored) {
+        IOException failure = null;
+        for (PendingFile file : pending) {
+            try {
+                if (myForce) {
+                    force(file.part);
+                }
+                if (!file.part.renameTo(file.target)) {
+                    throw new IOException("could not rename " + file.part + " to " + file.target);
+                }
+                if (stored != null) {
+                    stored.add(file.name);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "commit: failed to store " + file.target, e);
+                file.part.delete();
+                if (stored != null) {
+                    stored.remove(file.name);
+                }
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Force a file written and closed before to the storage device.
+     * @param file
+     * @throws IOException
+     */
+    private static void force(File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try {
+            stream.getChannel().force(false);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.bluetoothtest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffer an image is assembled in. Buffers come from an ImageBufferPool and are reference
+ * counted: whoever holds a reference may read the image, the last release() gives the buffer
+ * back to its pool. The receiver hands its reference over to the storage stage with the
+ * completed image, so the bytes are never copied.
+ *
+ * copyOf() makes a buffer of exactly the image's length that belongs to no pool, for keeping an
+ * image longer than its assembly buffer should be held.
+ */
+final class ImageBuffer {
+    private final byte[] data;
+    private final ImageBufferPool pool;
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    // number of valid bytes, set by the owner that fills the buffer
+    private int length;
+
+    /**
+     * @param capacity
+     * @param pool the pool the buffer goes back to, null if it is left to the garbage collector
+     */
+    ImageBuffer(int capacity, ImageBufferPool pool) {
+        this.data = new byte[capacity];
+        this.pool = pool;
+    }
+
+    /**
+     * Copy an image into a buffer of its exact length, outside of any pool.
+     * @param image
+     * @return ImageBuffer holding one reference
+     */
+    static ImageBuffer copyOf(ImageBuffer image) {
+        ImageBuffer copy = new ImageBuffer(image.length, null);
+        System.arraycopy(image.data, 0, copy.data, 0, image.length);
+        copy.length = image.length;
+        copy.acquired();
+        return copy;
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Take an extra reference, for a reader that keeps the image after the owner released it.
+     * @return this
+     */
+    ImageBuffer retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("retain of a released image buffer");
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference. The buffer goes back to its pool when the last one is dropped.
+     */
+    void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            length = 0;
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("image buffer released too often");
+        }
+    }
+
+    /**
+     * Called by the pool when the buffer is handed out.
+     */
+    void acquired() {
+        refCount.set(1);
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.bluetoothtest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Set of image assembly buffers. The receiver assembles an image in one buffer while the images
+ * before it are still being written from the others. It only waits when every buffer is still
+ * in flight.
+ *
+ * The buffers the receiver always needs are allocated up front, the others when they are first
+ * needed, e.g. while storage falls behind. trim() lets go of the buffers beyond the
+ * ones allocated up front: free ones are dropped at once, the ones still held are dropped when
+ * they are released, and the garbage collector takes them back.
+ */
+final class ImageBufferPool {
+    // upper bound for a single wait, so that close() is noticed
+    private static final long MAX_WAIT_MS = 50;
+
+    private final BlockingQueue<ImageBuffer> freeBuffers;
+    private final int minCount;
+    private final int maxCount;
+    private final int capacity;
+    // buffers allocated and not dropped, free or in use
+    private final AtomicInteger allocated = new AtomicInteger();
+    // a released buffer is dropped while more than this many are allocated
+    private volatile int keepCount;
+    private volatile boolean closed;
+
+    /**
+     * @param minCount number of buffers allocated up front and always kept
+     * @param maxCount most buffers allocated at once
+     * @param capacity size of each buffer, the largest image that can be received
+     */
+    ImageBufferPool(int minCount, int maxCount, int capacity) {
+        this.minCount = minCount;
+        this.maxCount = maxCount;
+        this.capacity = capacity;
+        this.keepCount = maxCount;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxCount);
+        for (int i = 0; i < minCount; i++) {
+            freeBuffers.add(new ImageBuffer(capacity, this));
+        }
+        allocated.set(minCount);
+    }
+
+    /**
+     * Take a free buffer, waiting while all of them are in use.
+     * @return ImageBuffer holding one reference, or null if the pool was closed or the calling
+     * thread was interrupted
+     */
+    ImageBuffer acquire() {
+        try {
+            while (!closed) {
+                ImageBuffer buffer = freeBuffers.poll();
+                if (buffer == null) {
+                    buffer = allocate();
+                }
+                if (buffer == null) {
+                    buffer = freeBuffers.poll(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+                }
+                if (buffer != null) {
+                    buffer.acquired();
+                    return buffer;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Number of buffers currently held by the receiver, the storage stage or readers.
+     * @return int
+     */
+    int inUse() {
+        return allocated.get() - freeBuffers.size();
+    }
+
+    /**
+     * Give the buffers beyond the ones allocated up front to the garbage collector, e.g. when
+     * the system runs low on memory. The pool allocates them again when they are needed.
+     */
+    void trim() {
+        keepCount = minCount;
+        ImageBuffer buffer;
+        while ((buffer = freeBuffers.poll()) != null) {
+            recycle(buffer);
+            if (allocated.get() <= minCount) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Wake up and fail the threads waiting in acquire(). Buffers released later are still
+     * taken back.
+     */
+    void close() {
+        closed = true;
+    }
+
+    void recycle(ImageBuffer buffer) {
+        while (true) {
+            int current = allocated.get();
+            if (current <= keepCount) {
+                freeBuffers.offer(buffer);
+                return;
+            }
+            // dropped: the pool forgets it and the garbage collector takes it back
+            if (allocated.compareAndSet(current, current - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A new buffer, if fewer than maxCount are allocated.
+     */
+    private ImageBuffer allocate() {
+        while (true) {
+            int current = allocated.get();
+            if (current >= maxCount) {
+                return null;
+            }
+            if (allocated.compareAndSet(current, current + 1)) {
+                // needed again, keep the buffers from now on
+                keepCount = maxCount;
+                return new ImageBuffer(capacity, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.bluetoothtest;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Memory cache of the most recently received images, so the latest images of each camera can
+ * be shown without reading them back from storage.
+ *
+ * An assembly buffer is as large as the largest image, far larger than a typical one, so the
+ * cache does not hold on to it. It keeps a copy of each image in a buffer of the image's exact
+ * length, and is bounded in bytes of image data. Evicting an image drops the copy, and the
+ * garbage collector takes the memory back.
+ *
+ * All access goes through the methods of this class, which hold the lock of the cache across a
+ * lookup and the retain() of the buffer found, so an image is never released to its pool while
+ * a reader takes it.
+ */
+final class ImageCache {
+    private static final String TAG = "ImageCache";
+    private static final boolean D = true;
+
+    private final LruCache<String, ImageBuffer> myCache;
+
+    /**
+     * @param maxBytes most bytes of image data cached
+     */
+    ImageCache(int maxBytes) {
+        myCache = new LruCache<String, ImageBuffer>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, ImageBuffer image) {
+                return image.length();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, ImageBuffer oldImage,
+                                        ImageBuffer newImage) {
+                oldImage.release();
+            }
+        };
+    }
+
+    /**
+     * Cache a copy of a completed image, replacing a cached image of the same camera and name.
+     * @param camera MAC address of the camera
+     * @param name name of the image
+     * @param image the image, the caller keeps its reference
+     */
+    void put(String camera, String name, ImageBuffer image) {
+        // copied outside of the lock, readers are not held up by it
+        ImageBuffer copy = ImageBuffer.copyOf(image);
+        synchronized (this) {
+            myCache.put(keyOf(camera, name), copy);
+        }
+    }
+
+    /**
+     * Get a cached image.
+     * @param camera MAC address of the camera
+     * @param name name of the image
+     * @return ImageBuffer holding a reference for the caller, who must release() it, or null if
+     * the image is not cached
+     */
+    ImageBuffer get(String camera, String name) {
+        ImageBuffer image;
+        synchronized (this) {
+            image = myCache.get(keyOf(camera, name));
+            if (image != null) {
+                image.retain();
+            }
+        }
+        if (image != null) {
+            BluetoothMetrics.get().recordImageCacheHit();
+        } else {
+            BluetoothMetrics.get().recordImageCacheMiss();
+        }
+        return image;
+    }
+
+    /**
+     * Drop a cached image, e.g. because it was deleted from storage.
+     * @param camera MAC address of the camera
+     * @param name name of the image
+     */
+    synchronized void remove(String camera, String name) {
+        myCache.remove(keyOf(camera, name));
+    }
+
+    /**
+     * Give memory back when the system asks for it. The less memory is left, the more of the
+     * cache goes, least recently used images first.
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     */
+    synchronized void onTrimMemory(int level) {
+        if (D)
+            Log.d(TAG, "onTrimMemory: level " + level + ", " + myCache.size() + " bytes cached");
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            myCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            myCache.trimToSize(myCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Release every cached image.
+     */
+    synchronized void clear() {
+        myCache.evictAll();
+    }
+
+    private static String keyOf(String camera, String name) {
+        return camera + '/' + name;
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.bluetoothtest;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SQLite catalog of the stored images: camera, capture time, size, SHA-256 digest and location
+ * of every image. It is updated in one transaction per committed group of images, and answers
+ * "latest images of camera X" from the (camera, capture time) index instead of a directory scan.
+ *
+ * Queries are paged by key (capture time and id of the last row seen) rather than by offset, so
+ * every page costs the same and holds at most MAX_PAGE_SIZE rows. Queries run on the calling
+ * thread, do not call them from the UI thread.
+ */
+final class ImageCatalog extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "image_catalog.db";
+    private static final int DATABASE_VERSION = 3;
+
+    static final int MAX_PAGE_SIZE = 500;
+
+    private static final String TABLE = "images";
+    private static final String COLUMNS =
+            "id, camera, name, capture_time, size, digest, path, exported, width, height";
+
+    private static final String INSERT = "INSERT OR REPLACE INTO " + TABLE
+            + " (camera, name, capture_time, size, digest, path, saved_time, width, height)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // newest first, keyset paged on (capture_time, id)
+    private static final String QUERY_CAMERA = "SELECT " + COLUMNS + " FROM " + TABLE
+            + " WHERE camera = ? AND (capture_time < ? OR (capture_time = ? AND id < ?))"
+            + " ORDER BY capture_time DESC, id DESC LIMIT ?";
+
+    // oldest saved first, keyset paged on id
+    private static final String QUERY_ALL = "SELECT " + COLUMNS + " FROM " + TABLE
+            + " WHERE id > ? ORDER BY id LIMIT ?";
+
+    /**
+     * One catalogued image.
+     */
+    static final class Entry {
+        final long id;
+        final String camera;
+        final String name;
+        final long captureTimeMillis;
+        final long size;
+        final byte[] digest;
+        // ImageStore.pathOf(): the file of the image, or its name for a store that moves images
+        final String path;
+        // copied somewhere else, so the local copy can go first when space runs out
+        final boolean exported;
+        // pixel size, 0 if not known
+        final int width;
+        final int height;
+
+        Entry(long id, String camera, String name, long captureTimeMillis, long size,
+              byte[] digest, String path, boolean exported, int width, int height) {
+            this.id = id;
+            this.camera = camera;
+            this.name = name;
+            this.captureTimeMillis = captureTimeMillis;
+            this.size = size;
+            this.digest = digest;
+            this.path = path;
+            this.exported = exported;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * One page of a query. Pass nextKey() of a page to get the page after it.
+     */
+    static final class Page {
+        final List<Entry> entries;
+        final boolean hasMore;
+
+        Page(List<Entry> entries, boolean hasMore) {
+            this.entries = entries;
+            this.hasMore = hasMore;
+        }
+
+        /**
+         * Key of the page after this one.
+         * @return PageKey, or null if this is the last page
+         */
+        PageKey nextKey() {
+            if (!hasMore || entries.isEmpty()) {
+                return null;
+            }
+            Entry last = entries.get(entries.size() - 1);
+            return new PageKey(last.captureTimeMillis, last.id);
+        }
+    }
+
+    /**
+     * Position in a query: the capture time and id of the last row seen.
+     */
+    static final class PageKey {
+        /** key of the first page */
+        static final PageKey FIRST = new PageKey(Long.MAX_VALUE, Long.MAX_VALUE);
+
+        final long captureTimeMillis;
+        final long id;
+
+        PageKey(long captureTimeMillis, long id) {
+            this.captureTimeMillis = captureTimeMillis;
+            this.id = id;
+        }
+    }
+
+    ImageCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // saves and queries come from different threads, let readers run during a write
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "camera TEXT NOT NULL, "
+                + "name TEXT NOT NULL, "
+                + "capture_time INTEGER NOT NULL, "
+                + "size INTEGER NOT NULL, "
+                + "digest BLOB, "
+                + "path TEXT NOT NULL, "
+                + "saved_time INTEGER NOT NULL, "
+                + "exported INTEGER NOT NULL DEFAULT 0, "
+                + "width INTEGER NOT NULL DEFAULT 0, "
+                + "height INTEGER NOT NULL DEFAULT 0, "
+                + "UNIQUE (camera, name))");
+        db.execSQL("CREATE INDEX images_camera_time ON " + TABLE + " (camera, capture_time, id)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN exported INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN width INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN height INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Add a committed group of images, in one transaction. An image already in the catalog
+     * (same camera and name) is replaced.
+     * @param group
+     */
+    void addAll(List<ImageStorageExecutor.Result> group) {
+        SQLiteDatabase db = getWritableDatabase();
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement(INSERT);
+            for (ImageStorageExecutor.Result result : group) {
+                insert.clearBindings();
+                insert.bindString(1, result.camera);
+                insert.bindString(2, result.name);
+                insert.bindLong(3, result.captureTimeMillis);
+                insert.bindLong(4, result.bytes);
+                if (result.digest != null) {
+                    insert.bindBlob(5, result.digest);
+                } else {
+                    insert.bindNull(5);
+                }
+                insert.bindString(6, result.path);
+                insert.bindLong(7, now);
+                insert.bindLong(8, result.width);
+                insert.bindLong(9, result.height);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Remove an image from the catalog.
+     * @param camera MAC address of the camera
+     * @param name
+     * @return true if the image was catalogued
+     */
+    boolean remove(String camera, String name) {
+        return getWritableDatabase().delete(TABLE, "camera = ? AND name = ?",
+                new String[]{camera, name}) > 0;
+    }
+
+    /**
+     * Mark an image as exported, e.g. uploaded or shared. Exported images are the first to be
+     * evicted when storage runs out.
+     * @param camera MAC address of the camera
+     * @param name
+     * @return true if the image is catalogued
+     */
+    boolean markExported(String camera, String name) {
+        ContentValues values = new ContentValues();
+        values.put("exported", 1);
+        return getWritableDatabase().update(TABLE, values, "camera = ? AND name = ?",
+                new String[]{camera, name}) > 0;
+    }
+
+    /**
+     * Images of a camera, newest first.
+     * @param camera MAC address of the camera
+     * @param key PageKey.FIRST, or nextKey() of the previous page
+     * @param pageSize rows per page, at most MAX_PAGE_SIZE
+     * @return Page
+     */
+    Page queryByCamera(String camera, PageKey key, int pageSize) {
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        String time = Long.toString(key.captureTimeMillis);
+
+        // one row more than asked tells whether there is a next page
+        Cursor cursor = getReadableDatabase().rawQuery(QUERY_CAMERA, new String[]{
+                camera, time, time, Long.toString(key.id), Integer.toString(limit + 1)});
+        return readPage(cursor, limit);
+    }
+
+    /**
+     * All images, oldest saved first.
+     * @param afterId 0 for the first page, else the id of the last entry of the previous page
+     * @param pageSize rows per page, at most MAX_PAGE_SIZE
+     * @return Page
+     */
+    Page queryAll(long afterId, int pageSize) {
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        Cursor cursor = getReadableDatabase().rawQuery(QUERY_ALL, new String[]{
+                Long.toString(afterId), Integer.toString(limit + 1)});
+        return readPage(cursor, limit);
+    }
+
+    /**
+     * Newest image of a camera.
+     * @param camera MAC address of the camera
+     * @return Entry, or null if the camera has no images
+     */
+    Entry latest(String camera) {
+        List<Entry> entries = queryByCamera(camera, PageKey.FIRST, 1).entries;
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * Read up to limit rows of COLUMNS, the cursor holds one row more if there is a next page.
+     */
+    private static Page readPage(Cursor cursor, int limit) {
+        List<Entry> entries = new ArrayList<>(limit);
+        boolean hasMore = false;
+        try {
+            while (cursor.moveToNext()) {
+                if (entries.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getLong(3), cursor.getLong(4), cursor.getBlob(5),
+                        cursor.getString(6), cursor.getInt(7) != 0, cursor.getInt(8),
+                        cursor.getInt(9)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return new Page(entries, hasMore);
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.bluetoothtest;
+
+/**
+ * A completed image waiting to be written to storage. Jobs are preallocated by the
+ * ReceivePipeline, the dispatch stage fills them and the storage stage writes them. The job owns
+ * one reference to the image buffer.
+ */
+final class ImageSaveJob {
+    ImageBuffer image;
+    String fileName;
+    String cameraAddress;
+    long captureTimeMillis;
+    // pixel size, 0 if not known
+    int width;
+    int height;
+
+    /**
+     * Release the image buffer once the image is written.
+     */
+    void clear() {
+        if (image != null) {
+            image.release();
+            image = null;
+        }
+        fileName = null;
+        cameraAddress = null;
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes completed images to an ImageStore on a fixed number of storage threads, so that the
+ * images of several camera sessions are written in parallel.
+ *
+ * The number of images waiting to be written is bounded. submit() waits while the queue is
+ * full, which holds the receive pipeline back instead of piling up image buffers.
+ *
+ * Written images are committed in groups of up to commitBatchSize images, or fewer as soon as no
+ * other write is waiting. ImageStore.sync() commits only the images of the group, and tells which
+ * of them are stored. The listener hears about those in one call, so it can record them in one
+ * transaction, and about the others as failed. What a group saves depends on the store: a
+ * SegmentImageStore forces each segment once per group, a FileImageStore still forces every
+ * image file on its own.
+ */
+final class ImageStorageExecutor {
+    private static final String TAG = "ImageStorageExecutor";
+    private static final boolean D = true;
+
+    /**
+     * Told when a group of submitted images was committed, or an image could not be stored.
+     * Called on a storage thread.
+     */
+    interface Listener {
+        void onImagesSaved(List<Result> group);
+
+        void onImageSaveFailed(String name, IOException e);
+    }
+
+    /**
+     * Outcome of one saved image.
+     */
+    static final class Result {
+        final String camera;
+        final String name;
+        // name of the image in the store, see storeNameOf()
+        final String storeName;
+        final long captureTimeMillis;
+        // pixel size, 0 if not known
+        final int width;
+        final int height;
+        // set once the image is committed
+        String path;
+        // SHA-256 of the image, null if the platform has no SHA-256
+        final byte[] digest;
+        final int bytes;
+        // from submit() until a storage thread picked the image up
+        final long queuedNanos;
+        // writing the image
+        final long writeNanos;
+        // the commit of the group the image was in
+        long syncNanos;
+
+        Result(String camera, String name, String storeName, long captureTimeMillis, int width,
+               int height, byte[] digest, int bytes, long queuedNanos, long writeNanos) {
+            this.camera = camera;
+            this.name = name;
+            this.storeName = storeName;
+            this.captureTimeMillis = captureTimeMillis;
+            this.width = width;
+            this.height = height;
+            this.digest = digest;
+            this.bytes = bytes;
+            this.queuedNanos = queuedNanos;
+            this.writeNanos = writeNanos;
+        }
+    }
+
+    private final ImageStore myStore;
+    private final Listener myListener;
+    private final int myCommitBatchSize;
+    private final ThreadPoolExecutor myExecutor;
+
+    // one permit per image that may be written or waiting
+    private final Semaphore mySlots;
+
+    // guards myPending and myInFlight
+    private final Object myCommitLock = new Object();
+    private List<Result> myPending = new ArrayList<>();
+    private int myInFlight;
+
+    /**
+     * @param store where the images are written
+     * @param parallelism number of storage threads
+     * @param queueCapacity number of images that can wait for a storage thread
+     * @param commitBatchSize most images committed by one sync()
+     * @param listener told about every submitted image
+     */
+    ImageStorageExecutor(ImageStore store, int parallelism, int queueCapacity,
+                         int commitBatchSize, Listener listener) {
+        if (parallelism <= 0 || queueCapacity < 0 || commitBatchSize <= 0) {
+            throw new IllegalArgumentException("invalid storage executor: parallelism "
+                    + parallelism + ", queue " + queueCapacity + ", batch " + commitBatchSize);
+        }
+        myStore = store;
+        myListener = listener;
+        myCommitBatchSize = commitBatchSize;
+        mySlots = new Semaphore(parallelism + queueCapacity);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        myExecutor = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "IMAGE_STORAGE_THREAD_" + threadCount.incrementAndGet());
+                    }
+                });
+    }
+
+    ImageStore getStore() {
+        return myStore;
+    }
+
+    /**
+     * Name of an image in the store. Two cameras may send images of the same name, so the name
+     * in the store starts with the camera's address, without the ':' that not every file system
+     * takes.
+     * @param camera MAC address of the camera
+     * @param name name of the image, as sent by the camera
+     * @return String
+     */
+    static String storeNameOf(String camera, String name) {
+        return camera.replace(":", "") + '_' + name;
+    }
+
+    /**
+     * Queue an image for writing, waiting while the queue is full.
+     * @param camera MAC address of the camera the image came from
+     * @param name name of the image
+     * @param captureTimeMillis when the image was taken
+     * @param width pixel width of the image, 0 if not known
+     * @param height pixel height of the image, 0 if not known
+     * @param image the image, the executor takes over this reference and releases it
+     * @return false if the executor was shut down or the calling thread was interrupted, the
+     * image was released
+     */
+    boolean submit(String camera, String name, long captureTimeMillis, int width, int height,
+                   ImageBuffer image) {
+        try {
+            mySlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            image.release();
+            return false;
+        }
+
+        synchronized (myCommitLock) {
+            myInFlight++;
+        }
+        try {
+            myExecutor.execute(new WriteTask(camera, name, captureTimeMillis, width, height,
+                    image, System.nanoTime()));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "submit: storage executor is shut down, dropping " + name);
+            synchronized (myCommitLock) {
+                myInFlight--;
+            }
+            mySlots.release();
+            image.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the queued images and stop the storage threads.
+     */
+    void shutdown() {
+        myExecutor.shutdown();
+    }
+
+    private final class WriteTask implements Runnable {
+        private final String camera;
+        private final String name;
+        private final long captureTimeMillis;
+        private final int width;
+        private final int height;
+        private final ImageBuffer image;
+        private final long submittedNanos;
+
+        WriteTask(String camera, String name, long captureTimeMillis, int width, int height,
+                  ImageBuffer image, long submittedNanos) {
+            this.camera = camera;
+            this.name = name;
+            this.captureTimeMillis = captureTimeMillis;
+            this.width = width;
+            this.height = height;
+            this.image = image;
+            this.submittedNanos = submittedNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            int bytes = image.length();
+            Result result = null;
+            try {
+                byte[] digest = digest(image.data(), bytes);
+                String storeName = storeNameOf(camera, name);
+                myStore.write(storeName, image.data(), 0, bytes);
+                result = new Result(camera, name, storeName, captureTimeMillis, width, height,
+                        digest, bytes, start - submittedNanos, System.nanoTime() - start);
+            } catch (IOException e) {
+                myListener.onImageSaveFailed(name, e);
+            } finally {
+                image.release();
+            }
+
+            // join the pending group, and commit it if it is full or nothing else is coming
+            List<Result> group = null;
+            synchronized (myCommitLock) {
+                myInFlight--;
+                if (result != null) {
+                    myPending.add(result);
+                }
+                if (myPending.size() >= myCommitBatchSize
+                        || (myInFlight == 0 && !myPending.isEmpty())) {
+                    group = myPending;
+                    myPending = new ArrayList<>();
+                }
+            }
+            mySlots.release();
+
+            if (group != null) {
+                commit(group);
+            }
+        }
+    }
+
+    private void commit(List<Result> group) {
+        Set<String> names = new HashSet<>();
+        for (Result result : group) {
+            names.add(result.storeName);
+        }
+        long start = System.nanoTime();
+        Set<String> stored = myStore.sync(names);
+        long syncNanos = System.nanoTime() - start;
+        if (D)
+            Log.d(TAG, "commit: " + stored.size() + " of " + group.size() + " images in "
+                    + syncNanos / 1000 + " us");
+
+        List<Result> saved = new ArrayList<>(group.size());
+        for (Result result : group) {
+            if (stored.contains(result.storeName)) {
+                result.path = myStore.pathOf(result.storeName);
+                result.syncNanos = syncNanos;
+                saved.add(result);
+            } else {
+                myListener.onImageSaveFailed(result.name,
+                        new IOException("could not store " + result.name));
+            }
+        }
+        if (!saved.isEmpty()) {
+            myListener.onImagesSaved(saved);
+        }
+    }
+
+    private static byte[] digest(byte[] data, int length) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(data, 0, length);
+            return sha256.digest();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "digest: no SHA-256", e);
+            return null;
+        }
+    }
+}
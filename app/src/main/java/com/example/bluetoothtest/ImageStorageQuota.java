@@ -0,0 +1,422 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the disk space taken by the stored images. Two limits apply: the stored images may
+ * not take more than a byte quota, and the storage device must keep a floor of free space.
+ *
+ * When a limit is reached, images are evicted from the store and the catalog. Exported images
+ * (their content is safe somewhere else) go first, oldest export first, then the least
+ * recently accessed images. Both orders are kept in LinkedHashMaps, so finding the next image to
+ * evict, and recording a save or an access, costs O(1) and never scans the image directory. The
+ * maps also tell whether an image is stored already, without asking the file system.
+ *
+ * Eviction runs on a background thread of minimum priority, a few images per step with a pause
+ * between the steps, so it never holds up the storage threads writing an incoming transfer.
+ * A segment store only gives the space of evicted images back when it compacts, which blocks its
+ * writes. So it is compacted once a segment crossed the compaction ratio and no image has been
+ * saved for a while, i.e. no transfer is going on.
+ */
+final class ImageStorageQuota {
+    private static final String TAG = "ImageStorageQuota";
+    private static final boolean D = true;
+
+    // images evicted per step, and the pause between steps
+    private static final int EVICTION_STEP = 8;
+    private static final long EVICTION_PAUSE_MS = 50;
+    private static final int LOAD_PAGE_SIZE = ImageCatalog.MAX_PAGE_SIZE;
+    // a segment store is compacted once no image was saved for this long
+    private static final long COMPACTION_QUIET_MS = 10 * 1000;
+
+    /**
+     * A stored image.
+     */
+    private static final class Item {
+        final String camera;
+        final String name;
+        // name in the store, the key of the maps
+        final String storeName;
+        final long bytes;
+
+        Item(String camera, String name, String storeName, long bytes) {
+            this.camera = camera;
+            this.name = name;
+            this.storeName = storeName;
+            this.bytes = bytes;
+        }
+    }
+
+    private final ImageStore myStore;
+    private final File myDirectory;
+    private final ImageCatalog myCatalog;
+    private final long myQuotaBytes;
+    private final long myFreeSpaceFloorBytes;
+
+    // all below guarded by this. Keyed by the name in the store, which includes the camera, an
+    // image is in one of the maps.
+    // Least recently used first, an access takes the image out and puts it back at the end.
+    private final LinkedHashMap<String, Item> myLru = new LinkedHashMap<>(256);
+    // Insertion ordered, oldest export first.
+    private final LinkedHashMap<String, Item> myExported = new LinkedHashMap<>();
+    private long myUsedBytes;
+    // the catalog was loaded into the maps
+    private boolean myLoaded;
+    private boolean myEvictionScheduled;
+    private boolean myCompactionScheduled;
+    // System.nanoTime() of the last saved group
+    private volatile long myLastSaveNanos;
+
+    private final ScheduledExecutorService myEvictor;
+
+    /**
+     * @param store where the images are kept
+     * @param directory directory of the store, for the free space, null if storage is not available
+     * @param catalog catalog of the stored images
+     * @param quotaBytes most bytes the images may take
+     * @param freeSpaceFloorBytes free space to leave on the storage device
+     */
+    ImageStorageQuota(ImageStore store, File directory, ImageCatalog catalog, long quotaBytes,
+                      long freeSpaceFloorBytes) {
+        if (quotaBytes <= 0 || freeSpaceFloorBytes < 0) {
+            throw new IllegalArgumentException("invalid storage quota: " + quotaBytes
+                    + " bytes, floor " + freeSpaceFloorBytes + " bytes");
+        }
+        myStore = store;
+        myDirectory = directory;
+        myCatalog = catalog;
+        myQuotaBytes = quotaBytes;
+        myFreeSpaceFloorBytes = freeSpaceFloorBytes;
+        myEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IMAGE_EVICTION_THREAD");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Load the index from the catalog in the background, then evict if a limit is exceeded.
+     */
+    void start() {
+        myEvictor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Stop evicting.
+     */
+    void shutdown() {
+        myEvictor.shutdownNow();
+    }
+
+    /**
+     * Record a committed group of images, and schedule eviction if a limit is now exceeded.
+     * Called on a storage thread.
+     * @param group
+     */
+    void onImagesSaved(List<ImageStorageExecutor.Result> group) {
+        myLastSaveNanos = System.nanoTime();
+        synchronized (this) {
+            for (ImageStorageExecutor.Result result : group) {
+                add(result.camera, result.name, result.storeName, result.bytes, false);
+            }
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Record that an image was viewed or read, it is kept longer.
+     * @param camera MAC address of the camera
+     * @param name name of the image
+     */
+    void onImageAccessed(String camera, String name) {
+        String storeName = ImageStorageExecutor.storeNameOf(camera, name);
+        synchronized (this) {
+            // moved to the most recently used end
+            Item item = myLru.remove(storeName);
+            if (item != null) {
+                myLru.put(storeName, item);
+            }
+        }
+    }
+
+    /**
+     * Mark an image as exported, it is evicted before the images that are not.
+     * @param camera MAC address of the camera
+     * @param name name of the image
+     */
+    void markExported(String camera, String name) {
+        String storeName = ImageStorageExecutor.storeNameOf(camera, name);
+        synchronized (this) {
+            Item item = myLru.remove(storeName);
+            if (item != null) {
+                myExported.put(storeName, item);
+            }
+        }
+        myCatalog.markExported(camera, name);
+    }
+
+    /**
+     * Whether an image of the given size fits, if need be after evicting stored images. Checked
+     * before a transfer is accepted, so that a full phone declines it instead of failing to save.
+     * @param bytes
+     * @return boolean
+     */
+    boolean hasRoomFor(long bytes) {
+        return bytes <= availableBytes();
+    }
+
+    /**
+     * Most bytes of new images that fit, if need be after evicting stored images. Asks the file
+     * system for the free space, read it once for a whole transfer plan.
+     * @return long
+     */
+    long availableBytes() {
+        // the stored images can all be evicted to make room
+        long evictable = getUsedBytes();
+        return Math.min(myQuotaBytes, usableSpace() + evictable - myFreeSpaceFloorBytes);
+    }
+
+    /**
+     * Size of a stored image, from the index in memory. Until the catalog is loaded, the store is
+     * asked instead.
+     * @param storeName name of the image in the store, ImageStorageExecutor.storeNameOf()
+     * @return long, -1 if there is no image of that name
+     */
+    long sizeOf(String storeName) {
+        synchronized (this) {
+            if (myLoaded) {
+                Item item = myLru.get(storeName);
+                if (item == null) {
+                    item = myExported.get(storeName);
+                }
+                return item != null ? item.bytes : -1;
+            }
+        }
+        return myStore.sizeOf(storeName);
+    }
+
+    /**
+     * Bytes taken by the stored images.
+     * @return long
+     */
+    synchronized long getUsedBytes() {
+        return myUsedBytes;
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private void add(String camera, String name, String storeName, long bytes,
+                     boolean exported) {
+        Item old = myLru.remove(storeName);
+        if (old == null) {
+            old = myExported.remove(storeName);
+        }
+        if (old != null) {
+            myUsedBytes -= old.bytes;
+        }
+        Item item = new Item(camera, name, storeName, bytes);
+        (exported ? myExported : myLru).put(storeName, item);
+        myUsedBytes += bytes;
+    }
+
+    private void load() {
+        long afterId = 0;
+        int count = 0;
+        ImageCatalog.Page page;
+        try {
+            do {
+                page = myCatalog.queryAll(afterId, LOAD_PAGE_SIZE);
+                synchronized (this) {
+                    for (ImageCatalog.Entry entry : page.entries) {
+                        String storeName = ImageStorageExecutor.storeNameOf(entry.camera,
+                                entry.name);
+                        // saved while loading, the newer record wins
+                        if (!myLru.containsKey(storeName) && !myExported.containsKey(storeName)) {
+                            add(entry.camera, entry.name, storeName, entry.size, entry.exported);
+                        }
+                        afterId = entry.id;
+                    }
+                }
+                count += page.entries.size();
+            } while (page.hasMore);
+            synchronized (this) {
+                myLoaded = true;
+            }
+        } catch (RuntimeException e) {
+            // sizeOf() keeps asking the store
+            Log.e(TAG, "load: failed to read the catalog", e);
+        }
+        if (D)
+            Log.d(TAG, "load: " + count + " images, " + getUsedBytes() / 1024 + " KB");
+        evictIfNeeded();
+    }
+
+    /**
+     * Bytes to evict to be within both limits.
+     * @return long, 0 or less if within the limits
+     */
+    private long bytesOverLimit() {
+        long overFloor = myFreeSpaceFloorBytes - usableSpace();
+        synchronized (this) {
+            return Math.max(myUsedBytes - myQuotaBytes, overFloor);
+        }
+    }
+
+    private long usableSpace() {
+        return myDirectory != null ? myDirectory.getUsableSpace() : Long.MAX_VALUE;
+    }
+
+    private void evictIfNeeded() {
+        synchronized (this) {
+            if (myEvictionScheduled) {
+                return;
+            }
+            myEvictionScheduled = true;
+        }
+        schedule(0);
+    }
+
+    private void schedule(long delayMs) {
+        try {
+            myEvictor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    evictStep();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // shut down
+            synchronized (this) {
+                myEvictionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Evict up to EVICTION_STEP images, and schedule the next step if a limit is still exceeded.
+     */
+    private void evictStep() {
+        List<Item> victims = new ArrayList<>(EVICTION_STEP);
+        long excess = bytesOverLimit();
+        if (excess > 0) {
+            synchronized (this) {
+                excess = takeVictims(myExported, victims, excess);
+                takeVictims(myLru, victims, excess);
+            }
+        }
+
+        // delete outside the lock, saves go on meanwhile
+        for (Item victim : victims) {
+            if (D)
+                Log.d(TAG, "evictStep: evicting " + victim.name + ", " + victim.bytes + " bytes");
+            if (!myStore.delete(victim.storeName)) {
+                Log.e(TAG, "evictStep: could not delete " + victim.storeName);
+            }
+            try {
+                myCatalog.remove(victim.camera, victim.name);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "evictStep: failed to uncatalog " + victim.name, e);
+            }
+        }
+        if (!victims.isEmpty()) {
+            compactWhenIdle(0);
+        }
+
+        if (!victims.isEmpty() && bytesOverLimit() > 0) {
+            schedule(EVICTION_PAUSE_MS);
+        } else {
+            synchronized (this) {
+                myEvictionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Compact a segment store once a segment crossed the compaction ratio and no transfer is
+     * going on, so compact() does not block the storage threads.
+     * @param delayMs when to check
+     */
+    private void compactWhenIdle(long delayMs) {
+        if (!(myStore instanceof SegmentImageStore)) {
+            return;
+        }
+        synchronized (this) {
+            if (myCompactionScheduled) {
+                return;
+            }
+            myCompactionScheduled = true;
+        }
+        try {
+            myEvictor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ImageStorageQuota.this) {
+                        myCompactionScheduled = false;
+                    }
+                    compactStep();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // shut down
+            synchronized (this) {
+                myCompactionScheduled = false;
+            }
+        }
+    }
+
+    private void compactStep() {
+        SegmentImageStore store = (SegmentImageStore) myStore;
+        if (!store.needsCompaction(SegmentImageStore.DEFAULT_COMPACTION_RATIO)) {
+            return;
+        }
+        long quietMs = (System.nanoTime() - myLastSaveNanos) / 1000000;
+        if (myLastSaveNanos != 0 && quietMs < COMPACTION_QUIET_MS) {
+            // images are coming in, look again once they stopped
+            compactWhenIdle(COMPACTION_QUIET_MS - quietMs);
+            return;
+        }
+        try {
+            long freed = store.compact(SegmentImageStore.DEFAULT_COMPACTION_RATIO);
+            if (D)
+                Log.d(TAG, "compactStep: freed " + freed / 1024 + " KB");
+        } catch (IOException e) {
+            Log.e(TAG, "compactStep: compaction failed", e);
+        }
+    }
+
+    /**
+     * Take images from the eldest end of a map until the excess is covered or the step is full.
+     * @return the excess left
+     */
+    private long takeVictims(LinkedHashMap<String, Item> from, List<Item> victims, long excess) {
+        Iterator<Item> items = from.values().iterator();
+        while (excess > 0 && victims.size() < EVICTION_STEP && items.hasNext()) {
+            Item item = items.next();
+            items.remove();
+            myUsedBytes -= item.bytes;
+            excess -= item.bytes;
+            victims.add(item);
+        }
+        return excess;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.bluetoothtest;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Set;
+
+/**
+ * Where the received images are kept. write() is called from several storage threads at once,
+ * implementations must be thread safe.
+ */
+interface ImageStore {
+
+    /**
+     * Whether images can be written now, e.g. false while external storage is unmounted.
+     * @return boolean
+     */
+    boolean isWritable();
+
+    /**
+     * Write an image, replacing a stored image of the same name. The image is only guaranteed
+     * to be stored after the next sync().
+     * @param name name of the image, as sent by the camera
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void write(String name, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Make every image written so far durable and visible.
+     * @throws IOException
+     */
+    void sync() throws IOException;
+
+    /**
+     * Make the given images durable and visible, and tell which of them are stored. Images
+     * written by other callers and not synced yet are left alone.
+     * @param names names of images written since their last sync
+     * @return Set, the names that are stored now. An image missing from it could not be stored,
+     * its write is discarded.
+     */
+    Set<String> sync(Set<String> names);
+
+    /**
+     * Size of a stored image.
+     * @param name
+     * @return long, -1 if there is no image of that name
+     */
+    long sizeOf(String name);
+
+    /**
+     * Location of a stored image, for the catalog. Only known once the image is synced, and
+     * stays valid as long as the image is stored. A store that moves its images around returns
+     * the name, the image is then read through the store.
+     * @param name
+     * @return String
+     */
+    String pathOf(String name);
+
+    /**
+     * Copy a stored image to a channel, without passing it through the Java heap where the
+     * platform allows.
+     * @param name
+     * @param target e.g. a socket or file channel
+     * @return long, size of the image, -1 if there is no image of that name
+     * @throws IOException
+     */
+    long transferTo(String name, WritableByteChannel target) throws IOException;
+
+    /**
+     * Delete a stored image.
+     * @param name
+     * @return true if the image was deleted
+     */
+    boolean delete(String name);
+}
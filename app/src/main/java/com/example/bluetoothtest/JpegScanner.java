@@ -0,0 +1,355 @@
+package com.example.bluetoothtest;
+
+import java.util.TimeZone;
+
+/**
+ * Checks a JPEG image while it is being received, and picks up its metadata on the way.
+ *
+ * The scanner runs over the assembly buffer of the image: after each chunk is appended,
+ * scan() goes through the new bytes only. It follows the marker structure of the image: the SOI
+ * marker, the length of every segment, the entropy coded data of each scan and the EOI marker.
+ * The dimensions are read from the SOF segment and the capture time from the EXIF
+ * DateTimeOriginal tag, in place in the buffer, so nothing reads the image a second time.
+ *
+ * A malformed image is detected at the first byte that does not fit, so it can be rejected
+ * before the rest of it is received.
+ */
+final class JpegScanner {
+
+    /** scan() results */
+    static final int NEED_MORE = 0;
+    static final int COMPLETE = 1;
+    static final int INVALID = 2;
+
+    // markers
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int TEM = 0x01;
+
+    // EXIF tags
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TYPE_ASCII = 2;
+    private static final int EXIF_DATE_LENGTH = 19;     // "YYYY:MM:DD HH:MM:SS"
+
+    // scanner states
+    private static final int S_SOI_PREFIX = 0;
+    private static final int S_SOI_CODE = 1;
+    private static final int S_MARKER_PREFIX = 2;
+    private static final int S_MARKER_CODE = 3;
+    private static final int S_LENGTH_HIGH = 4;
+    private static final int S_LENGTH_LOW = 5;
+    private static final int S_SEGMENT = 6;
+    private static final int S_ENTROPY = 7;
+    private static final int S_ENTROPY_MARKER = 8;
+    private static final int S_DONE = 9;
+    private static final int S_INVALID = 10;
+
+    private int myState;
+    // next byte to scan
+    private int myPosition;
+    // the segment being skipped
+    private int myMarker;
+    private int mySegmentStart;
+    private int mySegmentEnd;
+
+    private int myWidth;
+    private int myHeight;
+    private long myCaptureTimeMillis;
+    private String myError;
+
+    JpegScanner() {
+        reset();
+    }
+
+    /**
+     * Start on a new image, at the start of the buffer.
+     */
+    void reset() {
+        myState = S_SOI_PREFIX;
+        myPosition = 0;
+        myWidth = 0;
+        myHeight = 0;
+        myCaptureTimeMillis = -1;
+        myError = null;
+    }
+
+    /**
+     * Scan the bytes appended to the image since the last call.
+     * @param data the buffer the image is assembled in
+     * @param end number of bytes of the image in the buffer
+     * @return NEED_MORE, COMPLETE once the EOI marker was seen, or INVALID
+     */
+    int scan(byte[] data, int end) {
+        while (myPosition < end && myState != S_DONE && myState != S_INVALID) {
+            switch (myState) {
+                case S_SOI_PREFIX:
+                    expect(data[myPosition++] & 0xFF, 0xFF, S_SOI_CODE, "no SOI marker");
+                    break;
+                case S_SOI_CODE:
+                    expect(data[myPosition++] & 0xFF, SOI, S_MARKER_PREFIX, "no SOI marker");
+                    break;
+                case S_MARKER_PREFIX:
+                    expect(data[myPosition++] & 0xFF, 0xFF, S_MARKER_CODE, "marker expected");
+                    break;
+                case S_MARKER_CODE:
+                    marker(data[myPosition++] & 0xFF);
+                    break;
+                case S_LENGTH_HIGH:
+                    mySegmentStart = (data[myPosition++] & 0xFF) << 8;
+                    myState = S_LENGTH_LOW;
+                    break;
+                case S_LENGTH_LOW: {
+                    int length = mySegmentStart | (data[myPosition++] & 0xFF);
+                    if (length < 2) {
+                        fail("segment length " + length);
+                        break;
+                    }
+                    mySegmentStart = myPosition;
+                    mySegmentEnd = myPosition + length - 2;
+                    myState = S_SEGMENT;
+                    break;
+                }
+                case S_SEGMENT:
+                    // the segment body is skipped, and looked at once it is all there
+                    myPosition = Math.min(end, mySegmentEnd);
+                    if (myPosition == mySegmentEnd) {
+                        segment(data);
+                    }
+                    break;
+                case S_ENTROPY:
+                    // entropy coded data, up to the next marker
+                    while (myPosition < end && data[myPosition] != (byte) 0xFF) {
+                        myPosition++;
+                    }
+                    if (myPosition < end) {
+                        myPosition++;
+                        myState = S_ENTROPY_MARKER;
+                    }
+                    break;
+                case S_ENTROPY_MARKER: {
+                    int code = data[myPosition++] & 0xFF;
+                    if (code == 0x00 || (code >= 0xD0 && code <= 0xD7)) {
+                        // stuffed 0xFF byte or restart marker, still in the scan
+                        myState = S_ENTROPY;
+                    } else if (code != 0xFF) {
+                        marker(code);
+                    }
+                    break;
+                }
+            }
+        }
+        return myState == S_DONE ? COMPLETE : myState == S_INVALID ? INVALID : NEED_MORE;
+    }
+
+    int getWidth() {
+        return myWidth;
+    }
+
+    int getHeight() {
+        return myHeight;
+    }
+
+    /**
+     * Capture time from the EXIF data, in the time zone of the phone.
+     * @return long, milliseconds since the epoch, -1 if the image has none
+     */
+    long getCaptureTimeMillis() {
+        return myCaptureTimeMillis;
+    }
+
+    /**
+     * Why the image is invalid.
+     * @return String, null if it is not
+     */
+    String getError() {
+        return myError;
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private void expect(int value, int expected, int next, String error) {
+        if (value == expected) {
+            myState = next;
+        } else {
+            fail(error + " at " + (myPosition - 1));
+        }
+    }
+
+    private void fail(String error) {
+        myError = error;
+        myState = S_INVALID;
+    }
+
+    private void marker(int code) {
+        if (code == 0xFF) {
+            // fill byte, the marker code follows
+            myState = S_MARKER_CODE;
+        } else if (code == EOI) {
+            if (myWidth == 0) {
+                fail("no image data before EOI");
+            } else {
+                myState = S_DONE;
+            }
+        } else if (code == SOI || code == 0x00) {
+            fail("unexpected marker 0x" + Integer.toHexString(code) + " at " + (myPosition - 1));
+        } else if (code == TEM || (code >= 0xD0 && code <= 0xD7)) {
+            // markers without a segment
+            myState = S_MARKER_PREFIX;
+        } else {
+            myMarker = code;
+            myState = S_LENGTH_HIGH;
+        }
+    }
+
+    private void segment(byte[] data) {
+        if (isStartOfFrame(myMarker)) {
+            if (mySegmentEnd - mySegmentStart < 6) {
+                fail("short SOF segment");
+                return;
+            }
+            myHeight = readU16(data, mySegmentStart + 1, false);
+            myWidth = readU16(data, mySegmentStart + 3, false);
+            if (myWidth == 0) {
+                fail("image width 0");
+                return;
+            }
+        } else if (myMarker == APP1 && myCaptureTimeMillis < 0) {
+            readExif(data, mySegmentStart, mySegmentEnd);
+        }
+
+        if (myMarker == SOS) {
+            if (myWidth == 0) {
+                fail("scan before the SOF segment");
+                return;
+            }
+            myState = S_ENTROPY;
+        } else {
+            myState = S_MARKER_PREFIX;
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, without DHT, JPG and DAC
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                && marker != 0xCC;
+    }
+
+    /**
+     * Take the capture time from an APP1 segment holding EXIF data. A malformed EXIF block is
+     * ignored, the image itself can still be fine.
+     */
+    private void readExif(byte[] data, int start, int end) {
+        if (end - start < 14 || data[start] != 'E' || data[start + 1] != 'x'
+                || data[start + 2] != 'i' || data[start + 3] != 'f' || data[start + 4] != 0
+                || data[start + 5] != 0) {
+            return;
+        }
+        int tiff = start + 6;
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+        if (readU16(data, tiff + 2, littleEndian) != 42) {
+            return;
+        }
+
+        long ifd0 = readU32(data, tiff + 4, littleEndian);
+        int dateTime = findTag(data, tiff, end, ifd0, TAG_DATE_TIME, littleEndian);
+        int exifIfd = findTag(data, tiff, end, ifd0, TAG_EXIF_IFD, littleEndian);
+        int original = exifIfd < 0 ? -1 : findTag(data, tiff, end,
+                readU32(data, exifIfd + 8, littleEndian), TAG_DATE_TIME_ORIGINAL, littleEndian);
+
+        // the original capture time, else the time the file was last changed
+        int entry = original >= 0 ? original : dateTime;
+        if (entry < 0 || readU16(data, entry + 2, littleEndian) != TYPE_ASCII
+                || readU32(data, entry + 4, littleEndian) < EXIF_DATE_LENGTH) {
+            return;
+        }
+        long offset = readU32(data, entry + 8, littleEndian);
+        if (offset > end - tiff - EXIF_DATE_LENGTH) {
+            return;
+        }
+        myCaptureTimeMillis = parseExifDate(data, tiff + (int) offset);
+    }
+
+    /**
+     * Find a tag in an IFD.
+     * @return position of the 12 byte IFD entry, -1 if the tag is not there
+     */
+    private static int findTag(byte[] data, int tiff, int end, long ifdOffset, int tag,
+                               boolean littleEndian) {
+        if (ifdOffset < 8 || ifdOffset > end - tiff - 2) {
+            return -1;
+        }
+        int ifd = tiff + (int) ifdOffset;
+        int count = readU16(data, ifd, littleEndian);
+        int entry = ifd + 2;
+        for (int i = 0; i < count && entry + 12 <= end; i++, entry += 12) {
+            if (readU16(data, entry, littleEndian) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse an EXIF date, "YYYY:MM:DD HH:MM:SS" in local time.
+     * @return long, milliseconds since the epoch, -1 if malformed
+     */
+    static long parseExifDate(byte[] data, int offset) {
+        int year = digits(data, offset, 4);
+        int month = digits(data, offset + 5, 2);
+        int day = digits(data, offset + 8, 2);
+        int hour = digits(data, offset + 11, 2);
+        int minute = digits(data, offset + 14, 2);
+        int second = digits(data, offset + 17, 2);
+        if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0
+                || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+
+        // days since the epoch of the civil date, without a Calendar
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        long local = ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+        TimeZone zone = TimeZone.getDefault();
+        return local - zone.getOffset(local - zone.getRawOffset());
+    }
+
+    private static int digits(byte[] data, int offset, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int digit = data[offset + i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int readU16(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? b0 | (b1 << 8) : (b0 << 8) | b1;
+    }
+
+    private static long readU32(byte[] data, int offset, boolean littleEndian) {
+        long high = readU16(data, offset + (littleEndian ? 2 : 0), littleEndian);
+        long low = readU16(data, offset + (littleEndian ? 0 : 2), littleEndian);
+        return (high << 16) | low;
+    }
+}
@@ -209,10 +209,16 @@ public class MainActivity extends AppCompatActivity{
         super.onStart();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        myBluetooothDataParser.onTrimMemory(level);
+    }
+
     @Override
     protected void onDestroy() {
         myBluetoothController.unRegisterBluetoothBroadcastListeners();
-        myBluetooothDataParser.stopHandlerThread();
+        myBluetooothDataParser.stopPipeline();
         super.onDestroy();
     }
 
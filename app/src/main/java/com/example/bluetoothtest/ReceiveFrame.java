@@ -0,0 +1,32 @@
+package com.example.bluetoothtest;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One frame read from the Bluetooth socket. Frames are preallocated by the ReceivePipeline and
+ * travel through its rings: the reader fills data and length, the decode stage fills the header
+ * fields, the dispatch stage handles the frame.
+ */
+final class ReceiveFrame {
+    final byte[] data;
+    final ByteBuffer buffer;
+
+    // filled by the reader
+    int length;
+    long receivedNanos;
+    BluetoothDevice device;
+
+    // filled by the decode stage
+    boolean valid;
+    byte commType;
+    byte category;
+    int payloadLength;
+    int packetNumber;
+
+    ReceiveFrame(int capacity) {
+        data = new byte[capacity];
+        buffer = ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,382 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Staged receive path for the data coming from the camera:
+ *
+ *      socket read --> frame decode --> dispatch / image assembly --> storage write
+ *
+ * The socket read runs on the ConnectedThread of the BluetoothService, every other stage has its
+ * own thread. Stages are connected by preallocated single producer, single consumer rings, so a
+ * received packet costs no allocation and no lock. Frames are handed from one ring to the next by
+ * swapping entries, the bytes read from the socket are never copied.
+ *
+ * The occupancy of each ring is reported through BluetoothMetrics. The stage behind the fullest
+ * ring is the bottleneck.
+ *
+ * Every ring is bounded, so a slow stage pushes back on the stage in front of it, all the way to
+ * the socket reader. The reader stops reading once the frame backlog reaches the high watermark
+ * and starts again when it drains to the low watermark. While it does not read, RFCOMM flow
+ * control stops the camera from sending.
+ */
+final class ReceivePipeline {
+    private static final String TAG = "ReceivePipeline";
+    private static final boolean D = true;
+
+    /** size of a frame, the most the socket read returns at once */
+    static final int FRAME_CAPACITY = 1024 * 2;
+
+    static final int DEFAULT_FRAME_RING_CAPACITY = 64;
+    static final int DEFAULT_SAVE_RING_CAPACITY = 4;
+
+    /**
+     * Work of the dispatch stage. Called on the dispatch thread for every decoded frame.
+     */
+    interface FrameDispatcher {
+        void dispatch(ReceiveFrame frame);
+    }
+
+    /**
+     * Work of the storage stage. Called on the storage thread for every completed image.
+     */
+    interface ImageWriter {
+        void write(ImageSaveJob job);
+    }
+
+    /**
+     * Told when the socket reader pauses and resumes because of backpressure. Called on the
+     * reader thread.
+     */
+    interface FlowControlListener {
+        void onReaderPaused();
+
+        void onReaderResumed();
+    }
+
+    // how often a paused reader checks the backlog
+    private static final long PAUSE_POLL_NANOS = 2L * 1000 * 1000;
+
+    private final SpscRingBuffer<ReceiveFrame> readRing;        // socket read -> decode
+    private final SpscRingBuffer<ReceiveFrame> decodedRing;     // decode -> dispatch
+    private final SpscRingBuffer<ImageSaveJob> storageRing;     // dispatch -> storage
+
+    private final FrameDispatcher myDispatcher;
+    private final ImageWriter myImageWriter;
+
+    // only used from the decode stage
+    private final FrameHeaderDecoder headerDecoder = new FrameHeaderDecoder();
+
+    private final Stage myDecodeStage;
+    private final Stage myDispatchStage;
+    private final Stage myStorageStage;
+
+    // backpressure on the socket reader, in frames waiting in the decode and dispatch rings
+    private volatile int myHighWatermark;
+    private volatile int myLowWatermark;
+    private volatile FlowControlListener myFlowControlListener;
+    private volatile boolean myStopped;
+
+    // held by the thread reading the socket into the read ring, which has a single producer
+    private final ReentrantLock myReader = new ReentrantLock();
+
+    /**
+     * @param frameRingCapacity number of frames in each frame ring
+     * @param saveRingCapacity number of completed images that can wait for storage
+     * @param waitStrategy how the stages wait for each other
+     * @param dispatcher work of the dispatch stage
+     * @param imageWriter work of the storage stage
+     */
+    ReceivePipeline(int frameRingCapacity, int saveRingCapacity, WaitStrategy waitStrategy,
+                    FrameDispatcher dispatcher, ImageWriter imageWriter) {
+        SpscRingBuffer.EntryFactory<ReceiveFrame> frameFactory =
+                new SpscRingBuffer.EntryFactory<ReceiveFrame>() {
+                    @Override
+                    public ReceiveFrame newEntry() {
+                        return new ReceiveFrame(FRAME_CAPACITY);
+                    }
+                };
+
+        readRing = new SpscRingBuffer<>("decode", frameRingCapacity, waitStrategy, frameFactory);
+        decodedRing = new SpscRingBuffer<>("dispatch", frameRingCapacity, waitStrategy, frameFactory);
+        storageRing = new SpscRingBuffer<>("storage", saveRingCapacity, waitStrategy,
+                new SpscRingBuffer.EntryFactory<ImageSaveJob>() {
+                    @Override
+                    public ImageSaveJob newEntry() {
+                        return new ImageSaveJob();
+                    }
+                });
+
+        myDispatcher = dispatcher;
+        myImageWriter = imageWriter;
+
+        // by default pause at three quarters of the frame capacity, resume at one quarter
+        int frames = readRing.getCapacity() + decodedRing.getCapacity();
+        myHighWatermark = frames * 3 / 4;
+        myLowWatermark = frames / 4;
+
+        myDecodeStage = new Stage("PIPELINE_DECODE_THREAD") {
+            @Override
+            boolean step() {
+                return decodeStep();
+            }
+        };
+        myDispatchStage = new Stage("PIPELINE_DISPATCH_THREAD") {
+            @Override
+            boolean step() {
+                return dispatchStep();
+            }
+        };
+        myStorageStage = new Stage("PIPELINE_STORAGE_THREAD") {
+            @Override
+            boolean step() {
+                return storageStep();
+            }
+        };
+    }
+
+    /**
+     * Start the stage threads.
+     */
+    void start() {
+        BluetoothMetrics.get().registerStageQueue(readRing);
+        BluetoothMetrics.get().registerStageQueue(decodedRing);
+        BluetoothMetrics.get().registerStageQueue(storageRing);
+
+        myDecodeStage.start();
+        myDispatchStage.start();
+        myStorageStage.start();
+    }
+
+    /**
+     * Stop the stage threads. Frames and images still in the rings are dropped.
+     */
+    void stop() {
+        myStopped = true;
+
+        // closing the rings ends the stage loops, the stages are not interrupted so that a
+        // write in progress is not cut off
+        readRing.close();
+        decodedRing.close();
+        storageRing.close();
+
+        BluetoothMetrics.get().unregisterStageQueue(readRing);
+        BluetoothMetrics.get().unregisterStageQueue(decodedRing);
+        BluetoothMetrics.get().unregisterStageQueue(storageRing);
+    }
+
+    /**
+     * Set the backlog, in frames, at which the socket reader pauses and resumes.
+     * @param high pause reading when this many frames wait to be decoded or dispatched
+     * @param low resume reading when the backlog is down to this many frames
+     */
+    void setWatermarks(int high, int low) {
+        int frames = readRing.getCapacity() + decodedRing.getCapacity();
+        if (low < 0 || low >= high || high > frames) {
+            throw new IllegalArgumentException("invalid watermarks: high " + high + ", low " + low
+                    + ", capacity " + frames);
+        }
+        myHighWatermark = high;
+        myLowWatermark = low;
+    }
+
+    /**
+     * Set the listener told about reader pauses.
+     * @param listener the listener, or null for none
+     */
+    void setFlowControlListener(FlowControlListener listener) {
+        myFlowControlListener = listener;
+    }
+
+    /**
+     * Number of frames read from the socket and not yet dispatched.
+     * @return int
+     */
+    int getBacklog() {
+        return readRing.size() + decodedRing.size();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // socket read stage, called from the thread reading the Bluetooth socket
+
+    /**
+     * Become the socket reader of the pipeline. The reader of an earlier connection may still be
+     * between its last read and publishFrame(), so this waits until that one has called
+     * releaseReader(). Only then may the caller claim frames.
+     * @return false if the thread was interrupted while waiting
+     */
+    boolean acquireReader() {
+        try {
+            myReader.lockInterruptibly();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stop being the socket reader, after the last publishFrame(). Called by the thread that
+     * acquired the reader.
+     */
+    void releaseReader() {
+        myReader.unlock();
+    }
+
+    /**
+     * Called by the reader before each read. Returns at once while the backlog is below the high
+     * watermark. Otherwise the reader is paused until the backlog drains to the low watermark.
+     * @return false if the pipeline was stopped or the reading thread was interrupted
+     */
+    boolean awaitCapacity() {
+        if (getBacklog() < myHighWatermark) {
+            return true;
+        }
+
+        if (D)
+            Log.d(TAG, "awaitCapacity: backlog " + getBacklog() + ", pausing the reader");
+        long start = System.nanoTime();
+        FlowControlListener listener = myFlowControlListener;
+        if (listener != null) {
+            listener.onReaderPaused();
+        }
+
+        boolean running = true;
+        while (getBacklog() > myLowWatermark) {
+            if (myStopped || Thread.currentThread().isInterrupted()) {
+                running = false;
+                break;
+            }
+            LockSupport.parkNanos(this, PAUSE_POLL_NANOS);
+        }
+
+        BluetoothMetrics.get().recordReaderPause(System.nanoTime() - start);
+        if (running && listener != null) {
+            listener.onReaderResumed();
+        }
+        return running;
+    }
+
+    /**
+     * Get an empty frame to read into, waiting while the decode stage is behind.
+     * @return ReceiveFrame, or null if the pipeline was stopped or the reading thread was
+     * interrupted
+     */
+    ReceiveFrame claimFrame() {
+        return readRing.claim();
+    }
+
+    /**
+     * Pass the frame returned by claimFrame() on to the decode stage.
+     */
+    void publishFrame() {
+        readRing.publish();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // storage hand off, called from the dispatch stage
+
+    /**
+     * Get an empty save job, waiting while the storage stage is behind.
+     * @return ImageSaveJob, or null if the pipeline was stopped
+     */
+    ImageSaveJob claimSaveJob() {
+        return storageRing.claim();
+    }
+
+    /**
+     * Pass the save job returned by claimSaveJob() on to the storage stage.
+     */
+    void publishSaveJob() {
+        storageRing.publish();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // stages
+
+    private boolean decodeStep() {
+        ReceiveFrame frame = readRing.peek();
+        if (frame == null) {
+            return false;
+        }
+        ReceiveFrame spare = decodedRing.claim();
+        if (spare == null) {
+            return false;
+        }
+
+        frame.valid = frame.length >= FrameHeaderDecoder.FIXED_LENGTH;
+        if (frame.valid) {
+            headerDecoder.wrap(frame.buffer, 0);
+            frame.commType = (byte) headerDecoder.commType();
+            frame.category = (byte) headerDecoder.category();
+            frame.payloadLength = headerDecoder.payloadLength();
+            frame.packetNumber = headerDecoder.packetNumber();
+        }
+
+        // the reader gets the spare frame, the decoded one moves on
+        readRing.release(spare);
+        decodedRing.publish(frame);
+        return true;
+    }
+
+    private boolean dispatchStep() {
+        ReceiveFrame frame = decodedRing.peek();
+        if (frame == null) {
+            return false;
+        }
+        if (frame.valid) {
+            try {
+                myDispatcher.dispatch(frame);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "dispatchStep: failed to handle frame", e);
+            }
+        }
+        frame.device = null;
+        decodedRing.release();
+        return true;
+    }
+
+    private boolean storageStep() {
+        ImageSaveJob job = storageRing.peek();
+        if (job == null) {
+            return false;
+        }
+        try {
+            myImageWriter.write(job);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "storageStep: failed to save image " + job.fileName, e);
+        }
+        job.clear();
+        storageRing.release();
+        return true;
+    }
+
+    /**
+     * Thread running one stage until its input ring is closed.
+     */
+    private abstract static class Stage extends Thread {
+        Stage(String name) {
+            super(name);
+        }
+
+        /**
+         * Process one entry.
+         * @return false if the rings of the stage were closed
+         */
+        abstract boolean step();
+
+        @Override
+        public void run() {
+            if (D)
+                Log.d(TAG, "run: " + getName() + " started");
+            while (step()) {
+                // keep going until the pipeline is stopped
+            }
+            if (D)
+                Log.d(TAG, "run: " + getName() + " stopped");
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.bluetoothtest;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a dropped or failed Bluetooth connection is retried.
+ *
+ * Retries after a failure are spaced by exponential backoff with full jitter: the n-th retry
+ * waits a random time between 0 and min(maxDelay, baseDelay * 2^n), so several cameras failing
+ * together do not retry in lock step. After maxAttempts failures in a row the device is given
+ * up until it connects again and the connection holds.
+ *
+ * A clean disconnect (the camera closed the link after its work was done) is retried at once,
+ * since a camera is only awake for a short window. Only one immediate retry is made until a
+ * connection holds, a device that keeps dropping falls back to the backoff.
+ *
+ * A connection holds once it stayed up for stableConnectionMs. Only then are the attempts and
+ * the immediate retry of the device reset, so a device that connects and drops at once does not
+ * start over every time.
+ *
+ * The state is kept per device, keyed by MAC address. All retries of all policies run on one
+ * shared scheduler thread.
+ */
+final class ReconnectPolicy {
+    private static final String TAG = "ReconnectPolicy";
+    private static final boolean D = true;
+
+    static final long DEFAULT_BASE_DELAY_MS = 500;
+    static final long DEFAULT_MAX_DELAY_MS = 30 * 1000;
+    static final int DEFAULT_MAX_ATTEMPTS = 8;
+    static final long DEFAULT_STABLE_CONNECTION_MS = 10 * 1000;
+
+    // the one scheduler thread shared by every policy, created on first use
+    private static ScheduledExecutorService sScheduler;
+
+    private final long myBaseDelayMs;
+    private final long myMaxDelayMs;
+    private final int myMaxAttempts;
+    private final long myStableConnectionMs;
+    private final Random myRandom = new Random();
+
+    // retry state of each device, guarded by this
+    private final Map<String, DeviceState> myDevices = new HashMap<>();
+
+    /**
+     * Retry state of one device.
+     */
+    private static final class DeviceState {
+        // failed attempts since the last connection that held
+        int attempts;
+        // the immediate retry was used since the last connection that held
+        boolean fastRetryUsed;
+        // SystemClock.elapsedRealtime() of the current connection, -1 if not connected
+        long connectedMillis = -1;
+        // retry waiting on the scheduler, if any
+        ScheduledFuture<?> pending;
+    }
+
+    ReconnectPolicy() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_STABLE_CONNECTION_MS);
+    }
+
+    /**
+     * @param baseDelayMs upper bound of the first retry delay
+     * @param maxDelayMs upper bound of any retry delay
+     * @param maxAttempts failed attempts in a row after which a device is given up
+     * @param stableConnectionMs how long a connection must stay up to reset the attempts
+     */
+    ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, long stableConnectionMs) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs || maxAttempts <= 0
+                || stableConnectionMs < 0) {
+            throw new IllegalArgumentException("invalid reconnect policy: base " + baseDelayMs
+                    + " ms, max " + maxDelayMs + " ms, attempts " + maxAttempts + ", stable "
+                    + stableConnectionMs + " ms");
+        }
+        myBaseDelayMs = baseDelayMs;
+        myMaxDelayMs = maxDelayMs;
+        myMaxAttempts = maxAttempts;
+        myStableConnectionMs = stableConnectionMs;
+    }
+
+    /**
+     * Schedule a retry after a failed or broken connection, with backoff.
+     * @param address MAC address of the device
+     * @param retry what to run to reconnect
+     * @return false if the device used up its attempts and no retry was scheduled
+     */
+    synchronized boolean retryAfterFailure(String address, Runnable retry) {
+        DeviceState state = stateOf(address);
+        endConnection(state);
+        if (state.attempts >= myMaxAttempts) {
+            Log.e(TAG, "retryAfterFailure: giving up on " + address + " after "
+                    + state.attempts + " attempts");
+            return false;
+        }
+
+        long delay = nextDelayMs(state.attempts);
+        state.attempts++;
+        if (D)
+            Log.d(TAG, "retryAfterFailure: attempt " + state.attempts + " to " + address
+                    + " in " + delay + " ms");
+        schedule(state, retry, delay);
+        return true;
+    }
+
+    /**
+     * Retry at once after a clean disconnect. Falls back to retryAfterFailure() if the
+     * immediate retry was already used since the last connection that held.
+     * @param address MAC address of the device
+     * @param retry what to run to reconnect
+     * @return false if the device used up its attempts and no retry was scheduled
+     */
+    synchronized boolean retryAfterDisconnect(String address, Runnable retry) {
+        DeviceState state = stateOf(address);
+        endConnection(state);
+        if (state.fastRetryUsed) {
+            return retryAfterFailure(address, retry);
+        }
+
+        state.fastRetryUsed = true;
+        if (D)
+            Log.d(TAG, "retryAfterDisconnect: retrying " + address + " now");
+        schedule(state, retry, 0);
+        return true;
+    }
+
+    /**
+     * A connection to the device was made. Cancels a pending retry. The attempts are reset when
+     * the connection ends, if it stayed up long enough.
+     * @param address MAC address of the device
+     */
+    synchronized void onConnected(String address) {
+        DeviceState state = stateOf(address);
+        if (state.pending != null) {
+            state.pending.cancel(false);
+            state.pending = null;
+        }
+        state.connectedMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Cancel the pending retries of all devices and forget their state.
+     */
+    synchronized void cancelAll() {
+        for (DeviceState state : myDevices.values()) {
+            if (state.pending != null) {
+                state.pending.cancel(false);
+            }
+        }
+        myDevices.clear();
+    }
+
+    /**
+     * Upper bound of the delay before the given retry, before jitter.
+     * @param attempt number of failed attempts so far
+     * @return long, milliseconds
+     */
+    long backoffCeilingMs(int attempt) {
+        // stop shifting before the delay could overflow
+        if (attempt >= 30 || (myBaseDelayMs << attempt) >= myMaxDelayMs) {
+            return myMaxDelayMs;
+        }
+        return myBaseDelayMs << attempt;
+    }
+
+    private long nextDelayMs(int attempt) {
+        return (long) (myRandom.nextDouble() * backoffCeilingMs(attempt));
+    }
+
+    /**
+     * The connection of the device ended, or an attempt failed. A connection that held resets
+     * the attempts and the immediate retry.
+     */
+    private void endConnection(DeviceState state) {
+        if (state.connectedMillis >= 0
+                && SystemClock.elapsedRealtime() - state.connectedMillis >= myStableConnectionMs) {
+            state.attempts = 0;
+            state.fastRetryUsed = false;
+        }
+        state.connectedMillis = -1;
+    }
+
+    private DeviceState stateOf(String address) {
+        DeviceState state = myDevices.get(address);
+        if (state == null) {
+            state = new DeviceState();
+            myDevices.put(address, state);
+        }
+        return state;
+    }
+
+    private void schedule(DeviceState state, Runnable retry, long delayMs) {
+        // a newer retry replaces the pending one
+        if (state.pending != null) {
+            state.pending.cancel(false);
+        }
+        state.pending = scheduler().schedule(retry, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BT_RECONNECT_THREAD");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+}
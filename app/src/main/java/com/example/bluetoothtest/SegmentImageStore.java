@@ -0,0 +1,549 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ImageStore appending the images to a few large segment files instead of creating a file per
+ * image, which saves the file system metadata writes of every small image.
+ *
+ * Every image is one record at the end of the active segment:
+ *
+ *      magic (u32) | kind (u8) | name length (u16) | data length (u32) | name | data
+ *
+ * A deleted or replaced image is only marked dead, delete() appends a tombstone record.
+ * compact() copies the live records of mostly dead segments to the active segment and removes
+ * those segments. The offset index (image name -> segment, position, length) is kept in memory
+ * and rebuilt by scanning the segments when the store is opened.
+ *
+ * Images are read without copying them through the Java heap, with transferTo() to a channel or
+ * map() of the record.
+ */
+final class SegmentImageStore implements ImageStore {
+    private static final String TAG = "SegmentImageStore";
+
+    static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    // a sealed segment with at least this share of dead bytes is compacted
+    static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAGIC = 0x314D4753;       // "SGM1"
+    private static final byte KIND_IMAGE = 0;
+    private static final byte KIND_TOMBSTONE = 1;
+    private static final int HEADER_LENGTH = 4 + 1 + 2 + 4;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    /**
+     * One segment file.
+     */
+    private static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        long size;
+        long deadBytes;
+        // written to since the last sync()
+        boolean dirty;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+    }
+
+    /**
+     * Where an image is stored.
+     */
+    private static final class Location {
+        final Segment segment;
+        // position of the record, and of the image data in it
+        final long recordPosition;
+        final long dataPosition;
+        final int length;
+
+        Location(Segment segment, long recordPosition, long dataPosition, int length) {
+            this.segment = segment;
+            this.recordPosition = recordPosition;
+            this.dataPosition = dataPosition;
+            this.length = length;
+        }
+
+        long recordLength() {
+            return dataPosition - recordPosition + length;
+        }
+    }
+
+    private final File myDirectory;
+    private final long mySegmentBytes;
+
+    // all below guarded by this
+    private final TreeMap<Long, Segment> mySegments = new TreeMap<>();
+    private final Map<String, Location> myIndex = new HashMap<>();
+    // records appended since the last sync(), they become visible with it. Null for a tombstone.
+    private final Map<String, Location> myUnsynced = new HashMap<>();
+    private Segment myActive;
+    private final ByteBuffer myHeader =
+            ByteBuffer.allocate(HEADER_LENGTH + MAX_NAME_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+    // readers hold the read lock while using a segment, removing a segment takes the write lock
+    private final ReadWriteLock mySegmentLock = new ReentrantReadWriteLock();
+
+    /**
+     * Open the store, scanning the existing segments.
+     * @param directory directory holding the segment files
+     * @param segmentBytes size at which a new segment is started
+     * @throws IOException
+     */
+    SegmentImageStore(File directory, long segmentBytes) throws IOException {
+        myDirectory = directory;
+        mySegmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        mySegments.put(id, new Segment(id, file));
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "SegmentImageStore: ignoring " + file);
+                    }
+                }
+            }
+        }
+        for (Segment segment : mySegments.values()) {
+            scan(segment, segment.id == mySegments.lastKey());
+        }
+        myActive = mySegments.isEmpty() ? newSegment() : mySegments.lastEntry().getValue();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public synchronized void write(String name, byte[] data, int offset, int length)
+            throws IOException {
+        Location location = append(KIND_IMAGE, name, ByteBuffer.wrap(data, offset, length), null, 0);
+        discardUnsynced(myUnsynced.put(name, location));
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        force();
+        for (Map.Entry<String, Location> entry : myUnsynced.entrySet()) {
+            publish(entry.getKey(), entry.getValue());
+        }
+        myUnsynced.clear();
+    }
+
+    @Override
+    public synchronized Set<String> sync(Set<String> names) {
+        Set<String> stored = new HashSet<>();
+        try {
+            force();
+        } catch (IOException e) {
+            Log.e(TAG, "sync: failed to force " + names.size() + " images", e);
+            for (String name : names) {
+                discardUnsynced(myUnsynced.remove(name));
+            }
+            return stored;
+        }
+        for (String name : names) {
+            if (myUnsynced.containsKey(name)) {
+                publish(name, myUnsynced.remove(name));
+            }
+            // or published already by a sync() of everything
+            if (myIndex.containsKey(name)) {
+                stored.add(name);
+            }
+        }
+        return stored;
+    }
+
+    @Override
+    public synchronized long sizeOf(String name) {
+        Location location = myIndex.get(name);
+        return location != null ? location.length : -1;
+    }
+
+    @Override
+    public String pathOf(String name) {
+        // compact() moves the records, a segment offset would not stay valid
+        return name;
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        if (!myIndex.containsKey(name) && myUnsynced.get(name) == null) {
+            return false;
+        }
+        try {
+            Location tombstone = append(KIND_TOMBSTONE, name, null, null, 0);
+            tombstone.segment.deadBytes += tombstone.recordLength();
+            discardUnsynced(myUnsynced.put(name, null));
+            sync();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "delete: failed to delete " + name, e);
+            return false;
+        }
+    }
+
+    @Override
+    public long transferTo(String name, WritableByteChannel target) throws IOException {
+        Location location = lockForRead(name);
+        if (location == null) {
+            return -1;
+        }
+        try {
+            long position = location.dataPosition;
+            long end = position + location.length;
+            while (position < end) {
+                position += location.segment.channel.transferTo(position, end - position, target);
+            }
+            return location.length;
+        } finally {
+            mySegmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Map a stored image read only. The mapping stays valid after the image is deleted or its
+     * segment compacted.
+     * @param name
+     * @return MappedByteBuffer, or null if there is no image of that name
+     * @throws IOException
+     */
+    MappedByteBuffer map(String name) throws IOException {
+        Location location = lockForRead(name);
+        if (location == null) {
+            return null;
+        }
+        try {
+            return location.segment.channel.map(FileChannel.MapMode.READ_ONLY,
+                    location.dataPosition, location.length);
+        } finally {
+            mySegmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compact the sealed segments whose share of dead bytes reached the ratio: copy their live
+     * records to the active segment and remove them. Blocks writes while it runs, call it from a
+     * background thread when no transfer is going on.
+     * @param ratio share of dead bytes, 0 to 1
+     * @return number of bytes freed
+     * @throws IOException
+     */
+    synchronized long compact(double ratio) throws IOException {
+        sync();
+
+        List<Segment> victims = new ArrayList<>();
+        for (Segment segment : mySegments.values()) {
+            if (segment != myActive && segment.size > 0
+                    && segment.deadBytes >= segment.size * ratio) {
+                victims.add(segment);
+            }
+        }
+
+        long freed = 0;
+        for (Segment victim : victims) {
+            // the tombstones of the oldest segment have nothing left to hide
+            boolean keepTombstones = mySegments.firstKey() != victim.id;
+            copyLiveRecords(victim, keepTombstones);
+            sync();
+
+            mySegmentLock.writeLock().lock();
+            try {
+                mySegments.remove(victim.id);
+                victim.channel.close();
+                if (!victim.file.delete()) {
+                    Log.e(TAG, "compact: could not delete " + victim.file);
+                }
+            } finally {
+                mySegmentLock.writeLock().unlock();
+            }
+            freed += victim.size;
+        }
+        return freed;
+    }
+
+    /**
+     * Whether compact() with the given ratio would compact a segment. Cheap, it only looks at the
+     * segment counters.
+     * @param ratio share of dead bytes, 0 to 1
+     * @return boolean
+     */
+    synchronized boolean needsCompaction(double ratio) {
+        for (Segment segment : mySegments.values()) {
+            if (segment != myActive && segment.size > 0
+                    && segment.deadBytes >= segment.size * ratio) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Close the segment files.
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        sync();
+        for (Segment segment : mySegments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Force the segments written to since the last sync() to disk.
+     */
+    private void force() throws IOException {
+        for (Segment segment : mySegments.values()) {
+            if (segment.dirty) {
+                segment.channel.force(false);
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Make a forced record visible.
+     * @param name
+     * @param location the new record, null for a tombstone
+     */
+    private void publish(String name, Location location) {
+        Location old = location != null ? myIndex.put(name, location) : myIndex.remove(name);
+        if (old != null) {
+            old.segment.deadBytes += old.recordLength();
+        }
+    }
+
+    /**
+     * A record written since the last sync() was replaced before it became visible.
+     */
+    private static void discardUnsynced(Location location) {
+        if (location != null) {
+            location.segment.deadBytes += location.recordLength();
+        }
+    }
+
+    private Location lockForRead(String name) {
+        synchronized (this) {
+            Location location = myIndex.get(name);
+            if (location != null) {
+                mySegmentLock.readLock().lock();
+            }
+            return location;
+        }
+    }
+
+    /**
+     * Append a record to the active segment.
+     * @param kind KIND_IMAGE or KIND_TOMBSTONE
+     * @param name
+     * @param data the image for KIND_IMAGE, ignored if source is set
+     * @param source segment to copy the image from, null to write data
+     * @param sourcePosition position of the image in source
+     * @return Location of the new record
+     */
+    private Location append(byte kind, String name, ByteBuffer data, Location source,
+                            long sourcePosition) throws IOException {
+        byte[] nameBytes = name.getBytes(BluetoothResponseFrame.ASCII);
+        if (nameBytes.length == 0 || nameBytes.length > MAX_NAME_LENGTH) {
+            throw new IOException("cannot store image " + name);
+        }
+        int length = source != null ? source.length : data != null ? data.remaining() : 0;
+        long recordLength = HEADER_LENGTH + nameBytes.length + length;
+        if (myActive.size > 0 && myActive.size + recordLength > mySegmentBytes) {
+            myActive = newSegment();
+        }
+
+        myHeader.clear();
+        myHeader.putInt(MAGIC).put(kind).putShort((short) nameBytes.length).putInt(length)
+                .put(nameBytes);
+        myHeader.flip();
+
+        Segment segment = myActive;
+        long recordPosition = segment.size;
+        long position = recordPosition;
+        while (myHeader.hasRemaining()) {
+            position += segment.channel.write(myHeader, position);
+        }
+        long dataPosition = position;
+        if (source != null) {
+            long end = sourcePosition + length;
+            while (sourcePosition < end) {
+                long copied = source.segment.channel.transferTo(sourcePosition,
+                        end - sourcePosition, segment.channel.position(position));
+                sourcePosition += copied;
+                position += copied;
+            }
+        } else if (data != null) {
+            while (data.hasRemaining()) {
+                position += segment.channel.write(data, position);
+            }
+        }
+        segment.size = position;
+        segment.dirty = true;
+        return new Location(segment, recordPosition, dataPosition, length);
+    }
+
+    private void copyLiveRecords(Segment victim, boolean keepTombstones) throws IOException {
+        // live images of the victim
+        Iterator<Map.Entry<String, Location>> entries = myIndex.entrySet().iterator();
+        List<String> names = new ArrayList<>();
+        while (entries.hasNext()) {
+            Map.Entry<String, Location> entry = entries.next();
+            if (entry.getValue().segment == victim) {
+                names.add(entry.getKey());
+            }
+        }
+        for (String name : names) {
+            Location old = myIndex.get(name);
+            Location copy = append(KIND_IMAGE, name, null, old, old.dataPosition);
+            myIndex.put(name, copy);
+        }
+
+        if (keepTombstones) {
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + MAX_NAME_LENGTH)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (position < victim.size) {
+                Record record = readRecord(victim, position, header);
+                if (record == null) {
+                    break;
+                }
+                if (record.kind == KIND_TOMBSTONE && !myIndex.containsKey(record.name)) {
+                    Location tombstone = append(KIND_TOMBSTONE, record.name, null, null, 0);
+                    tombstone.segment.deadBytes += tombstone.recordLength();
+                }
+                position = record.end;
+            }
+        }
+    }
+
+    private static final class Record {
+        byte kind;
+        String name;
+        long dataPosition;
+        int length;
+        long end;
+    }
+
+    /**
+     * Read the record header at the given position.
+     * @return Record, or null if there is no complete record there
+     */
+    private static Record readRecord(Segment segment, long position, ByteBuffer header)
+            throws IOException {
+        if (position + HEADER_LENGTH > segment.size) {
+            return null;
+        }
+        header.clear();
+        header.limit(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (segment.channel.read(header, position + header.position()) < 0) {
+                return null;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return null;
+        }
+        Record record = new Record();
+        record.kind = header.get();
+        int nameLength = header.getShort() & 0xFFFF;
+        record.length = header.getInt();
+        record.dataPosition = position + HEADER_LENGTH + nameLength;
+        record.end = record.dataPosition + record.length;
+        if (record.length < 0 || record.end > segment.size) {
+            return null;
+        }
+
+        header.clear();
+        header.limit(nameLength);
+        while (header.hasRemaining()) {
+            if (segment.channel.read(header, position + HEADER_LENGTH + header.position()) < 0) {
+                return null;
+            }
+        }
+        record.name = new String(header.array(), 0, nameLength, BluetoothResponseFrame.ASCII);
+        return record;
+    }
+
+    /**
+     * Add the records of a segment to the index. A torn record at the end of the active segment,
+     * left by a crash during a write, is cut off. A sealed segment was complete, an unreadable
+     * record there is damage: the records from there on are not indexed, but the file is left
+     * as it is.
+     * @param segment
+     * @param active whether it is the last segment, the one written to
+     */
+    private void scan(Segment segment, boolean active) throws IOException {
+        long position = 0;
+        while (position < segment.size) {
+            Record record = readRecord(segment, position, myHeader);
+            if (record == null && active) {
+                Log.e(TAG, "scan: " + segment.file + " is torn at " + position + ", truncating");
+                segment.channel.truncate(position);
+                segment.size = position;
+                break;
+            }
+            if (record == null) {
+                Log.e(TAG, "scan: sealed " + segment.file + " is unreadable at " + position
+                        + " of " + segment.size + ", the records after it are not indexed");
+                break;
+            }
+
+            Location old;
+            if (record.kind == KIND_TOMBSTONE) {
+                old = myIndex.remove(record.name);
+                segment.deadBytes += record.end - position;
+            } else {
+                old = myIndex.put(record.name,
+                        new Location(segment, position, record.dataPosition, record.length));
+            }
+            if (old != null) {
+                old.segment.deadBytes += old.recordLength();
+            }
+            position = record.end;
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        long id = mySegments.isEmpty() ? 1 : mySegments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(myDirectory,
+                String.format("%08d", id) + SEGMENT_SUFFIX));
+        mySegments.put(id, segment);
+        return segment;
+    }
+}
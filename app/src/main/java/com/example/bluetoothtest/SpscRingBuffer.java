@@ -0,0 +1,281 @@
+package com.example.bluetoothtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring buffer with exactly one producer thread and one consumer thread. All entries
+ * are created up front and stay in the ring, so passing an entry through it allocates nothing.
+ *
+ * Producer: claim() the next free entry, fill it, publish() it.
+ * Consumer: peek() the next published entry, use it, release() it.
+ *
+ * A stage that reads from one ring and writes to the next can hand an entry over without
+ * copying it: it claims a spare entry on the output ring, puts the spare back in the input ring
+ * with release(spare), and publishes the received entry with publish(entry).
+ */
+final class SpscRingBuffer<E> {
+
+    /**
+     * Creates the entries of the ring.
+     */
+    interface EntryFactory<E> {
+        E newEntry();
+    }
+
+    // upper bound for a single park, in case a wake up is missed
+    private static final long MAX_PARK_NANOS = 50L * 1000 * 1000;
+
+    private final String name;
+    private final Object[] entries;
+    private final int capacity;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // next sequence to be consumed, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next sequence to be produced, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // each side's last view of the other side's sequence, saves a volatile read per call
+    private long producerHeadCache;
+    private long consumerTailCache;
+
+    // set once the ring is shut down, blocking calls return null from then on
+    private volatile boolean closed;
+
+    // the thread parked on this ring, if any
+    private volatile Thread parkedProducer;
+    private volatile Thread parkedConsumer;
+
+    // metrics, each field has a single writer
+    private volatile long producerWaits;     // written by the producer
+    private volatile long consumed;          // written by the consumer
+    private volatile long occupancySum;      // written by the consumer
+    private volatile int maxOccupancy;       // written by the consumer
+
+    /**
+     * @param name name of the ring, used in the metrics
+     * @param capacity number of entries, rounded up to a power of two
+     * @param waitStrategy how blocking calls wait
+     * @param factory creates the entries
+     */
+    SpscRingBuffer(String name, int capacity, WaitStrategy waitStrategy, EntryFactory<E> factory) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.name = name;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.entries = new Object[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = factory.newEntry();
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of published entries not yet released by the consumer. Can be called from any
+     * thread.
+     * @return int
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // producer side
+
+    /**
+     * Claim the next free entry without waiting.
+     * @return the entry to fill, or null if the ring is full
+     */
+    @SuppressWarnings("unchecked")
+    E tryClaim() {
+        long t = tail.get();
+        if (t - producerHeadCache >= capacity) {
+            producerHeadCache = head.get();
+            if (t - producerHeadCache >= capacity) {
+                return null;
+            }
+        }
+        return (E) entries[(int) t & mask];
+    }
+
+    /**
+     * Claim the next free entry, waiting with the wait strategy while the ring is full.
+     * @return the entry to fill, or null if the ring was closed or the calling thread was
+     * interrupted
+     */
+    E claim() {
+        E entry = tryClaim();
+        if (entry != null) {
+            return entry;
+        }
+
+        producerWaits++;
+        for (int attempt = 0; ; attempt++) {
+            if (closed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.PARK) {
+                parkedProducer = Thread.currentThread();
+                entry = tryClaim();
+                if (entry == null) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    entry = tryClaim();
+                }
+                parkedProducer = null;
+            } else {
+                idle(attempt);
+                entry = tryClaim();
+            }
+            if (entry != null) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Publish the claimed entry to the consumer.
+     */
+    void publish() {
+        advance(tail);
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Publish the given entry in place of the claimed one. The claimed entry is then owned by
+     * the caller, typically it was handed back to the ring it came from.
+     * @param entry
+     */
+    void publish(E entry) {
+        entries[(int) tail.get() & mask] = entry;
+        publish();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // consumer side
+
+    /**
+     * Get the next published entry without waiting.
+     * @return the entry, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    E tryPeek() {
+        long h = head.get();
+        if (h >= consumerTailCache) {
+            consumerTailCache = tail.get();
+            if (h >= consumerTailCache) {
+                return null;
+            }
+        }
+        return (E) entries[(int) h & mask];
+    }
+
+    /**
+     * Get the next published entry, waiting with the wait strategy while the ring is empty.
+     * @return the entry, or null if the ring was closed or the calling thread was interrupted
+     */
+    E peek() {
+        E entry = tryPeek();
+        for (int attempt = 0; entry == null; attempt++) {
+            if (closed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.PARK) {
+                parkedConsumer = Thread.currentThread();
+                entry = tryPeek();
+                if (entry == null) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    entry = tryPeek();
+                }
+                parkedConsumer = null;
+            } else {
+                idle(attempt);
+                entry = tryPeek();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Give the peeked entry back to the producer.
+     */
+    void release() {
+        long h = head.get();
+        int occupancy = (int) (consumerTailCache - h);
+        occupancySum += occupancy;
+        if (occupancy > maxOccupancy) {
+            maxOccupancy = occupancy;
+        }
+        consumed++;
+
+        advance(head);
+        Thread producer = parkedProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Give a replacement entry back to the producer and keep the peeked one.
+     * @param replacement
+     */
+    void release(E replacement) {
+        entries[(int) head.get() & mask] = replacement;
+        release();
+    }
+
+    /**
+     * Shut the ring down. Threads waiting in claim() or peek() return null, and so do all
+     * further blocking calls that would have to wait.
+     */
+    void close() {
+        closed = true;
+        Thread thread = parkedProducer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        thread = parkedConsumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private void advance(AtomicLong sequence) {
+        if (waitStrategy == WaitStrategy.PARK) {
+            // full fence, so the other side cannot miss the update after announcing it parks
+            sequence.set(sequence.get() + 1);
+        } else {
+            sequence.lazySet(sequence.get() + 1);
+        }
+    }
+
+    private void idle(int attempt) {
+        if (waitStrategy == WaitStrategy.YIELD || attempt > 1000) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Copy the metrics of this ring.
+     * @return BluetoothMetrics.QueueSnapshot
+     */
+    BluetoothMetrics.QueueSnapshot snapshot() {
+        long count = consumed;
+        return new BluetoothMetrics.QueueSnapshot(name, capacity, size(), maxOccupancy,
+                count == 0 ? 0 : (double) occupancySum / count, count, producerWaits);
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.bluetoothtest;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Discovery that looks for a few known cameras and stops as soon as they are found.
+ *
+ * A plain scan runs its whole period, and while the adapter is discovering the throughput of
+ * the RFCOMM connections drops. This one follows ACTION_FOUND on the event bus and cancels the
+ * discovery the moment the last wanted address turns up. Each camera is reported once, when it
+ * is found. The discovery ends after the timeout at the latest; if the adapter finishes its
+ * inquiry earlier, it is started again.
+ *
+ * The callback is called on the broadcast thread, or on the thread of the handler when the
+ * timeout ends the discovery.
+ */
+final class TargetedDiscovery implements BluetoothBaseListener {
+    private static final String TAG = "TargetedDiscovery";
+    private static final boolean D = true;
+
+    /**
+     * Result of a targeted discovery.
+     */
+    interface Callback {
+        /**
+         * One of the wanted cameras was found.
+         * @param device the camera
+         * @param rssi RSSI value of the camera, DiscoveryTable.NO_RSSI if none was sent
+         */
+        void onFound(BluetoothDevice device, short rssi);
+
+        /**
+         * The discovery ended, every camera was found or the timeout passed or it was cancelled.
+         * @param missing MAC addresses of the cameras not found, empty if all were
+         */
+        void onFinished(List<String> missing);
+    }
+
+    private final BluetoothAdapter myAdapter;
+    private final BluetoothEventBus myEventBus;
+    private final Handler myHandler;
+    private final Callback myCallback;
+
+    // wanted cameras, as 48 bit keys, and which of them were found. Guarded by this.
+    private final String[] myTargets;
+    private final long[] myKeys;
+    private final boolean[] myFound;
+    private int myRemaining;
+
+    private final AtomicBoolean myFinished = new AtomicBoolean();
+    private final Runnable myTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (D)
+                Log.d(TAG, "run: discovery timed out");
+            finish();
+        }
+    };
+
+    /**
+     * @param adapter
+     * @param eventBus the found devices and discovery changes are followed on
+     * @param handler the timeout is posted to
+     * @param macs MAC addresses of the wanted cameras
+     * @param callback
+     */
+    TargetedDiscovery(BluetoothAdapter adapter, BluetoothEventBus eventBus, Handler handler,
+                      String[] macs, Callback callback) {
+        myAdapter = adapter;
+        myEventBus = eventBus;
+        myHandler = handler;
+        myCallback = callback;
+        myTargets = macs.clone();
+        myKeys = new long[macs.length];
+        myFound = new boolean[macs.length];
+        for (int i = 0; i < macs.length; i++) {
+            myKeys[i] = CameraAllowlist.toKey(macs[i]);
+        }
+        myRemaining = macs.length;
+    }
+
+    /**
+     * Start discovering.
+     * @param timeoutMillis the discovery ends after this long even if cameras are missing
+     */
+    void start(long timeoutMillis) {
+        if (D)
+            Log.d(TAG, "start: looking for " + myTargets.length + " cameras");
+        myEventBus.subscribe(this,
+                BluetoothEventBus.EVENT_DEVICE_FOUND | BluetoothEventBus.EVENT_DISCOVERY,
+                BluetoothEventBus.DELIVER_ON_CALLER);
+        myHandler.postDelayed(myTimeout, timeoutMillis);
+        if (myTargets.length == 0) {
+            finish();
+            return;
+        }
+        // a scan running already would not report the cameras it found before
+        myAdapter.cancelDiscovery();
+        myAdapter.startDiscovery();
+    }
+
+    /**
+     * Stop discovering. onFinished is called with the cameras not found yet, unless the
+     * discovery has ended already.
+     */
+    void cancel() {
+        finish();
+    }
+
+    /**
+     * Whether the discovery has ended.
+     * @return boolean
+     */
+    boolean isFinished() {
+        return myFinished.get();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // BluetoothBaseListener
+
+    @Override
+    public void onActionDeviceFound(BluetoothDevice device, short rssi) {
+        long key = CameraAllowlist.toKey(device.getAddress());
+        boolean last;
+        synchronized (this) {
+            int index = indexOf(key);
+            if (index < 0 || myFound[index] || myFinished.get()) {
+                return;
+            }
+            myFound[index] = true;
+            last = --myRemaining == 0;
+        }
+        if (last) {
+            // stop the inquiry first, it slows down everything else on the radio
+            myAdapter.cancelDiscovery();
+        }
+        if (D)
+            Log.d(TAG, "onActionDeviceFound: found " + device.getAddress());
+        myCallback.onFound(device, rssi);
+        if (last) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onActionDiscoveryStateChanged(String discoveryState) {
+        // the adapter ends an inquiry after about 12 s, keep going until the timeout
+        if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(discoveryState)
+                && !myFinished.get()) {
+            myAdapter.startDiscovery();
+        }
+    }
+
+    @Override
+    public void onActionStateChanged(int preState, int state) {
+    }
+
+    @Override
+    public void onActionScanModeChanged(int preScanMode, int scanMode) {
+    }
+
+    @Override
+    public void onBluetoothServiceStateChanged(int state) {
+    }
+
+    @Override
+    public void onBondStateChanged(BluetoothDevice device, int bondState, int preBondState) {
+    }
+
+    @Override
+    public void onReadData(BluetoothDevice device, byte[] data) {
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    private int indexOf(long key) {
+        for (int i = 0; i < myKeys.length; i++) {
+            if (myKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void finish() {
+        if (!myFinished.compareAndSet(false, true)) {
+            return;
+        }
+        myEventBus.unsubscribe(this);
+        myHandler.removeCallbacks(myTimeout);
+        myAdapter.cancelDiscovery();
+
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < myTargets.length; i++) {
+                if (!myFound[i]) {
+                    missing.add(myTargets[i]);
+                }
+            }
+        }
+        if (D)
+            Log.d(TAG, "finish: " + (myTargets.length - missing.size()) + " of "
+                    + myTargets.length + " cameras found");
+        myCallback.onFinished(missing);
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.bluetoothtest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Telemetry reported by the cameras: one TelemetrySeries per camera and metric. The metrics are
+ * the CameraProtocol.TelemetryMetric values, the series of a camera are created when it reports
+ * its first sample.
+ */
+final class Telemetry {
+    /** number of metrics, one more than the highest CameraProtocol.TelemetryMetric value */
+    static final int METRIC_COUNT = CameraProtocol.TelemetryMetric.METRIC_WAKE_COUNT + 1;
+
+    // per series: the last 1024 samples, and windows of up to 64 minutes
+    private static final int SAMPLE_CAPACITY = 1024;
+    private static final int BUCKET_SECONDS = 4096;
+
+    // camera MAC address -> its series, indexed by metric
+    private final ConcurrentMap<String, TelemetrySeries[]> myCameras = new ConcurrentHashMap<>();
+
+    /**
+     * Record a sample.
+     * @param camera MAC address of the camera
+     * @param metric CameraProtocol.TelemetryMetric value
+     * @param timeMillis when it was measured
+     * @param value in the unit of the metric
+     * @return false if the metric is not known, the sample was dropped
+     */
+    boolean record(String camera, int metric, long timeMillis, float value) {
+        if (metric < 0 || metric >= METRIC_COUNT) {
+            return false;
+        }
+        TelemetrySeries[] series = myCameras.get(camera);
+        if (series == null) {
+            TelemetrySeries[] created = new TelemetrySeries[METRIC_COUNT];
+            for (int i = 0; i < METRIC_COUNT; i++) {
+                created[i] = new TelemetrySeries(SAMPLE_CAPACITY, BUCKET_SECONDS);
+            }
+            series = myCameras.putIfAbsent(camera, created);
+            if (series == null) {
+                series = created;
+            }
+        }
+        series[metric].record(timeMillis, value);
+        return true;
+    }
+
+    /**
+     * Series of a camera's metric.
+     * @param camera MAC address of the camera
+     * @param metric CameraProtocol.TelemetryMetric value
+     * @return TelemetrySeries, or null if the camera has not reported anything yet
+     */
+    TelemetrySeries series(String camera, int metric) {
+        TelemetrySeries[] series = myCameras.get(camera);
+        return series != null && metric >= 0 && metric < METRIC_COUNT ? series[metric] : null;
+    }
+
+    /**
+     * Min, max and average of a camera's metric over the last minutes.
+     * @param camera MAC address of the camera
+     * @param metric CameraProtocol.TelemetryMetric value
+     * @param minutes length of the window, up to 64 minutes
+     * @param out filled with the aggregate, count 0 if there are no samples
+     */
+    void aggregate(String camera, int metric, int minutes, TelemetrySeries.Window out) {
+        TelemetrySeries series = series(camera, metric);
+        if (series == null) {
+            out.count = 0;
+            out.min = 0;
+            out.max = 0;
+            out.average = 0;
+            return;
+        }
+        series.aggregate(System.currentTimeMillis(), minutes * 60L * 1000, out);
+    }
+
+    /**
+     * Convert a raw sample value from the wire to the unit of its metric.
+     * @param metric CameraProtocol.TelemetryMetric value
+     * @param raw the value as sent
+     * @return float
+     */
+    static float toUnit(int metric, int raw) {
+        return metric == CameraProtocol.TelemetryMetric.METRIC_TEMPERATURE ? raw / 10f : raw;
+    }
+}
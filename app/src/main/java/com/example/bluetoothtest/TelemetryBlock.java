@@ -0,0 +1,339 @@
+package com.example.bluetoothtest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed size block of telemetry samples of one series, stored column by column:
+ *
+ *      header | timestamp column | value column
+ *
+ * The header holds the first sample as is. The timestamp column holds, for every further
+ * sample, the difference between its delta and the delta before it (delta of delta), which is 0
+ * for samples arriving at a steady rate and costs one bit then. The value column holds each
+ * float XOR the float before it, with the run of leading and trailing zero bits left out, so an
+ * unchanged value costs one bit and a slowly changing one a few.
+ *
+ * A block is built in memory with append() until it is full, then written out with writeTo().
+ * A Reader decodes written blocks.
+ */
+final class TelemetryBlock {
+    static final int SIZE = 4096;
+    // i64 firstTime, i64 lastTime, i32 count, i32 timeBits, i32 valueBits, i32 firstValue
+    static final int HEADER_LENGTH = 32;
+
+    // each column is padded to a whole byte, one spare byte leaves room for both paddings
+    private static final int CAPACITY_BITS = (SIZE - HEADER_LENGTH - 1) * 8;
+    private static final int WORDS = CAPACITY_BITS / 64 + 2;
+
+    /**
+     * Receives the decoded samples.
+     */
+    interface Visitor {
+        void sample(long timeMillis, float value);
+    }
+
+    private final long[] myTimeColumn = new long[WORDS];
+    private final long[] myValueColumn = new long[WORDS];
+    private int myTimeBits;
+    private int myValueBits;
+    private int myCount;
+
+    private long myFirstTime;
+    private int myFirstValue;
+    private long myLastTime;
+    private long myLastDelta;
+    private int myLastValue;
+    // zero bit run of the last stored XOR, -1 before the first one
+    private int myLeading;
+    private int myTrailing;
+
+    TelemetryBlock() {
+        reset();
+    }
+
+    /**
+     * Empty the block.
+     */
+    void reset() {
+        Arrays.fill(myTimeColumn, 0, Math.min(WORDS, (myTimeBits >>> 6) + 1), 0);
+        Arrays.fill(myValueColumn, 0, Math.min(WORDS, (myValueBits >>> 6) + 1), 0);
+        myTimeBits = 0;
+        myValueBits = 0;
+        myCount = 0;
+        myLastDelta = 0;
+        myLeading = -1;
+        myTrailing = 0;
+    }
+
+    int count() {
+        return myCount;
+    }
+
+    long firstTime() {
+        return myFirstTime;
+    }
+
+    long lastTime() {
+        return myLastTime;
+    }
+
+    /**
+     * Add a sample. Its time must not be before the time of the last sample.
+     * @param timeMillis
+     * @param value
+     * @return false if the block is full, the sample was not added
+     */
+    boolean append(long timeMillis, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if (myCount == 0) {
+            myFirstTime = timeMillis;
+            myFirstValue = bits;
+            myLastTime = timeMillis;
+            myLastValue = bits;
+            myCount = 1;
+            return true;
+        }
+
+        long delta = timeMillis - myLastTime;
+        long deltaOfDelta = delta - myLastDelta;
+        if (deltaOfDelta != (int) deltaOfDelta) {
+            // too far apart for one block
+            return false;
+        }
+        int xor = bits ^ myLastValue;
+        if (myTimeBits + myValueBits + timeLength((int) deltaOfDelta) + valueLength(xor)
+                > CAPACITY_BITS) {
+            return false;
+        }
+
+        writeTime((int) deltaOfDelta);
+        writeValue(xor);
+        myLastDelta = delta;
+        myLastTime = timeMillis;
+        myLastValue = bits;
+        myCount++;
+        return true;
+    }
+
+    /**
+     * Write the block, SIZE bytes from the position of the buffer.
+     * @param block
+     */
+    void writeTo(ByteBuffer block) {
+        int start = block.position();
+        block.putLong(myFirstTime).putLong(myLastTime).putInt(myCount).putInt(myTimeBits)
+                .putInt(myValueBits).putInt(myFirstValue);
+        putColumn(block, myTimeColumn, myTimeBits);
+        putColumn(block, myValueColumn, myValueBits);
+        while (block.position() < start + SIZE) {
+            block.put((byte) 0);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // encoding
+
+    private static int timeLength(int deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            return 1;
+        } else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+            return 2 + 7;
+        } else if (deltaOfDelta >= -256 && deltaOfDelta < 256) {
+            return 3 + 9;
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+            return 4 + 12;
+        }
+        return 4 + 32;
+    }
+
+    private void writeTime(int deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            myTimeBits = put(myTimeColumn, myTimeBits, 0, 1);
+        } else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+            myTimeBits = put(myTimeColumn, myTimeBits, 0x2, 2);
+            myTimeBits = put(myTimeColumn, myTimeBits, deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -256 && deltaOfDelta < 256) {
+            myTimeBits = put(myTimeColumn, myTimeBits, 0x6, 3);
+            myTimeBits = put(myTimeColumn, myTimeBits, deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+            myTimeBits = put(myTimeColumn, myTimeBits, 0xE, 4);
+            myTimeBits = put(myTimeColumn, myTimeBits, deltaOfDelta, 12);
+        } else {
+            myTimeBits = put(myTimeColumn, myTimeBits, 0xF, 4);
+            myTimeBits = put(myTimeColumn, myTimeBits, deltaOfDelta, 32);
+        }
+    }
+
+    private int valueLength(int xor) {
+        if (xor == 0) {
+            return 1;
+        }
+        int leading = Math.min(31, Integer.numberOfLeadingZeros(xor));
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (myLeading >= 0 && leading >= myLeading && trailing >= myTrailing) {
+            return 2 + 32 - myLeading - myTrailing;
+        }
+        return 2 + 5 + 5 + 32 - leading - trailing;
+    }
+
+    private void writeValue(int xor) {
+        if (xor == 0) {
+            myValueBits = put(myValueColumn, myValueBits, 0, 1);
+            return;
+        }
+        int leading = Math.min(31, Integer.numberOfLeadingZeros(xor));
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (myLeading >= 0 && leading >= myLeading && trailing >= myTrailing) {
+            // fits in the zero bit run of the previous value
+            myValueBits = put(myValueColumn, myValueBits, 0x2, 2);
+            myValueBits = put(myValueColumn, myValueBits, xor >>> myTrailing,
+                    32 - myLeading - myTrailing);
+            return;
+        }
+        int meaningful = 32 - leading - trailing;
+        myValueBits = put(myValueColumn, myValueBits, 0x3, 2);
+        myValueBits = put(myValueColumn, myValueBits, leading, 5);
+        myValueBits = put(myValueColumn, myValueBits, meaningful - 1, 5);
+        myValueBits = put(myValueColumn, myValueBits, xor >>> trailing, meaningful);
+        myLeading = leading;
+        myTrailing = trailing;
+    }
+
+    /**
+     * Append the low n bits of value, n at most 32, most significant bit first.
+     * @return the new bit count
+     */
+    private static int put(long[] words, int position, long value, int n) {
+        long bits = value & ((1L << n) - 1);
+        int index = position >>> 6;
+        int free = 64 - (position & 63);
+        if (n <= free) {
+            words[index] |= bits << (free - n);
+        } else {
+            words[index] |= bits >>> (n - free);
+            words[index + 1] |= bits << (64 - (n - free));
+        }
+        return position + n;
+    }
+
+    private static void putColumn(ByteBuffer block, long[] words, int bits) {
+        int bytes = (bits + 7) >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            block.put((byte) (words[i >>> 3] >>> (56 - ((i & 7) << 3))));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // decoding
+
+    /**
+     * Decodes written blocks. Holds the scratch space of the decoding, use one per thread.
+     */
+    static final class Reader {
+        private final long[] myTimeColumn = new long[WORDS];
+        private final long[] myValueColumn = new long[WORDS];
+
+        /**
+         * Decode the samples of a block that fall in a time range.
+         * @param block SIZE bytes of a block, from the position of the buffer
+         * @param fromMillis start of the range, inclusive
+         * @param toMillis end of the range, inclusive
+         * @param visitor receives the samples in the range, in time order
+         * @return int, number of samples passed to the visitor
+         */
+        int read(ByteBuffer block, long fromMillis, long toMillis, Visitor visitor) {
+            int start = block.position();
+            long time = block.getLong(start);
+            long lastTime = block.getLong(start + 8);
+            int count = block.getInt(start + 16);
+            int timeBits = block.getInt(start + 20);
+            int valueBits = block.getInt(start + 24);
+            int value = block.getInt(start + 28);
+            if (count <= 0 || lastTime < fromMillis || time > toMillis
+                    || timeBits + valueBits > CAPACITY_BITS) {
+                return 0;
+            }
+            int timeStart = start + HEADER_LENGTH;
+            int valueStart = timeStart + ((timeBits + 7) >>> 3);
+            loadColumn(block, timeStart, timeBits, myTimeColumn);
+            loadColumn(block, valueStart, valueBits, myValueColumn);
+
+            int visited = 0;
+            if (time >= fromMillis) {
+                visitor.sample(time, Float.intBitsToFloat(value));
+                visited++;
+            }
+            int timePosition = 0;
+            int valuePosition = 0;
+            long delta = 0;
+            int leading = 0;
+            int trailing = 0;
+            for (int i = 1; i < count; i++) {
+                // delta of delta: 0, 10 + 7, 110 + 9, 1110 + 12 or 1111 + 32 bits
+                int prefix = 0;
+                while (prefix < 4 && get(myTimeColumn, timePosition++, 1) == 1) {
+                    prefix++;
+                }
+                if (prefix > 0) {
+                    int n = prefix == 1 ? 7 : prefix == 2 ? 9 : prefix == 3 ? 12 : 32;
+                    long raw = get(myTimeColumn, timePosition, n);
+                    timePosition += n;
+                    // sign extend
+                    delta += (raw << (64 - n)) >> (64 - n);
+                }
+                time += delta;
+
+                // value: 0, 10 + bits in the previous window, 11 + window + bits
+                if (get(myValueColumn, valuePosition++, 1) == 1) {
+                    if (get(myValueColumn, valuePosition++, 1) == 1) {
+                        leading = (int) get(myValueColumn, valuePosition, 5);
+                        int meaningful = (int) get(myValueColumn, valuePosition + 5, 5) + 1;
+                        valuePosition += 10;
+                        trailing = 32 - leading - meaningful;
+                    }
+                    int n = 32 - leading - trailing;
+                    int xor = (int) get(myValueColumn, valuePosition, n) << trailing;
+                    valuePosition += n;
+                    value ^= xor;
+                }
+
+                if (time > toMillis) {
+                    break;
+                }
+                if (time >= fromMillis) {
+                    visitor.sample(time, Float.intBitsToFloat(value));
+                    visited++;
+                }
+            }
+            return visited;
+        }
+
+        private static void loadColumn(ByteBuffer block, int offset, int bits, long[] words) {
+            int bytes = (bits + 7) >>> 3;
+            int fullWords = bytes >>> 3;
+            for (int i = 0; i < fullWords; i++) {
+                words[i] = block.getLong(offset + (i << 3));
+            }
+            long last = 0;
+            for (int i = fullWords << 3; i < bytes; i++) {
+                last |= (block.get(offset + i) & 0xFFL) << (56 - ((i & 7) << 3));
+            }
+            words[fullWords] = last;
+        }
+
+        /**
+         * Read n bits, n at most 32, most significant bit first.
+         */
+        private static long get(long[] words, int position, int n) {
+            int index = position >>> 6;
+            int offset = position & 63;
+            int available = 64 - offset;
+            long bits = (words[index] << offset) >>> (64 - n);
+            if (n > available) {
+                bits |= words[index + 1] >>> (64 - (n - available));
+            }
+            return bits;
+        }
+    }
+}
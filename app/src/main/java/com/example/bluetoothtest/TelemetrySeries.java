@@ -0,0 +1,173 @@
+package com.example.bluetoothtest;
+
+import java.util.Arrays;
+
+/**
+ * Recent samples of one metric of one camera, kept in primitive arrays so that recording a
+ * sample neither allocates nor boxes.
+ *
+ * Two rings are kept: the last samples as they came (time and value), and one bucket per second
+ * with the min, max, sum and count of the samples in that second. A windowed aggregate reads the
+ * buckets, so its cost depends on the length of the window in seconds and not on the sample
+ * rate, cheap enough to redraw a live view on every new sample.
+ *
+ * One thread records, any thread can query.
+ */
+final class TelemetrySeries {
+    private static final long BUCKET_MILLIS = 1000;
+
+    /**
+     * Aggregate of the samples in a window. Filled by aggregate(), reuse one per view.
+     */
+    static final class Window {
+        int count;
+        float min;
+        float max;
+        float average;
+    }
+
+    // the last samples, index = sequence & mySampleMask
+    private final long[] mySampleTimes;
+    private final float[] mySampleValues;
+    private final int mySampleMask;
+    private long mySampleCount;
+
+    // one bucket per second, index = second & myBucketMask. A bucket belongs to the second in
+    // myBucketSeconds, anything else is stale.
+    private final long[] myBucketSeconds;
+    private final float[] myBucketMin;
+    private final float[] myBucketMax;
+    private final double[] myBucketSum;
+    private final int[] myBucketCount;
+    private final int myBucketMask;
+
+    /**
+     * @param sampleCapacity number of raw samples kept, rounded up to a power of two
+     * @param bucketSeconds longest window that can be aggregated, rounded up to a power of two
+     */
+    TelemetrySeries(int sampleCapacity, int bucketSeconds) {
+        int samples = Integer.highestOneBit(Math.max(2, sampleCapacity) - 1) << 1;
+        int buckets = Integer.highestOneBit(Math.max(2, bucketSeconds) - 1) << 1;
+        mySampleTimes = new long[samples];
+        mySampleValues = new float[samples];
+        mySampleMask = samples - 1;
+
+        myBucketSeconds = new long[buckets];
+        Arrays.fill(myBucketSeconds, Long.MIN_VALUE);
+        myBucketMin = new float[buckets];
+        myBucketMax = new float[buckets];
+        myBucketSum = new double[buckets];
+        myBucketCount = new int[buckets];
+        myBucketMask = buckets - 1;
+    }
+
+    /**
+     * Record a sample.
+     * @param timeMillis when it was measured
+     * @param value
+     */
+    synchronized void record(long timeMillis, float value) {
+        int slot = (int) mySampleCount & mySampleMask;
+        mySampleTimes[slot] = timeMillis;
+        mySampleValues[slot] = value;
+        mySampleCount++;
+
+        long second = timeMillis / BUCKET_MILLIS;
+        int bucket = (int) second & myBucketMask;
+        if (myBucketSeconds[bucket] != second) {
+            if (myBucketSeconds[bucket] > second) {
+                // older than anything the bucket ring still covers
+                return;
+            }
+            myBucketSeconds[bucket] = second;
+            myBucketMin[bucket] = value;
+            myBucketMax[bucket] = value;
+            myBucketSum[bucket] = value;
+            myBucketCount[bucket] = 1;
+            return;
+        }
+        if (value < myBucketMin[bucket]) {
+            myBucketMin[bucket] = value;
+        }
+        if (value > myBucketMax[bucket]) {
+            myBucketMax[bucket] = value;
+        }
+        myBucketSum[bucket] += value;
+        myBucketCount[bucket]++;
+    }
+
+    /**
+     * Aggregate the samples of the last windowMillis, at a resolution of one second.
+     * @param nowMillis end of the window
+     * @param windowMillis length of the window, at most the bucket seconds given to the
+     * constructor
+     * @param out filled with the aggregate, count 0 if there are no samples in the window
+     */
+    synchronized void aggregate(long nowMillis, long windowMillis, Window out) {
+        long last = nowMillis / BUCKET_MILLIS;
+        long seconds = Math.min((windowMillis + BUCKET_MILLIS - 1) / BUCKET_MILLIS,
+                myBucketMask + 1);
+        int count = 0;
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        double sum = 0;
+        for (long second = last - seconds + 1; second <= last; second++) {
+            int bucket = (int) second & myBucketMask;
+            if (myBucketSeconds[bucket] != second) {
+                continue;
+            }
+            count += myBucketCount[bucket];
+            min = Math.min(min, myBucketMin[bucket]);
+            max = Math.max(max, myBucketMax[bucket]);
+            sum += myBucketSum[bucket];
+        }
+        out.count = count;
+        out.min = count > 0 ? min : 0;
+        out.max = count > 0 ? max : 0;
+        out.average = count > 0 ? (float) (sum / count) : 0;
+    }
+
+    /**
+     * Number of samples recorded so far.
+     * @return long
+     */
+    synchronized long size() {
+        return mySampleCount;
+    }
+
+    /**
+     * Value of the newest sample.
+     * @param fallback returned if there is none
+     * @return float
+     */
+    synchronized float latest(float fallback) {
+        return mySampleCount > 0 ? mySampleValues[(int) (mySampleCount - 1) & mySampleMask]
+                : fallback;
+    }
+
+    /**
+     * Time of the newest sample.
+     * @return long, milliseconds since the epoch, -1 if there is none
+     */
+    synchronized long latestTime() {
+        return mySampleCount > 0 ? mySampleTimes[(int) (mySampleCount - 1) & mySampleMask] : -1;
+    }
+
+    /**
+     * Copy the newest samples, oldest first, e.g. to draw a graph.
+     * @param times receives the sample times
+     * @param values receives the sample values
+     * @return int, number of samples copied, at most the length of the arrays
+     */
+    synchronized int copyLatest(long[] times, float[] values) {
+        int n = (int) Math.min(Math.min(times.length, values.length),
+                Math.min(mySampleCount, mySampleMask + 1));
+        long first = mySampleCount - n;
+        for (int i = 0; i < n; i++) {
+            int slot = (int) (first + i) & mySampleMask;
+            times[i] = mySampleTimes[slot];
+            values[i] = mySampleValues[slot];
+        }
+        return n;
+    }
+}
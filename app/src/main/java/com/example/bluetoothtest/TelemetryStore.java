@@ -0,0 +1,406 @@
+package com.example.bluetoothtest;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * On-disk history of the telemetry samples, months of it per camera.
+ *
+ * Every series (camera and metric) has two files:
+ *
+ *      <camera>_<metric>.blk   fixed size TelemetryBlocks, in time order
+ *      <camera>_<metric>.idx   one entry per block: first time (i64), last time (i64),
+ *                              count (i32), sealed (i32)
+ *
+ * A range scan maps the index, finds the first block of the range with a binary search and
+ * decodes only the blocks that overlap the range.
+ *
+ * append() is called on the parser thread and only queues the sample in a ring. A writer thread
+ * drains the ring and adds the samples to the open block of their series in memory. When a
+ * block is full it is sealed: written once and never again. Each time the ring runs empty the
+ * open blocks that changed are written to their slot too, so a burst of samples costs one write
+ * per series, and after a crash at most the samples still in the ring are lost.
+ */
+final class TelemetryStore {
+    private static final String TAG = "TelemetryStore";
+    private static final boolean D = true;
+
+    static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    private static final String BLOCK_SUFFIX = ".blk";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_ENTRY_LENGTH = 24;
+
+    /**
+     * A sample on its way to the writer thread.
+     */
+    private static final class Sample {
+        String camera;
+        int metric;
+        long timeMillis;
+        float value;
+    }
+
+    /**
+     * Files and open block of one series. The block and counters are guarded by the series.
+     */
+    private static final class Series {
+        final FileChannel blocks;
+        final FileChannel index;
+        final TelemetryBlock open = new TelemetryBlock();
+        // number of sealed blocks, the open block goes to the slot after them
+        int sealedCount;
+        // the open block changed since it was last written
+        boolean dirty;
+
+        Series(File blockFile, File indexFile) throws IOException {
+            blocks = new RandomAccessFile(blockFile, "rw").getChannel();
+            index = new RandomAccessFile(indexFile, "rw").getChannel();
+        }
+    }
+
+    private final File myDirectory;
+    // camera + '/' + metric -> series
+    private final ConcurrentMap<String, Series> mySeries = new ConcurrentHashMap<>();
+    private final SpscRingBuffer<Sample> myQueue;
+    private final Thread myWriter;
+    // written by the producer only
+    private volatile long myDroppedSamples;
+
+    // used by the writer thread only
+    private final ByteBuffer myBlockBuffer = ByteBuffer.allocate(TelemetryBlock.SIZE);
+    private final ByteBuffer myEntryBuffer = ByteBuffer.allocate(INDEX_ENTRY_LENGTH);
+
+    /**
+     * @param directory directory holding the series files
+     * @param queueCapacity number of samples that can wait for the writer thread
+     * @throws IOException if the directory cannot be created
+     */
+    TelemetryStore(File directory, int queueCapacity) throws IOException {
+        myDirectory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        myQueue = new SpscRingBuffer<>("telemetry", queueCapacity, WaitStrategy.PARK,
+                new SpscRingBuffer.EntryFactory<Sample>() {
+                    @Override
+                    public Sample newEntry() {
+                        return new Sample();
+                    }
+                });
+        myWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "TELEMETRY_WRITER_THREAD");
+        myWriter.setDaemon(true);
+        myWriter.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    void start() {
+        myWriter.start();
+    }
+
+    /**
+     * Queue a sample. Never blocks: if the writer thread is that far behind, the sample is
+     * dropped. Must always be called from the same thread.
+     * @param camera MAC address of the camera
+     * @param metric CameraProtocol.TelemetryMetric value
+     * @param timeMillis when it was measured
+     * @param value in the unit of the metric
+     * @return false if the sample was dropped
+     */
+    boolean append(String camera, int metric, long timeMillis, float value) {
+        Sample sample = myQueue.tryClaim();
+        if (sample == null) {
+            myDroppedSamples++;
+            return false;
+        }
+        sample.camera = camera;
+        sample.metric = metric;
+        sample.timeMillis = timeMillis;
+        sample.value = value;
+        myQueue.publish();
+        return true;
+    }
+
+    /**
+     * Number of samples dropped because the queue was full.
+     * @return long
+     */
+    long getDroppedSamples() {
+        return myDroppedSamples;
+    }
+
+    /**
+     * Read the stored samples of a series in a time range. Samples still queued for the writer
+     * thread are not seen yet.
+     * @param camera MAC address of the camera
+     * @param metric CameraProtocol.TelemetryMetric value
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, inclusive
+     * @param visitor receives the samples in time order
+     * @return int, number of samples passed to the visitor
+     * @throws IOException
+     */
+    int scan(String camera, int metric, long fromMillis, long toMillis,
+             TelemetryBlock.Visitor visitor) throws IOException {
+        Series series = mySeries.get(keyOf(camera, metric));
+        if (series == null) {
+            if (!blockFile(camera, metric).exists()) {
+                return 0;
+            }
+            series = seriesOf(camera, metric);
+        }
+        int sealed;
+        synchronized (series) {
+            sealed = series.sealedCount;
+        }
+
+        int visited = 0;
+        ByteBuffer block = ByteBuffer.allocate(TelemetryBlock.SIZE);
+        TelemetryBlock.Reader reader = new TelemetryBlock.Reader();
+        if (sealed > 0) {
+            // sealed blocks and their entries do not change any more, no lock needed
+            MappedByteBuffer index = series.index.map(FileChannel.MapMode.READ_ONLY, 0,
+                    (long) sealed * INDEX_ENTRY_LENGTH);
+            // first block ending at or after the start of the range
+            int low = 0;
+            int high = sealed;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (index.getLong(middle * INDEX_ENTRY_LENGTH + 8) < fromMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < sealed && index.getLong(i * INDEX_ENTRY_LENGTH) <= toMillis;
+                 i++) {
+                block.clear();
+                readFully(series.blocks, block, (long) i * TelemetryBlock.SIZE);
+                block.flip();
+                visited += reader.read(block, fromMillis, toMillis, visitor);
+            }
+        }
+
+        synchronized (series) {
+            // blocks sealed since the index was looked at
+            for (int i = sealed; i < series.sealedCount; i++) {
+                block.clear();
+                readFully(series.blocks, block, (long) i * TelemetryBlock.SIZE);
+                block.flip();
+                visited += reader.read(block, fromMillis, toMillis, visitor);
+            }
+            if (series.open.count() > 0 && series.open.lastTime() >= fromMillis
+                    && series.open.firstTime() <= toMillis) {
+                block.clear();
+                series.open.writeTo(block);
+                block.flip();
+                visited += reader.read(block, fromMillis, toMillis, visitor);
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Write the queued samples and the open blocks, and close the files.
+     */
+    void close() {
+        myQueue.close();
+        try {
+            myWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Series series : mySeries.values()) {
+            synchronized (series) {
+                try {
+                    series.blocks.force(false);
+                    series.index.force(false);
+                    series.blocks.close();
+                    series.index.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close: failed", e);
+                }
+            }
+        }
+        mySeries.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // writer thread
+
+    private void drain() {
+        while (true) {
+            Sample sample = myQueue.tryPeek();
+            if (sample == null) {
+                // burst over, write what changed before waiting for the next one
+                flushOpenBlocks();
+                // returns null once the queue is closed and empty
+                sample = myQueue.peek();
+                if (sample == null) {
+                    break;
+                }
+            }
+            try {
+                write(sample);
+            } catch (IOException e) {
+                Log.e(TAG, "drain: cannot store sample of " + sample.camera, e);
+            }
+            sample.camera = null;
+            myQueue.release();
+        }
+    }
+
+    private void write(Sample sample) throws IOException {
+        Series series = seriesOf(sample.camera, sample.metric);
+        synchronized (series) {
+            TelemetryBlock open = series.open;
+            // blocks are kept in time order for the index search, a sample from before the
+            // previous one (the phone clock was set back) is stored at the previous time
+            long time = open.count() > 0 ? Math.max(sample.timeMillis, open.lastTime())
+                    : sample.timeMillis;
+            if (!open.append(time, sample.value)) {
+                writeBlock(series, true);
+                series.sealedCount++;
+                open.reset();
+                open.append(time, sample.value);
+            }
+            series.dirty = true;
+        }
+    }
+
+    private void flushOpenBlocks() {
+        for (Series series : mySeries.values()) {
+            synchronized (series) {
+                if (!series.dirty) {
+                    continue;
+                }
+                try {
+                    writeBlock(series, false);
+                    series.dirty = false;
+                } catch (IOException e) {
+                    Log.e(TAG, "flushOpenBlocks: failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the open block of a series and its index entry to the slot after the sealed blocks.
+     * Called with the series locked.
+     */
+    private void writeBlock(Series series, boolean sealed) throws IOException {
+        TelemetryBlock open = series.open;
+        myBlockBuffer.clear();
+        open.writeTo(myBlockBuffer);
+        myBlockBuffer.flip();
+        writeFully(series.blocks, myBlockBuffer, (long) series.sealedCount * TelemetryBlock.SIZE);
+
+        // the entry after the block, a reader never finds an entry without its block
+        myEntryBuffer.clear();
+        myEntryBuffer.putLong(open.firstTime()).putLong(open.lastTime()).putInt(open.count())
+                .putInt(sealed ? 1 : 0);
+        myEntryBuffer.flip();
+        writeFully(series.index, myEntryBuffer, (long) series.sealedCount * INDEX_ENTRY_LENGTH);
+    }
+
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Get the series, opening its files if needed. A series written before is picked up where
+     * it ended: its last block, if not sealed, becomes the open block again.
+     */
+    private Series seriesOf(String camera, int metric) throws IOException {
+        String key = keyOf(camera, metric);
+        Series series = mySeries.get(key);
+        if (series != null) {
+            return series;
+        }
+        synchronized (mySeries) {
+            series = mySeries.get(key);
+            if (series != null) {
+                return series;
+            }
+            String base = fileBase(camera, metric);
+            series = new Series(new File(myDirectory, base + BLOCK_SUFFIX),
+                    new File(myDirectory, base + INDEX_SUFFIX));
+            int entries = (int) (series.index.size() / INDEX_ENTRY_LENGTH);
+            // blocks of a torn tail, without an entry, are overwritten
+            entries = (int) Math.min(entries, series.blocks.size() / TelemetryBlock.SIZE);
+            series.sealedCount = entries;
+            if (entries > 0) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH);
+                readFully(series.index, entry, (long) (entries - 1) * INDEX_ENTRY_LENGTH);
+                if (entry.getInt(20) == 0) {
+                    series.sealedCount = entries - 1;
+                    reopen(series);
+                }
+            }
+            if (D)
+                Log.d(TAG, "seriesOf: " + base + ", " + series.sealedCount + " sealed blocks, "
+                        + series.open.count() + " samples in the open block");
+            mySeries.put(key, series);
+            return series;
+        }
+    }
+
+    /**
+     * Load the last, not sealed block of a series back into its open block.
+     */
+    private static void reopen(final Series series) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(TelemetryBlock.SIZE);
+        readFully(series.blocks, block, (long) series.sealedCount * TelemetryBlock.SIZE);
+        block.flip();
+        new TelemetryBlock.Reader().read(block, Long.MIN_VALUE, Long.MAX_VALUE,
+                new TelemetryBlock.Visitor() {
+                    @Override
+                    public void sample(long timeMillis, float value) {
+                        series.open.append(timeMillis, value);
+                    }
+                });
+    }
+
+    private File blockFile(String camera, int metric) {
+        return new File(myDirectory, fileBase(camera, metric) + BLOCK_SUFFIX);
+    }
+
+    private static String fileBase(String camera, int metric) {
+        return camera.replace(":", "") + "_" + metric;
+    }
+
+    private static String keyOf(String camera, int metric) {
+        return camera + '/' + metric;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
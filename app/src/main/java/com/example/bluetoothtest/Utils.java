@@ -7,8 +7,6 @@ import android.util.Log;
 import android.view.Gravity;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 
 public class Utils {
     private static final String TAG = "Utils";
@@ -104,11 +102,7 @@ public class Utils {
      * @return long
      */
     public static long getCurrentTime() {
-        // the current time as UTC milliseconds from the epoch.
-//        Calendar calendar = Calendar.getInstance();
-//        SimpleDateFormat mdformat = new SimpleDateFormat("HH:mm:ss");
-//        String strDate = "Current Time : " + mdformat.format(calendar.getTime());
-//        Log.d(TAG, "getCurrentTime: " + strDate);
-        return Calendar.getInstance().getTimeInMillis();
+        // the current time as UTC milliseconds from the epoch, without allocating a Calendar
+        return System.currentTimeMillis();
     }
 }
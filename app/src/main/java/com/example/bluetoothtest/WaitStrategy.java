@@ -0,0 +1,14 @@
+package com.example.bluetoothtest;
+
+/**
+ * How a pipeline stage waits when its input ring is empty or its output ring is full.
+ *
+ *      SPIN  busy loops, lowest latency, keeps a core awake. Starts yielding after a while.
+ *      YIELD gives the core to other threads between checks.
+ *      PARK  parks the thread until the other side of the ring wakes it up. Best for battery.
+ */
+enum WaitStrategy {
+    SPIN,
+    YIELD,
+    PARK
+}
@@ -0,0 +1,10 @@
+package com.example.bluetoothtest;
+
+/**
+ * JUnit category of the throughput benchmarks. They take too long for every test run, so the
+ * unit test tasks leave them out unless the build is run with -Pbenchmarks:
+ *
+ *      ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+public interface Benchmark {
+}
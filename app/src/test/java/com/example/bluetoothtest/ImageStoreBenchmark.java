@@ -0,0 +1,186 @@
+package com.example.bluetoothtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the file per image store with the segment store, runs on the development machine
+ * (host). Prints the time to write and commit a run of images the way the storage executor
+ * does, in the Benchmark category. The checks that a group sync commits only its own images and
+ * that the segment store survives delete, compaction and reopening run with the unit tests.
+ */
+public class ImageStoreBenchmark {
+    private static final int IMAGES = 500;
+    private static final int IMAGE_BYTES = 48 * 1024;
+    private static final int COMMIT_BATCH = 4;
+
+    private final byte[] image = new byte[IMAGE_BYTES];
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(image);
+        directory = File.createTempFile("ImageStoreBenchmark", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(directory);
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private long writeImages(ImageStore store, String prefix) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) {
+            store.write(prefix + i + ".jpg", image, 0, image.length);
+            if ((i + 1) % COMMIT_BATCH == 0) {
+                store.sync();
+            }
+        }
+        store.sync();
+        return System.nanoTime() - start;
+    }
+
+    private static byte[] read(ImageStore store, String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(store.sizeOf(name), store.transferTo(name, Channels.newChannel(out)));
+        return out.toByteArray();
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void fileStore_vsSegmentStore() throws IOException {
+        FileImageStore files = new FileImageStore(new File(directory, "files"), true);
+        new File(directory, "files").mkdirs();
+        SegmentImageStore segments = new SegmentImageStore(new File(directory, "segments"),
+                SegmentImageStore.DEFAULT_SEGMENT_BYTES);
+
+        // warm up both, then measure on fresh names, so no image replaces an earlier one
+        writeImages(files, "WARMUP_");
+        writeImages(segments, "WARMUP_");
+        long fileNanos = writeImages(files, "IMG_");
+        long segmentNanos = writeImages(segments, "IMG_");
+
+        System.out.println("ImageStoreBenchmark: " + IMAGES + " images of " + IMAGE_BYTES / 1024
+                + " KB, file per image " + fileNanos / 1000000 + " ms, segments "
+                + segmentNanos / 1000000 + " ms");
+
+        assertArrayEquals(image, read(files, "IMG_7.jpg"));
+        assertArrayEquals(image, read(segments, "IMG_7.jpg"));
+        segments.close();
+    }
+
+    @Test
+    public void sync_commitsOnlyTheNamedImages() throws IOException {
+        File fileDirectory = new File(directory, "files");
+        assertTrue(fileDirectory.mkdirs());
+        ImageStore[] stores = {new FileImageStore(fileDirectory, true),
+                new SegmentImageStore(new File(directory, "segments"), 4 * IMAGE_BYTES)};
+        for (ImageStore store : stores) {
+            store.write("IMG_0.jpg", image, 0, image.length);
+            store.write("IMG_1.jpg", image, 0, image.length);
+            assertEquals(Collections.singleton("IMG_0.jpg"),
+                    store.sync(Collections.singleton("IMG_0.jpg")));
+            assertEquals(IMAGE_BYTES, store.sizeOf("IMG_0.jpg"));
+            // written by another group, still pending
+            assertEquals(-1, store.sizeOf("IMG_1.jpg"));
+            store.sync();
+            assertEquals(IMAGE_BYTES, store.sizeOf("IMG_1.jpg"));
+        }
+        ((SegmentImageStore) stores[1]).close();
+    }
+
+    @Test
+    public void segmentStore_deleteCompactReopen() throws IOException {
+        File segmentDirectory = new File(directory, "segments");
+        // small segments, so the images spread over several of them
+        SegmentImageStore store = new SegmentImageStore(segmentDirectory, 4 * IMAGE_BYTES);
+        for (int i = 0; i < 20; i++) {
+            store.write("IMG_" + i + ".jpg", image, 0, image.length);
+        }
+        assertEquals(-1, store.sizeOf("IMG_0.jpg"));
+        store.sync();
+        assertEquals(IMAGE_BYTES, store.sizeOf("IMG_0.jpg"));
+
+        for (int i = 0; i < 16; i++) {
+            assertTrue(store.delete("IMG_" + i + ".jpg"));
+        }
+        assertFalse(store.delete("IMG_0.jpg"));
+        assertTrue(store.compact(SegmentImageStore.DEFAULT_COMPACTION_RATIO) > 0);
+        assertEquals(-1, store.sizeOf("IMG_3.jpg"));
+        assertArrayEquals(image, read(store, "IMG_17.jpg"));
+        store.close();
+
+        // a torn record at the end, as left by a crash during a write, is dropped
+        File[] segmentFiles = segmentDirectory.listFiles();
+        assertNotNull(segmentFiles);
+        Arrays.sort(segmentFiles);
+        RandomAccessFile last = new RandomAccessFile(segmentFiles[segmentFiles.length - 1], "rw");
+        last.seek(last.length());
+        last.write(new byte[]{0x53, 0x47, 0x4D});
+        last.close();
+
+        store = new SegmentImageStore(segmentDirectory, 4 * IMAGE_BYTES);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("IMG_" + i, i < 16 ? -1 : IMAGE_BYTES, store.sizeOf("IMG_" + i + ".jpg"));
+        }
+        ByteBuffer mapped = store.map("IMG_19.jpg");
+        byte[] copy = new byte[mapped.remaining()];
+        mapped.get(copy);
+        assertArrayEquals(image, copy);
+        store.close();
+    }
+
+    @Test
+    public void segmentStore_keepsDamagedSealedSegment() throws IOException {
+        File segmentDirectory = new File(directory, "segments");
+        SegmentImageStore store = new SegmentImageStore(segmentDirectory, 4 * IMAGE_BYTES);
+        for (int i = 0; i < 8; i++) {
+            store.write("IMG_" + i + ".jpg", image, 0, image.length);
+        }
+        store.close();
+
+        // damage the magic of the second record of the first, sealed, segment
+        File[] segmentFiles = segmentDirectory.listFiles();
+        assertNotNull(segmentFiles);
+        Arrays.sort(segmentFiles);
+        long sealedLength = segmentFiles[0].length();
+        long recordLength = sealedLength / 3;
+        RandomAccessFile sealed = new RandomAccessFile(segmentFiles[0], "rw");
+        sealed.seek(recordLength);
+        sealed.write(0);
+        sealed.close();
+
+        store = new SegmentImageStore(segmentDirectory, 4 * IMAGE_BYTES);
+        assertEquals(IMAGE_BYTES, store.sizeOf("IMG_0.jpg"));
+        assertEquals(-1, store.sizeOf("IMG_1.jpg"));
+        // the later segments are indexed, and the damaged one is not cut off
+        assertEquals(IMAGE_BYTES, store.sizeOf("IMG_7.jpg"));
+        assertEquals(sealedLength, segmentFiles[0].length());
+        store.close();
+    }
+}
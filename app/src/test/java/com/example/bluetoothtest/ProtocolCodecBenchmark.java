@@ -0,0 +1,83 @@
+package com.example.bluetoothtest;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Micro benchmark for the generated protocol codecs, runs on the development machine (host).
+ * Prints the time per encode/decode round trip, in the Benchmark category. The checks that the
+ * codecs round trip and do not allocate run with the unit tests.
+ */
+public class ProtocolCodecBenchmark {
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int ITERATIONS = 2000000;
+    private static final int CHECKED_ITERATIONS = 10000;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(64);
+    private final FrameHeaderEncoder headerEncoder = new FrameHeaderEncoder();
+    private final FrameHeaderDecoder headerDecoder = new FrameHeaderDecoder();
+    private final TimeResponseEncoder timeEncoder = new TimeResponseEncoder();
+    private final TimeResponseDecoder timeDecoder = new TimeResponseDecoder();
+
+    private long roundTrip(int i) {
+        headerEncoder.wrap(buffer, 0)
+                .commType(CameraProtocol.CommType.BT_RESPONSE)
+                .category(CameraProtocol.ResponseType.RESPONSE_FOR_TIME_REQUEST)
+                .payloadLength(8)
+                .packetNumber(i & 0xFFFF);
+        timeEncoder.wrap(buffer, FrameHeaderEncoder.FIXED_LENGTH).epochMillis(i);
+
+        headerDecoder.wrap(buffer, 0);
+        timeDecoder.wrap(buffer, FrameHeaderDecoder.FIXED_LENGTH);
+        return headerDecoder.packetNumber() + headerDecoder.payloadLength() + timeDecoder.epochMillis();
+    }
+
+    @Test
+    public void frameHeader_roundTrip() {
+        headerEncoder.wrap(buffer, 0).commType(0x0B).category(0x00).payloadLength(1000).packetNumber(300);
+        headerDecoder.wrap(buffer, 0);
+        assertEquals(0x0B, headerDecoder.commType());
+        assertEquals(0x00, headerDecoder.category());
+        assertEquals(1000, headerDecoder.payloadLength());
+        assertEquals(300, headerDecoder.packetNumber());
+    }
+
+    @Test
+    public void roundTrip_isAllocationFree() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long sink = 0;
+        for (int i = 0; i < CHECKED_ITERATIONS; i++) {
+            sink += roundTrip(i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // allow for the bookkeeping of the measurement itself
+        assertTrue("codecs allocated " + allocated + " bytes, sink " + sink, allocated < 1024);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void roundTrip_throughput() {
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += roundTrip(i);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += roundTrip(i);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("ProtocolCodecBenchmark: " + ((double) elapsed / ITERATIONS)
+                + " ns per round trip, sink " + sink);
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.bluetoothtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the telemetry store on the development machine (host): bytes per stored sample, and
+ * the throughput of a full and of a narrow range scan. The measurement is in the Benchmark
+ * category, the checks that samples come back exactly, across reopening the store, run with the
+ * unit tests.
+ */
+public class TelemetryStoreBenchmark {
+    private static final String CAMERA = "00:11:22:33:44:55";
+    private static final int METRIC = CameraProtocol.TelemetryMetric.METRIC_TEMPERATURE;
+    // about 12 days of one sample per second
+    private static final int SAMPLES = 1000000;
+    // enough for several blocks
+    private static final int CHECKED_SAMPLES = 20000;
+    private static final long START_MILLIS = 1700000000000L;
+
+    private final long[] times = new long[SAMPLES];
+    private final float[] values = new float[SAMPLES];
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        // one report a second with a few ms of jitter, a temperature drifting in 0.1 steps
+        Random random = new Random(1);
+        long time = START_MILLIS;
+        int tenths = 215;
+        for (int i = 0; i < SAMPLES; i++) {
+            time += 1000 + random.nextInt(21) - 10;
+            if (random.nextInt(8) == 0) {
+                tenths += random.nextInt(3) - 1;
+            }
+            times[i] = time;
+            values[i] = Telemetry.toUnit(METRIC, tenths);
+        }
+        directory = File.createTempFile("TelemetryStoreBenchmark", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void append(TelemetryStore store, int from, int to) {
+        for (int i = from; i < to; i++) {
+            while (!store.append(CAMERA, METRIC, times[i], values[i])) {
+                // the benchmark produces faster than any camera, wait for the writer
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Checks the samples passed to it against the generated ones.
+     */
+    private class Checker implements TelemetryBlock.Visitor {
+        int next;
+
+        Checker(int first) {
+            next = first;
+        }
+
+        @Override
+        public void sample(long timeMillis, float value) {
+            assertEquals(times[next], timeMillis);
+            assertEquals(values[next], value, 0f);
+            next++;
+        }
+    }
+
+    @Test
+    public void scan_returnsSamplesExactly() throws IOException {
+        TelemetryStore store = new TelemetryStore(directory, TelemetryStore.DEFAULT_QUEUE_CAPACITY);
+        store.start();
+        append(store, 0, CHECKED_SAMPLES);
+        store.close();
+
+        store = new TelemetryStore(directory, TelemetryStore.DEFAULT_QUEUE_CAPACITY);
+        Checker all = new Checker(0);
+        assertEquals(CHECKED_SAMPLES, store.scan(CAMERA, METRIC, Long.MIN_VALUE, Long.MAX_VALUE,
+                all));
+        assertEquals(CHECKED_SAMPLES, all.next);
+        // a range across block boundaries
+        int first = CHECKED_SAMPLES / 4;
+        int last = CHECKED_SAMPLES * 3 / 4;
+        Checker range = new Checker(first);
+        assertEquals(last - first + 1, store.scan(CAMERA, METRIC, times[first], times[last],
+                range));
+        store.close();
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void bytesPerSample_andScanThroughput() throws IOException {
+        TelemetryStore store = new TelemetryStore(directory, TelemetryStore.DEFAULT_QUEUE_CAPACITY);
+        store.start();
+        long start = System.nanoTime();
+        append(store, 0, SAMPLES);
+        store.close();
+        long appendNanos = System.nanoTime() - start;
+
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            bytes += file.length();
+        }
+
+        store = new TelemetryStore(directory, TelemetryStore.DEFAULT_QUEUE_CAPACITY);
+        // warm up, then measure
+        store.scan(CAMERA, METRIC, Long.MIN_VALUE, Long.MAX_VALUE, new Checker(0));
+        start = System.nanoTime();
+        Checker all = new Checker(0);
+        assertEquals(SAMPLES, store.scan(CAMERA, METRIC, Long.MIN_VALUE, Long.MAX_VALUE, all));
+        long fullNanos = System.nanoTime() - start;
+        assertEquals(SAMPLES, all.next);
+
+        // one hour in the middle
+        int first = SAMPLES / 2;
+        int last = first;
+        while (times[last + 1] <= times[first] + 3600 * 1000) {
+            last++;
+        }
+        start = System.nanoTime();
+        Checker hour = new Checker(first);
+        assertEquals(last - first + 1, store.scan(CAMERA, METRIC, times[first], times[last], hour));
+        long hourNanos = System.nanoTime() - start;
+        store.close();
+
+        System.out.println("TelemetryStoreBenchmark: " + SAMPLES + " samples, "
+                + String.format("%.2f", (double) bytes / SAMPLES) + " bytes/sample (16 raw), append "
+                + appendNanos / SAMPLES + " ns/sample, full scan "
+                + (long) (SAMPLES / (fullNanos / 1e9)) + " samples/s, one hour scan "
+                + hourNanos / 1000 + " us");
+    }
+
+    @Test
+    public void reopen_continuesOpenBlock() throws IOException {
+        TelemetryStore store = new TelemetryStore(directory, 64);
+        store.start();
+        append(store, 0, 100);
+        store.close();
+
+        store = new TelemetryStore(directory, 64);
+        store.start();
+        append(store, 100, 200);
+        // a sample from before the last one is kept in time order
+        assertTrue(store.append(CAMERA, METRIC, times[0], values[0]));
+        store.close();
+
+        store = new TelemetryStore(directory, 64);
+        final long[] last = new long[1];
+        assertEquals(201, store.scan(CAMERA, METRIC, Long.MIN_VALUE, Long.MAX_VALUE,
+                new TelemetryBlock.Visitor() {
+                    @Override
+                    public void sample(long timeMillis, float value) {
+                        assertTrue(timeMillis >= last[0]);
+                        last[0] = timeMillis;
+                    }
+                }));
+        assertEquals(times[199], last[0]);
+        Checker checker = new Checker(50);
+        assertEquals(100, store.scan(CAMERA, METRIC, times[50], times[149], checker));
+        assertEquals(0, store.scan("66:77:88:99:AA:BB", METRIC, Long.MIN_VALUE, Long.MAX_VALUE,
+                checker));
+        store.close();
+    }
+}